@@ -0,0 +1,144 @@
+/*
+ * Copyright 2026 The CombineCameras Authors. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.grafika;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Moves encoded output from a codec to its destination as soon as the codec produces it.
+ * <p>
+ * This replaces the drainEncoder() loops, which poll dequeueOutputBuffer() with a timeout.
+ * Polling either spins or adds latency, depending on how the timing works out; here the
+ * codec calls us, and we hand each packet straight to the sink (a muxer, or a circular
+ * buffer) and give the buffer back.  The sink runs on whatever thread the codec delivers
+ * output on.
+ * <p>
+ * Codec config buffers are dropped, since the muxer gets that data from the output format.
+ * <p>
+ * No framework calls are made here, so the engine can be exercised with a fake codec on a
+ * desktop JVM.
+ *
+ * @param <F> The type describing the output format, e.g. MediaFormat.
+ */
+public class AsyncEncoderEngine<F> implements EncoderCodec.Listener<F> {
+    // Same values as MediaCodec.BUFFER_FLAG_*.
+    private static final int FLAG_CODEC_CONFIG = 2;
+    private static final int FLAG_END_OF_STREAM = 4;
+
+    /**
+     * Where the encoded output goes.  Called on the codec's output thread.
+     */
+    public interface Sink<F> {
+        /**
+         * Called with the output format, before any packets.
+         */
+        void onFormat(F format);
+
+        /**
+         * Called for each encoded packet.  The data is only valid for the duration of the
+         * call.
+         *
+         * @param data The packet.  Position and limit bracket the data, and may be altered.
+         * @param flags MediaCodec.BufferInfo flags.
+         */
+        void onPacket(ByteBuffer data, int flags, long ptsUsec);
+
+        /**
+         * Called after the last packet, once the codec reports end of stream.
+         */
+        void onEndOfStream();
+    }
+
+    private final EncoderCodec<F> mCodec;
+    private final Sink<F> mSink;
+
+    private final Object mLock = new Object();
+    private boolean mEndOfStream;       // guarded by mLock
+
+    public AsyncEncoderEngine(EncoderCodec<F> codec, Sink<F> sink) {
+        mCodec = codec;
+        mSink = sink;
+    }
+
+    /**
+     * Starts the codec.  Output will flow to the sink from here on.
+     */
+    public void start() {
+        mCodec.setListener(this);
+        mCodec.start();
+    }
+
+    /**
+     * Tells the codec there's no more input.
+     */
+    public void signalEndOfStream() {
+        mCodec.signalEndOfInputStream();
+    }
+
+    /**
+     * Waits until the codec has delivered its end-of-stream buffer.  Don't call this on the
+     * thread the codec delivers output on.
+     *
+     * @return True if end of stream was reached, false if we timed out.
+     */
+    public boolean awaitEndOfStream(long timeoutMsec) {
+        long deadline = System.currentTimeMillis() + timeoutMsec;
+        synchronized (mLock) {
+            while (!mEndOfStream) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    return false;
+                }
+                try {
+                    mLock.wait(remaining);
+                } catch (InterruptedException ie) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public void onOutputFormatChanged(F format) {
+        mSink.onFormat(format);
+    }
+
+    @Override
+    public void onOutputBufferAvailable(int index, ByteBuffer data, int flags, long ptsUsec) {
+        try {
+            if ((flags & FLAG_CODEC_CONFIG) == 0 && data.remaining() != 0) {
+                mSink.onPacket(data, flags, ptsUsec);
+            }
+        } finally {
+            mCodec.releaseOutputBuffer(index);
+        }
+
+        if ((flags & FLAG_END_OF_STREAM) != 0) {
+            synchronized (mLock) {
+                mEndOfStream = true;
+                mLock.notifyAll();
+            }
+            mSink.onEndOfStream();
+        }
+    }
+
+    @Override
+    public void onError(Exception e) {
+        throw new RuntimeException("encoder failed", e);
+    }
+}
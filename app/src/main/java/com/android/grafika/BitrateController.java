@@ -0,0 +1,298 @@
+/*
+ * Copyright 2026 The CombineCameras Authors. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.grafika;
+
+/**
+ * Adjusts an encoder's bit rate while it runs, so the rate it actually produces tracks a
+ * target.
+ * <p>
+ * Encoders treat the configured bit rate as a rough guide: a scene with a lot of motion can
+ * come out well above it, which fills storage faster than planned and shortens the span of
+ * a fixed-size circular buffer.  We measure the real output rate from the packets over a
+ * fixed interval, and once per interval ask the control law for a new setting.  The target
+ * itself is lowered when we're told that the buffer span is short of what's wanted, or that
+ * the storage can't absorb the target rate.
+ * <p>
+ * Changes are clamped to a maximum step and to the configured bounds, and small changes
+ * are skipped so we don't make the encoder reconfigure itself over noise.
+ * <p>
+ * Storage speed is reported now and then, e.g. once per file save.  The reports are
+ * smoothed, so one slow write doesn't drag the target down on its own, and forgotten if no
+ * new one arrives for a while, so an old hiccup doesn't cap the rate for good.
+ * <p>
+ * No framework calls are made here, so the controller can be driven by a simulated encoder
+ * on a desktop JVM.  onPacket() must be called on a single thread; the other inputs may be
+ * updated from anywhere.
+ */
+public class BitrateController {
+    /**
+     * Receives bit rate changes.  Usually a wrapper around MediaCodec#setParameters().
+     */
+    public interface Encoder {
+        void setBitRate(int bitRate);
+    }
+
+    /**
+     * Decides the next bit rate setting.
+     */
+    public interface ControlLaw {
+        /**
+         * @param current The bit rate the encoder is set to now.
+         * @param target The output rate we want.
+         * @param measured The output rate we got over the last interval.
+         * @return The bit rate to set.  Will be clamped by the controller.
+         */
+        int nextBitRate(int current, int target, int measured);
+    }
+
+    /**
+     * Proportional-integral control on the relative error between the target and measured
+     * rates.  The integral term is what removes the encoder's steady over- or undershoot.
+     */
+    public static class PiControlLaw implements ControlLaw {
+        private final float mGainP;
+        private final float mGainI;
+        private float mIntegral;
+
+        public PiControlLaw(float gainP, float gainI) {
+            mGainP = gainP;
+            mGainI = gainI;
+        }
+
+        @Override
+        public int nextBitRate(int current, int target, int measured) {
+            float error = (target - measured) / (float) target;
+            // Clamp to keep the integral from winding up while we're pinned at a bound.
+            mIntegral = Math.max(-1.0f, Math.min(1.0f, mIntegral + error));
+            return (int) (current * (1.0f + mGainP * error + mGainI * mIntegral));
+        }
+    }
+
+    private static final long DEFAULT_INTERVAL_USEC = 1000000;
+    private static final float DEFAULT_MAX_STEP = 0.25f;
+    private static final float DEFAULT_DEADBAND = 0.05f;
+    private static final float DEFAULT_WRITE_SHARE = 1.0f;
+    private static final float DEFAULT_WRITE_WEIGHT = 0.3f;
+    private static final long DEFAULT_WRITE_EXPIRY_USEC = 60000000;
+
+    private final Encoder mEncoder;
+    private final int mMinBitRate;
+    private final int mMaxBitRate;
+    private volatile int mTargetBitRate;
+    private ControlLaw mLaw = new PiControlLaw(0.5f, 0.1f);
+    private long mIntervalUsec = DEFAULT_INTERVAL_USEC;
+    private float mMaxStep = DEFAULT_MAX_STEP;
+    private float mDeadband = DEFAULT_DEADBAND;
+    private volatile float mWriteShare = DEFAULT_WRITE_SHARE;
+    private float mWriteWeight = DEFAULT_WRITE_WEIGHT;
+    private long mWriteExpiryUsec = DEFAULT_WRITE_EXPIRY_USEC;
+
+    // Inputs from other threads.
+    private volatile float mSpanRatio = 1.0f;
+    private final Object mWriteLock = new Object();
+    private long mWriteBytesPerSec;     // guarded by mWriteLock; smoothed, zero if unknown
+    private long mWriteAgeUsec;         // guarded by mWriteLock; output time since last report
+
+    // ----- accessed exclusively by the thread calling onPacket() -----
+    private volatile int mBitRate;          // read by getBitRate() on any thread
+    private volatile int mMeasuredBitRate;  // ditto
+    private long mWindowStartUsec = -1;
+    private long mWindowBytes;
+
+    /**
+     * Creates a controller.  The encoder should already be running at the target rate.
+     *
+     * @param targetBitRate Output rate we want, in bits per second.
+     * @param minBitRate Lowest rate we'll set.
+     * @param maxBitRate Highest rate we'll set.
+     */
+    public BitrateController(int targetBitRate, int minBitRate, int maxBitRate,
+            Encoder encoder) {
+        if (minBitRate <= 0 || minBitRate > targetBitRate || targetBitRate > maxBitRate) {
+            throw new IllegalArgumentException("Bad bit rate bounds: " + minBitRate + " <= " +
+                    targetBitRate + " <= " + maxBitRate);
+        }
+        mTargetBitRate = targetBitRate;
+        mMinBitRate = minBitRate;
+        mMaxBitRate = maxBitRate;
+        mBitRate = targetBitRate;
+        mEncoder = encoder;
+    }
+
+    /**
+     * Replaces the control law.  The default is a PiControlLaw with gains of 0.5 and 0.1.
+     * Call before the first packet.
+     */
+    public void setControlLaw(ControlLaw law) {
+        mLaw = law;
+    }
+
+    /**
+     * Sets how often we measure and adjust.  Call before the first packet.
+     */
+    public void setInterval(long intervalUsec) {
+        mIntervalUsec = intervalUsec;
+    }
+
+    /**
+     * Sets the largest change made in one step, as a fraction of the current setting, and
+     * the smallest change worth making.  Call before the first packet.
+     */
+    public void setStepLimits(float maxStep, float deadband) {
+        mMaxStep = maxStep;
+        mDeadband = deadband;
+    }
+
+    /**
+     * Changes the target output rate.
+     */
+    public void setTargetBitRate(int bitRate) {
+        mTargetBitRate = bitRate;
+    }
+
+    /**
+     * Reports how much of the wanted buffer span we're actually holding, e.g. 0.8 if we
+     * wanted 10 seconds and have 8.  Below 1.0, the target is scaled down to match.
+     */
+    public void setSpanRatio(float ratio) {
+        mSpanRatio = ratio;
+    }
+
+    /**
+     * Sets the share of the reported write throughput that the encoder may use.  Less than
+     * 1.0 leaves room for other traffic to the same storage.  The default is 1.0.
+     */
+    public void setWriteShare(float share) {
+        mWriteShare = share;
+    }
+
+    /**
+     * Sets how write throughput reports are smoothed, and how long one counts for.  Call
+     * before the first report.
+     *
+     * @param weight Weight given to each new report, between 0 and 1.  The default is 0.3.
+     * @param expiryUsec How much encoder output, in microseconds, may go by without a new
+     *     report before the throughput is forgotten.  The default is 60 seconds.
+     */
+    public void setWriteThroughputFilter(float weight, long expiryUsec) {
+        mWriteWeight = weight;
+        mWriteExpiryUsec = expiryUsec;
+    }
+
+    /**
+     * Reports the rate at which encoded data was written to storage.  Only time spent
+     * writing should be counted, not time spent waiting for data.  The target is kept below
+     * the write share of the smoothed rate, so writes keep up with the encoder.
+     */
+    public void onWriteThroughput(long bytesPerSec) {
+        if (bytesPerSec <= 0) {
+            return;
+        }
+        synchronized (mWriteLock) {
+            if (mWriteBytesPerSec == 0) {
+                mWriteBytesPerSec = bytesPerSec;
+            } else {
+                mWriteBytesPerSec += (long) (mWriteWeight * (bytesPerSec - mWriteBytesPerSec));
+            }
+            mWriteAgeUsec = 0;
+        }
+    }
+
+    /**
+     * Returns the bit rate the encoder is currently set to.
+     */
+    public int getBitRate() {
+        return mBitRate;
+    }
+
+    /**
+     * Returns the output rate measured over the last complete interval, or zero if we don't
+     * have one yet.
+     */
+    public int getMeasuredBitRate() {
+        return mMeasuredBitRate;
+    }
+
+    /**
+     * Feeds an encoded packet to the controller.  May call Encoder#setBitRate().
+     */
+    public void onPacket(int size, long ptsUsec) {
+        if (mWindowStartUsec < 0) {
+            // The first packet just starts the clock; its bytes belong to the time before.
+            mWindowStartUsec = ptsUsec;
+            return;
+        }
+        mWindowBytes += size;
+        long elapsed = ptsUsec - mWindowStartUsec;
+        if (elapsed < mIntervalUsec) {
+            return;
+        }
+
+        int measured = (int) (mWindowBytes * 8 * 1000000 / elapsed);
+        mMeasuredBitRate = measured;
+        mWindowStartUsec = ptsUsec;
+        mWindowBytes = 0;
+        synchronized (mWriteLock) {
+            mWriteAgeUsec += elapsed;
+            if (mWriteAgeUsec >= mWriteExpiryUsec) {
+                mWriteBytesPerSec = 0;
+            }
+        }
+        adjust(measured);
+    }
+
+    /**
+     * Returns the output rate to aim for, after allowing for buffer span and storage speed.
+     */
+    public int computeEffectiveTarget() {
+        long target = mTargetBitRate;
+        long writeBytesPerSec;
+        synchronized (mWriteLock) {
+            writeBytesPerSec = mWriteBytesPerSec;
+        }
+        long writeBitRate = (long) (writeBytesPerSec * 8 * mWriteShare);
+        if (writeBitRate > 0 && writeBitRate < target) {
+            target = writeBitRate;
+        }
+        float spanRatio = mSpanRatio;
+        if (spanRatio < 1.0f) {
+            target = (long) (target * Math.max(spanRatio, 0.0f));
+        }
+        return (int) Math.max(mMinBitRate, Math.min(mMaxBitRate, target));
+    }
+
+    private void adjust(int measured) {
+        int current = mBitRate;
+        int target = computeEffectiveTarget();
+        long next = mLaw.nextBitRate(current, target, measured);
+
+        long lowest = (long) (current * (1.0f - mMaxStep));
+        long highest = (long) (current * (1.0f + mMaxStep));
+        next = Math.max(lowest, Math.min(highest, next));
+        next = Math.max(mMinBitRate, Math.min(mMaxBitRate, next));
+
+        if (Math.abs(next - current) < current * mDeadband &&
+                next != mMinBitRate && next != mMaxBitRate) {
+            return;
+        }
+        if (next == current) {
+            return;
+        }
+        mBitRate = (int) next;
+        mEncoder.setBitRate((int) next);
+    }
+}
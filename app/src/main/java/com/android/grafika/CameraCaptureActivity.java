@@ -46,15 +46,21 @@ import android.widget.Spinner;
 import android.widget.TextView;
 import android.widget.Toast;
 
+import com.android.grafika.gles.CompositorProgram;
 import com.android.grafika.gles.FullFrameRect;
+import com.android.grafika.gles.GlState;
 import com.android.grafika.gles.GlUtil;
+import com.android.grafika.gles.ProgramCache;
 import com.android.grafika.gles.Texture2dProgram;
 
 import java.io.File;
 import java.io.IOException;
 import java.lang.ref.WeakReference;
 
+import javax.microedition.khronos.egl.EGL10;
 import javax.microedition.khronos.egl.EGLConfig;
+import javax.microedition.khronos.egl.EGLContext;
+import javax.microedition.khronos.egl.EGLDisplay;
 import javax.microedition.khronos.opengles.GL10;
 
 /**
@@ -144,6 +150,13 @@ public class CameraCaptureActivity extends Activity
     static final int FILTER_EDGE_DETECT = 4;
     static final int FILTER_EMBOSS = 5;
 
+    // Camera layouts, cycled by tapping the preview.
+    private static final CompositorProgram.Layout[] LAYOUTS = {
+            CompositorProgram.Layout.pip(2),
+            CompositorProgram.Layout.split(2),
+            CompositorProgram.Layout.stack(2),
+    };
+
     private GLSurfaceView mGLSurfaceView;
     private CameraSurfaceRenderer mRenderer;
     private Camera mCamera;
@@ -151,10 +164,14 @@ public class CameraCaptureActivity extends Activity
     private boolean mRecordingEnabled;      // controls button state
 
     private int mCameraPreviewWidth, mCameraPreviewHeight;
+    private int mLayoutIndex;               // into LAYOUTS
 
     // this is static so it survives activity restarts
     private static TextureMovieEncoder sVideoEncoder = new TextureMovieEncoder();
 
+    // Picked once per process, on a thread of its own; see chooseEncoderProfile().
+    private static volatile EncoderProfile sEncoderProfile;
+
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
@@ -183,19 +200,86 @@ public class CameraCaptureActivity extends Activity
         // appropriate EGL context.
         mGLSurfaceView = (GLSurfaceView) findViewById(R.id.cameraPreview_surfaceView);
         mGLSurfaceView.setEGLContextClientVersion(2);     // select GLES 2.0
+        mGLSurfaceView.setEGLContextFactory(new Gles3ContextFactory());
         mRenderer = new CameraSurfaceRenderer(mCameraHandler, sVideoEncoder, outputFile);
         mGLSurfaceView.setRenderer(mRenderer);
+        if (sEncoderProfile != null) {
+            mRenderer.setEncoderProfile(sEncoderProfile);
+        } else {
+            // Checking the device's encoders can mean a walk through MediaCodecList, which
+            // takes long enough that it mustn't happen on the UI or render thread.
+            final CameraSurfaceRenderer renderer = mRenderer;
+            new Thread("ChooseEncoderProfile") {
+                @Override
+                public void run() {
+                    EncoderProfile profile = chooseEncoderProfile();
+                    sEncoderProfile = profile;
+                    renderer.setEncoderProfile(profile);
+                }
+            }.start();
+        }
         mGLSurfaceView.setRenderMode(GLSurfaceView.RENDERMODE_WHEN_DIRTY);
+        mGLSurfaceView.setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View v) {
+                mLayoutIndex = (mLayoutIndex + 1) % LAYOUTS.length;
+                final CompositorProgram.Layout layout = LAYOUTS[mLayoutIndex];
+                Log.d(TAG, "switching to layout " + layout);
+                mGLSurfaceView.queueEvent(new Runnable() {
+                    @Override
+                    public void run() {
+                        mRenderer.changeLayout(layout);
+                    }
+                });
+            }
+        });
 
         Log.d(TAG, "onCreate complete: " + this);
     }
 
+    /**
+     * Returns the H.264 profile we record with when we don't know any better.  Doesn't
+     * look at the device's encoders.
+     */
+    static EncoderProfile getDefaultEncoderProfile() {
+        return new EncoderProfile.Builder(640, 480, 1000000).build();
+    }
+
+    /**
+     * Picks the recording profile.  HEVC gets the same quality from about half the bits, so
+     * we use it when the device can encode it, and fall back to H.264 otherwise.
+     * <p>
+     * This may have to wait for the codec capability cache to load, so don't call it on a
+     * thread that draws.
+     */
+    private static EncoderProfile chooseEncoderProfile() {
+        EncoderProfile avc = getDefaultEncoderProfile();
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
+            EncoderProfile hevc = new EncoderProfile.Builder(avc)
+                    .setMimeType(EncoderProfile.MIME_TYPE_HEVC)
+                    .setBitRate(avc.getBitRate() / 2)
+                    .build();
+            if (hevc.isSupported()) {
+                return hevc;
+            }
+        }
+        if (!avc.isSupported()) {
+            // The capability lists aren't always accurate, so try it anyway.
+            Log.w(TAG, "No encoder claims to support " + avc);
+        }
+        return avc;
+    }
+
     @Override
     protected void onResume() {
         Log.d(TAG, "onResume -- acquiring camera");
         super.onResume();
         updateControls();
 
+        // Keep the encoder ready between recordings while we're in front, so toggling
+        // recording is quick.
+        sVideoEncoder.setKeepWarm(true);
+
         if (PermissionHelper.hasCameraPermission(this)) {
             if (mCamera == null) {
                 openCamera(1280, 720);      // updates mCameraPreviewWidth/Height
@@ -219,6 +303,14 @@ public class CameraCaptureActivity extends Activity
     protected void onPause() {
         Log.d(TAG, "onPause -- releasing camera");
         super.onPause();
+
+        // An idle warm encoder holds a codec, a thread, and an EGL context shared with the
+        // GLSurfaceView's, which is about to go away.  Let it go; onResume() warms up the
+        // next one.  A recording in progress carries on, and is shut down when it stops.
+        sVideoEncoder.setKeepWarm(false);
+        if (!sVideoEncoder.isRecording()) {
+            sVideoEncoder.release();
+        }
         releaseCamera();
         mGLSurfaceView.queueEvent(new Runnable() {
             @Override
@@ -236,6 +328,10 @@ public class CameraCaptureActivity extends Activity
         Log.d(TAG, "onDestroy");
         super.onDestroy();
         mCameraHandler.invalidateHandler();     // paranoia
+        if (isFinishing()) {
+            // Nobody's coming back to stop the recording.
+            sVideoEncoder.release();
+        }
     }
 
     @Override
@@ -481,6 +577,35 @@ public class CameraCaptureActivity extends Activity
             }
         }
     }
+
+    /**
+     * Creates the GLSurfaceView's context as GLES 3 where we can, so the ProgramCache can
+     * use program binaries.  Falls back to GLES 2.
+     */
+    static class Gles3ContextFactory implements GLSurfaceView.EGLContextFactory {
+        private static final int EGL_CONTEXT_CLIENT_VERSION = 0x3098;
+
+        @Override
+        public EGLContext createContext(EGL10 egl, EGLDisplay display, EGLConfig config) {
+            int[] attribList = { EGL_CONTEXT_CLIENT_VERSION, 3, EGL10.EGL_NONE };
+            EGLContext context = egl.eglCreateContext(display, config, EGL10.EGL_NO_CONTEXT,
+                    attribList);
+            if (context == null || context == EGL10.EGL_NO_CONTEXT) {
+                Log.d(TAG, "GLES 3 context not available, using GLES 2");
+                attribList[1] = 2;
+                context = egl.eglCreateContext(display, config, EGL10.EGL_NO_CONTEXT,
+                        attribList);
+            }
+            return context;
+        }
+
+        @Override
+        public void destroyContext(EGL10 egl, EGLDisplay display, EGLContext context) {
+            if (!egl.eglDestroyContext(display, context)) {
+                throw new RuntimeException("eglDestroyContext failed: " + egl.eglGetError());
+            }
+        }
+    }
 }
 
 /**
@@ -514,6 +639,8 @@ class CameraSurfaceRenderer implements GLSurfaceView.Renderer {
     private TextureMovieEncoder mVideoEncoder;
     // Ыайл для сохранения закодированного видео.
     private File mOutputFile;
+    // Profile to record with; set from another thread once the encoders have been checked.
+    private volatile EncoderProfile mEncoderProfile;
 
     // Объект для отрисовки полноэкранного прямоугольника.
     private FullFrameRect mFullScreen;
@@ -523,8 +650,27 @@ class CameraSurfaceRenderer implements GLSurfaceView.Renderer {
     // Идентификатор текстуры.
     private int mTextureId;
 
-    // ?
-    private DualTextureFullFrameRect mDFullScreen;
+    // Composites the camera textures for display when no filter is selected.
+    private CompositorProgram mCompositor;
+    private CompositorProgram.Layout mLayout = CompositorProgram.Layout.pip(2);
+    private final float[] mAdditionalSTMatrix = new float[16];
+    private final int[] mCompositeTextureIds = new int[2];
+    private final float[][] mCompositeTexMatrices = { mSTMatrix, mAdditionalSTMatrix };
+
+    // Frames are composited once into an offscreen texture, then copied to the display by
+    // mBlit and to the video encoder by the encoder thread.  The encoder reads the texture
+    // some time later, from its own context, so we rotate through a few of them, and don't
+    // render into one again until the encoder says it's done with it.
+    private static final int OFFSCREEN_COUNT = 3;
+    private final int[] mFramebuffers = new int[OFFSCREEN_COUNT];
+    private final int[] mOffscreenTextures = new int[OFFSCREEN_COUNT];
+    private final boolean[] mOffscreenBusy = new boolean[OFFSCREEN_COUNT];
+    private final int[] mOffscreenFrames = new int[OFFSCREEN_COUNT];   // encoder sequence
+    private int mNextOffscreen;
+    private int mOffscreenWidth = -1, mOffscreenHeight = -1;
+    private int mGlVersion;
+    private FullFrameRect mBlit;
+    private int mSurfaceWidth, mSurfaceHeight;
     // ?
     private int mAdditionalTextureId;
     // ?
@@ -582,6 +728,14 @@ class CameraSurfaceRenderer implements GLSurfaceView.Renderer {
         mNewFilter = CameraCaptureActivity.FILTER_NONE;
     }
 
+    /**
+     * Sets the profile to record with from the next recording on.  May be called on any
+     * thread.  Until it's called we record with the default profile.
+     */
+    public void setEncoderProfile(EncoderProfile profile) {
+        mEncoderProfile = profile;
+    }
+
     /**
      * Notifies the renderer thread that the activity is pausing.
      * <p>
@@ -598,6 +752,18 @@ class CameraSurfaceRenderer implements GLSurfaceView.Renderer {
             mFullScreen.release(false);     // assume the GLSurfaceView EGL context is about
             mFullScreen = null;             //  to be destroyed
         }
+        mCompositor = null;                 // ditto
+        if (mBlit != null) {
+            mBlit.release(false);
+            mBlit = null;
+        }
+        // The framebuffers and programs go with the context.
+        ProgramCache.getInstance().releaseContext(EGL14.eglGetCurrentContext());
+        for (int i = 0; i < OFFSCREEN_COUNT; i++) {
+            mOffscreenTextures[i] = mFramebuffers[i] = -1;
+            mOffscreenBusy[i] = false;
+        }
+        mOffscreenWidth = mOffscreenHeight = -1;
         mIncomingWidth = mIncomingHeight = -1;
     }
 
@@ -610,6 +776,17 @@ class CameraSurfaceRenderer implements GLSurfaceView.Renderer {
         mRecordingEnabled = isRecording;
     }
 
+    /**
+     * Changes how the cameras are arranged on screen.  This only updates the compositor's
+     * rectangle table; the program stays the same.
+     */
+    public void changeLayout(CompositorProgram.Layout layout) {
+        mLayout = layout;
+        if (mCompositor != null) {
+            mCompositor.setLayout(layout);
+        }
+    }
+
     /**
      * Changes the filter that we're applying to the camera preview.
      */
@@ -708,6 +885,10 @@ class CameraSurfaceRenderer implements GLSurfaceView.Renderer {
     public void onSurfaceCreated(GL10 unused, EGLConfig config) {
         Log.d(TAG, "onSurfaceCreated");
 
+        // New context, so nothing GlState knows about applies any more.
+        GlState.get().reset();
+        mGlVersion = GlUtil.isGles3() ? 3 : 2;
+
         // We're starting up or coming back.  Either way we've got a new EGLContext that will
         // need to be shared with the video encoder, so figure out if a recording is already
         // in progress.
@@ -718,12 +899,16 @@ class CameraSurfaceRenderer implements GLSurfaceView.Renderer {
             mRecordingStatus = RECORDING_OFF;
         }
 
-        // Set up the texture blitter that will be used for on-screen display.  This
-        // is *not* applied to the recording, because that uses a separate shader.
+        // Set up the texture blitter that draws the camera frame, with the selected filter,
+        // into the composite.  The composite is what goes to both the display and the
+        // recording.
         mFullScreen = new FullFrameRect(
                 new Texture2dProgram(Texture2dProgram.ProgramType.TEXTURE_EXT));
 
         mTextureId = mFullScreen.createTextureObject();
+        mCompositor = new CompositorProgram(mLayout);
+        mBlit = new FullFrameRect(
+                new Texture2dProgram(Texture2dProgram.ProgramType.TEXTURE_2D));
 
         // Create a SurfaceTexture, with an external texture, in this EGL context.  We don't
         // have a Looper in this thread -- GLSurfaceView doesn't create one -- so the frame
@@ -746,6 +931,129 @@ class CameraSurfaceRenderer implements GLSurfaceView.Renderer {
     @Override
     public void onSurfaceChanged(GL10 unused, int width, int height) {
         Log.d(TAG, "onSurfaceChanged " + width + "x" + height);
+        mSurfaceWidth = width;
+        mSurfaceHeight = height;
+    }
+
+    /**
+     * Prepares the offscreen framebuffers that frames are composited into, replacing the
+     * previous ones.
+     */
+    private void prepareFramebuffer(int width, int height) {
+        GlUtil.checkGlError("prepareFramebuffer start");
+        releaseFramebuffer();
+
+        int[] values = new int[1];
+        for (int i = 0; i < OFFSCREEN_COUNT; i++) {
+            // Create a texture object and bind it.  This will be the color buffer.
+            GLES20.glGenTextures(1, values, 0);
+            GlUtil.checkGlError("glGenTextures");
+            int texture = values[0];    // expected > 0
+            mOffscreenTextures[i] = texture;
+            GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, texture);
+            GlUtil.checkGlError("glBindTexture " + texture);
+
+            // Create texture storage.
+            GLES20.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, GLES20.GL_RGBA, width, height, 0,
+                    GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, null);
+
+            // Set parameters.  We're probably using non-power-of-two dimensions, so
+            // some values may not be available for use.
+            GLES20.glTexParameterf(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MIN_FILTER,
+                    GLES20.GL_LINEAR);
+            GLES20.glTexParameterf(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MAG_FILTER,
+                    GLES20.GL_LINEAR);
+            GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_S,
+                    GLES20.GL_CLAMP_TO_EDGE);
+            GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_T,
+                    GLES20.GL_CLAMP_TO_EDGE);
+            GlUtil.checkGlError("glTexParameter");
+
+            // Create framebuffer object and bind it.  We're only compositing flat layers, so
+            // there's no depth buffer.
+            GLES20.glGenFramebuffers(1, values, 0);
+            GlUtil.checkGlError("glGenFramebuffers");
+            int framebuffer = values[0];    // expected > 0
+            mFramebuffers[i] = framebuffer;
+            GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, framebuffer);
+            GlUtil.checkGlError("glBindFramebuffer " + framebuffer);
+
+            // Attach the texture (color buffer) to the framebuffer object.
+            GLES20.glFramebufferTexture2D(GLES20.GL_FRAMEBUFFER, GLES20.GL_COLOR_ATTACHMENT0,
+                    GLES20.GL_TEXTURE_2D, texture, 0);
+            GlUtil.checkGlError("glFramebufferTexture2D");
+
+            // See if GLES is happy with all this.
+            int status = GLES20.glCheckFramebufferStatus(GLES20.GL_FRAMEBUFFER);
+            if (status != GLES20.GL_FRAMEBUFFER_COMPLETE) {
+                throw new RuntimeException("Framebuffer not complete, status=" + status);
+            }
+            mOffscreenBusy[i] = false;
+        }
+
+        // Switch back to the default framebuffer.
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, 0);
+        mOffscreenWidth = width;
+        mOffscreenHeight = height;
+
+        GlUtil.checkGlError("prepareFramebuffer done");
+    }
+
+    /**
+     * Deletes the offscreen framebuffers and their textures, if we have them.  Frames the
+     * encoder hasn't drawn yet come out blank, which only happens when the size changes.
+     */
+    private void releaseFramebuffer() {
+        int[] values = new int[1];
+        for (int i = 0; i < OFFSCREEN_COUNT; i++) {
+            if (mOffscreenTextures[i] > 0) {
+                values[0] = mOffscreenTextures[i];
+                GLES20.glDeleteTextures(1, values, 0);
+                mOffscreenTextures[i] = -1;
+            }
+            if (mFramebuffers[i] > 0) {
+                values[0] = mFramebuffers[i];
+                GLES20.glDeleteFramebuffers(1, values, 0);
+                mFramebuffers[i] = -1;
+            }
+            mOffscreenBusy[i] = false;
+        }
+        mOffscreenWidth = mOffscreenHeight = -1;
+    }
+
+    /**
+     * Returns the index of an offscreen texture that the encoder isn't using, or -1 if it
+     * still has all of them.
+     */
+    private int acquireOffscreen() {
+        for (int i = 0; i < OFFSCREEN_COUNT; i++) {
+            int index = (mNextOffscreen + i) % OFFSCREEN_COUNT;
+            if (mOffscreenBusy[index] &&
+                    !mVideoEncoder.reclaimTexture(mOffscreenFrames[index])) {
+                continue;
+            }
+            mOffscreenBusy[index] = false;
+            mNextOffscreen = (index + 1) % OFFSCREEN_COUNT;
+            return index;
+        }
+        return -1;
+    }
+
+    /**
+     * Draws the camera frames into the current framebuffer: both cameras composited, or the
+     * main one through the selected filter.
+     */
+    private void drawScene() {
+        if (mCurrentFilter == CameraCaptureActivity.FILTER_NONE) {
+            // Show both cameras.  The filters only apply to the main one.
+            mAdditionalSurfaceTexture.getTransformMatrix(mAdditionalSTMatrix);
+            mCompositeTextureIds[0] = mTextureId;
+            mCompositeTextureIds[1] = mAdditionalTextureId;
+            mCompositor.draw(mCompositeTextureIds, mCompositeTexMatrices);
+        } else {
+            mFullScreen.drawFrame(mTextureId, mSTMatrix);
+        }
     }
 
     @RequiresApi(api = Build.VERSION_CODES.JELLY_BEAN_MR1)
@@ -769,8 +1077,22 @@ class CameraSurfaceRenderer implements GLSurfaceView.Renderer {
                 case RECORDING_OFF:
                     Log.d(TAG, "START recording");
                     // start recording
+                    EncoderProfile profile = mEncoderProfile;
+                    if (profile == null) {
+                        // Still checking the encoders.  Don't wait; H.264 is a safe bet.
+                        profile = CameraCaptureActivity.getDefaultEncoderProfile();
+                    }
+                    // Let the bit rate move so busy scenes don't blow through the storage
+                    // budget, or quiet ones waste it.
+                    TextureMovieEncoder.OutputConfig output =
+                            new TextureMovieEncoder.OutputConfig.Builder(mOutputFile, profile)
+                                    .setRateControl(profile.getBitRate() / 4,
+                                            profile.getBitRate() * 2)
+                                    .build();
                     mVideoEncoder.startRecording(new TextureMovieEncoder.EncoderConfig(
-                            mOutputFile, 640, 480, 1000000, EGL14.eglGetCurrentContext()));
+                            new TextureMovieEncoder.OutputConfig[] { output },
+                            EGL14.eglGetCurrentContext(),
+                            Texture2dProgram.ProgramType.TEXTURE_2D));
                     mRecordingStatus = RECORDING_ON;
                     break;
                 case RECORDING_RESUMED:
@@ -801,17 +1123,6 @@ class CameraSurfaceRenderer implements GLSurfaceView.Renderer {
             }
         }
 
-        // Set the video encoder's texture name.  We only need to do this once, but in the
-        // current implementation it has to happen after the video encoder is started, so
-        // we just do it here.
-        //
-        // TODO: be less lame.
-        mVideoEncoder.setTextureId(mTextureId);
-
-        // Tell the video encoder thread that a new frame is available.
-        // This will be ignored if we're not actually recording.
-        mVideoEncoder.frameAvailable(mSurfaceTexture);
-
         if (mIncomingWidth <= 0 || mIncomingHeight <= 0) {
             // Texture size isn't set yet.  This is only used for the filters, but to be
             // safe we can just skip drawing while we wait for the various races to resolve.
@@ -827,8 +1138,12 @@ class CameraSurfaceRenderer implements GLSurfaceView.Renderer {
             mFullScreen.getProgram().setTexSize(mIncomingWidth, mIncomingHeight);
             mIncomingSizeUpdated = false;
         }
+        if (mOffscreenWidth != mIncomingWidth || mOffscreenHeight != mIncomingHeight) {
+            prepareFramebuffer(mIncomingWidth, mIncomingHeight);
+        }
 
-        // Draw the video frame.
+        // Draw the video frame.  We render it once, into an offscreen texture, and the
+        // display and the encoder both copy it from there.
         mSurfaceTexture.getTransformMatrix(mSTMatrix);
 
         // ?
@@ -837,13 +1152,46 @@ class CameraSurfaceRenderer implements GLSurfaceView.Renderer {
 //        // ?
 //        mAdditionalTextureId
 
-        mFullScreen.drawFrame(mTextureId, mAdditionalTextureId, mSTMatrix);
+        int index = acquireOffscreen();
+        if (index < 0) {
+            // The encoder is behind and still has every texture.  Draw straight to the
+            // display, and leave this frame out of the recording.
+            if (VERBOSE) Log.d(TAG, "no free offscreen texture, frame not recorded");
+            GLES20.glViewport(0, 0, mSurfaceWidth, mSurfaceHeight);
+            drawScene();
+        } else {
+            int texture = mOffscreenTextures[index];
+            GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, mFramebuffers[index]);
+            GLES20.glViewport(0, 0, mOffscreenWidth, mOffscreenHeight);
+            drawScene();
+            GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+
+            if (mRecordingStatus != RECORDING_OFF) {
+                // Tell the video encoder thread that a new frame is available.  It reads the
+                // texture from its own context, so it fences or finishes our rendering first,
+                // depending on what both contexts support.  If it takes the frame, the
+                // texture is off limits until it's done.
+                int frame = mVideoEncoder.frameAvailable(texture, GlUtil.IDENTITY_MATRIX,
+                        mSurfaceTexture.getTimestamp(), mGlVersion);
+                if (frame != -1) {
+                    mOffscreenFrames[index] = frame;
+                    mOffscreenBusy[index] = true;
+                }
+            }
+
+            // Copy the frame to the display.
+            GLES20.glViewport(0, 0, mSurfaceWidth, mSurfaceHeight);
+            mBlit.drawFrame(texture, GlUtil.IDENTITY_MATRIX);
+        }
 
         // Draw a flashing box if we're recording.  This only appears on screen.
         showBox = (mRecordingStatus == RECORDING_ON);
         if (showBox && (++mFrameCount & 0x04) == 0) {
             drawBox();
         }
+
+        // GLSurfaceView swaps for us, so finish the frame here.
+        GlState.get().endFrame();
     }
 
     /**
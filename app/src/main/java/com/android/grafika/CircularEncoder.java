@@ -16,16 +16,26 @@
 
 package com.android.grafika;
 
+import android.media.AudioFormat;
+import android.media.AudioRecord;
 import android.media.MediaCodec;
 import android.media.MediaCodecInfo;
 import android.media.MediaFormat;
 import android.media.MediaMuxer;
+import android.media.MediaRecorder;
+import android.os.Build;
+import android.os.Bundle;
 import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.Looper;
 import android.os.Message;
 import android.util.Log;
 import android.view.Surface;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.lang.ref.WeakReference;
@@ -41,12 +51,31 @@ import java.nio.ByteBuffer;
  * which requires a bit more work for us but avoids allocations in the steady state.
  * <p>
  * Video must always start with a sync frame (a/k/a key frame, a/k/a I-frame).  When the
- * circular buffer wraps around, we either need to delete all of the data between the frame at
- * the head of the list and the next sync frame, or have the file save function know that
- * it needs to scan forward for a sync frame before it can start saving data.
+ * circular buffer wraps around, it deletes all of the data between the frame at the tail
+ * of the list and the next sync frame, so the saved video always starts at the oldest
+ * packet we're holding.
  * <p>
- * When we're told to save a snapshot, we create a MediaMuxer, write all the frames out,
- * and then go back to what we were doing.
+ * When we're told to save a snapshot, we pin the buffered frames so they can't be evicted,
+ * and hand them to a writer thread that creates a MediaMuxer and writes them out.  The
+ * encoder thread keeps draining the encoder in the meantime.  If the caller asked for some
+ * video after the trigger as well, the writer follows the head of the buffer, writing new
+ * packets as they arrive until the post-event deadline passes.
+ * <p>
+ * There may be more than one stream, e.g. one per camera.  Each stream has its own encoder
+ * and circular buffer.  A snapshot covers the same span of time in every stream: each one
+ * starts at the sync frame at or before the latest of the streams' oldest sync frames, and
+ * stops at the same deadline.  The streams can be written as tracks in a single file, or
+ * as separate files.  Either way the packets are copied straight out of the buffers, with
+ * no re-encoding.
+ * <p>
+ * Audio from the microphone can be buffered alongside the video.  It gets its own encoder
+ * and circular buffer, and is saved as one more stream, so it ends up interleaved with the
+ * video by presentation time.  When the streams go to separate files, the audio goes in
+ * the first one.
+ * <p>
+ * The video encoders can run in asynchronous mode, in which case they deliver output to the
+ * encoder thread as soon as it's ready, rather than waiting for frameAvailableSoon() to
+ * drain them.
  */
 public class CircularEncoder {
     private static final String TAG = MainActivity.TAG;
@@ -55,9 +84,24 @@ public class CircularEncoder {
     private static final String MIME_TYPE = "video/avc";    // H.264 Advanced Video Coding
     private static final int IFRAME_INTERVAL = 1;           // sync frame every second
 
+    // Heap buffers resize themselves to match what the encoder actually produces, up to
+    // this much memory per stream.
+    private static final long MAX_HEAP_BUFFER_BYTES = 64 * 1024 * 1024;
+
+    // Saves read back from the buffer while it's being filled, so with rate control the
+    // encoder only gets this share of the write throughput we've seen, leaving room for both.
+    private static final float RATE_CONTROL_WRITE_SHARE = 0.5f;
+
+    private static final String AUDIO_MIME_TYPE = "audio/mp4a-latm";    // AAC
+    private static final int AUDIO_SAMPLE_RATE = 44100;
+    private static final int AUDIO_BIT_RATE = 128000;
+    private static final int AUDIO_SAMPLES_PER_FRAME = 1024;            // AAC frame size
+
     private EncoderThread mEncoderThread;
-    private Surface mInputSurface;
-    private MediaCodec mEncoder;
+    private AudioThread mAudioThread;
+    private Stream[] mStreams;      // video streams, then the audio stream (if any)
+    private int mVideoStreamCount;
+    private int mBitRate;
 
     /**
      * Callback function definitions.  CircularEncoder caller must provide one.
@@ -71,6 +115,15 @@ public class CircularEncoder {
          */
         void fileSaveComplete(int status);
 
+        /**
+         * Called just before fileSaveComplete(), if any data was written.
+         *
+         * @param byteCount Number of bytes of encoded data written to the file.
+         * @param elapsedUsec Time spent in the muxer writing the file, in microseconds.
+         *     Time spent waiting for the post-event window to fill isn't included.
+         */
+        void fileSaveThroughput(long byteCount, long elapsedUsec);
+
         /**
          * Called occasionally.
          *
@@ -90,6 +143,91 @@ public class CircularEncoder {
      */
     public CircularEncoder(int width, int height, int bitRate, int frameRate, int desiredSpanSec,
             Callback cb) throws IOException {
+        this(1, width, height, bitRate, frameRate, desiredSpanSec, null, cb);
+    }
+
+    /**
+     * Configures encoder, and prepares the input Surface.
+     * <p>
+     * If ringFile is non-null, the encoded data is held in a memory-mapped file rather than
+     * on the heap.  Use this for spans of more than a minute or so.  The file is also a
+     * journal: if the process dies, pass it to recoverVideo() to get the buffered video back.
+     *
+     * @param width Width of encoded video, in pixels.  Should be a multiple of 16.
+     * @param height Height of encoded video, in pixels.  Usually a multiple of 16 (1080 is ok).
+     * @param bitRate Target bit rate, in bits.
+     * @param frameRate Expected frame rate.
+     * @param desiredSpanSec How many seconds of video we want to have in our buffer at any time.
+     * @param ringFile File to map the circular buffer onto, or null to use the heap.
+     */
+    public CircularEncoder(int width, int height, int bitRate, int frameRate, int desiredSpanSec,
+            File ringFile, Callback cb) throws IOException {
+        this(1, width, height, bitRate, frameRate, desiredSpanSec,
+                ringFile == null ? null : new File[] { ringFile }, cb);
+    }
+
+    /**
+     * Configures one encoder per stream, and prepares their input Surfaces.  All streams
+     * use the same encoder configuration.
+     *
+     * @param streamCount Number of streams, e.g. one per camera.
+     * @param width Width of encoded video, in pixels.  Should be a multiple of 16.
+     * @param height Height of encoded video, in pixels.  Usually a multiple of 16 (1080 is ok).
+     * @param bitRate Target bit rate for each stream, in bits.
+     * @param frameRate Expected frame rate.
+     * @param desiredSpanSec How many seconds of video we want to have in our buffer at any time.
+     * @param ringFiles Files to map the circular buffers onto, one per stream, or null to use
+     *     the heap.
+     */
+    public CircularEncoder(int streamCount, int width, int height, int bitRate, int frameRate,
+            int desiredSpanSec, File[] ringFiles, Callback cb) throws IOException {
+        this(streamCount, width, height, bitRate, frameRate, desiredSpanSec, ringFiles, false,
+                cb);
+    }
+
+    /**
+     * Configures one encoder per stream, and prepares their input Surfaces.  All streams
+     * use the same encoder configuration.
+     * <p>
+     * If recordAudio is set, we also record AAC audio from the microphone.  The caller
+     * must hold the RECORD_AUDIO permission.
+     *
+     * @param streamCount Number of video streams, e.g. one per camera.
+     * @param width Width of encoded video, in pixels.  Should be a multiple of 16.
+     * @param height Height of encoded video, in pixels.  Usually a multiple of 16 (1080 is ok).
+     * @param bitRate Target bit rate for each video stream, in bits.
+     * @param frameRate Expected frame rate.
+     * @param desiredSpanSec How many seconds of video we want to have in our buffer at any time.
+     * @param ringFiles Files to map the video circular buffers onto, one per stream, or null
+     *     to use the heap.  The audio buffer is always on the heap.
+     * @param recordAudio If set, buffer microphone audio along with the video.
+     */
+    public CircularEncoder(int streamCount, int width, int height, int bitRate, int frameRate,
+            int desiredSpanSec, File[] ringFiles, boolean recordAudio, Callback cb)
+            throws IOException {
+        this(streamCount, width, height, bitRate, frameRate, desiredSpanSec, ringFiles,
+                recordAudio, false, cb);
+    }
+
+    /**
+     * Configures one encoder per stream, and prepares their input Surfaces.  All streams
+     * use the same encoder configuration.
+     *
+     * @param streamCount Number of video streams, e.g. one per camera.
+     * @param width Width of encoded video, in pixels.  Should be a multiple of 16.
+     * @param height Height of encoded video, in pixels.  Usually a multiple of 16 (1080 is ok).
+     * @param bitRate Target bit rate for each video stream, in bits.
+     * @param frameRate Expected frame rate.
+     * @param desiredSpanSec How many seconds of video we want to have in our buffer at any time.
+     * @param ringFiles Files to map the video circular buffers onto, one per stream, or null
+     *     to use the heap.  The audio buffer is always on the heap.
+     * @param recordAudio If set, buffer microphone audio along with the video.
+     * @param asyncCodec If set, run the video encoders in asynchronous mode.  Requires API
+     *     23; ignored on older devices.
+     */
+    public CircularEncoder(int streamCount, int width, int height, int bitRate, int frameRate,
+            int desiredSpanSec, File[] ringFiles, boolean recordAudio, boolean asyncCodec,
+            Callback cb) throws IOException {
         // The goal is to size the buffer so that we can accumulate N seconds worth of video,
         // where N is passed in as "desiredSpanSec".  If the codec generates data at roughly
         // the requested bit rate, we can compute it as time * bitRate / bitsPerByte.
@@ -103,8 +241,13 @@ public class CircularEncoder {
             throw new RuntimeException("Requested time span is too short: " + desiredSpanSec +
                     " vs. " + (IFRAME_INTERVAL * 2));
         }
-        CircularEncoderBuffer encBuffer = new CircularEncoderBuffer(bitRate, frameRate,
-                desiredSpanSec);
+        if (streamCount < 1) {
+            throw new IllegalArgumentException("Need at least one stream");
+        }
+        if (ringFiles != null && ringFiles.length != streamCount) {
+            throw new IllegalArgumentException("Expected " + streamCount + " ring files, got " +
+                    ringFiles.length);
+        }
 
         MediaFormat format = MediaFormat.createVideoFormat(MIME_TYPE, width, height);
 
@@ -117,35 +260,177 @@ public class CircularEncoder {
         format.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, IFRAME_INTERVAL);
         if (VERBOSE) Log.d(TAG, "format: " + format);
 
-        // Create a MediaCodec encoder, and configure it with our format.  Get a Surface
-        // we can use for input and wrap it with a class that handles the EGL work.
-        mEncoder = MediaCodec.createEncoderByType(MIME_TYPE);
-        mEncoder.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
-        mInputSurface = mEncoder.createInputSurface();
-        mEncoder.start();
+        if (asyncCodec && Build.VERSION.SDK_INT < Build.VERSION_CODES.M) {
+            Log.w(TAG, "Asynchronous encoding needs API 23, falling back to polling");
+            asyncCodec = false;
+        }
+
+        mVideoStreamCount = streamCount;
+        mBitRate = bitRate;
+        mStreams = new Stream[recordAudio ? streamCount + 1 : streamCount];
+        for (int i = 0; i < streamCount; i++) {
+            CircularEncoderBuffer encBuffer;
+            if (ringFiles == null) {
+                encBuffer = new CircularEncoderBuffer(bitRate, frameRate, desiredSpanSec);
+                encBuffer.setAutoResize(MAX_HEAP_BUFFER_BYTES);
+            } else {
+                encBuffer = new CircularEncoderBuffer(bitRate, frameRate, desiredSpanSec,
+                        ringFiles[i]);
+            }
+            mStreams[i] = new Stream(encBuffer, false);
+        }
+
+        if (recordAudio) {
+            MediaFormat audioFormat = MediaFormat.createAudioFormat(AUDIO_MIME_TYPE,
+                    AUDIO_SAMPLE_RATE, 1);
+            audioFormat.setInteger(MediaFormat.KEY_AAC_PROFILE,
+                    MediaCodecInfo.CodecProfileLevel.AACObjectLC);
+            audioFormat.setInteger(MediaFormat.KEY_BIT_RATE, AUDIO_BIT_RATE);
+            if (VERBOSE) Log.d(TAG, "audio format: " + audioFormat);
+
+            // Every AAC frame is a sync frame, so the "frame rate" is just the number of
+            // AAC frames per second.
+            int audioFrameRate = (AUDIO_SAMPLE_RATE + AUDIO_SAMPLES_PER_FRAME - 1) /
+                    AUDIO_SAMPLES_PER_FRAME;
+            CircularEncoderBuffer encBuffer = new CircularEncoderBuffer(AUDIO_BIT_RATE,
+                    audioFrameRate, desiredSpanSec);
+
+            MediaCodec encoder = MediaCodec.createEncoderByType(AUDIO_MIME_TYPE);
+            encoder.configure(audioFormat, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+            encoder.start();
+
+            Stream stream = new Stream(encBuffer, true);
+            stream.mEncoder = encoder;
+            mStreams[streamCount] = stream;
+        }
 
-        // Start the encoder thread last.  That way we're sure it can see all of the state
-        // we've initialized.
-        mEncoderThread = new EncoderThread(mEncoder, encBuffer, cb);
+        // Start the encoder thread before the video encoders.  Asynchronous encoders deliver
+        // their output to it, so it has to be there first.  It won't look at a stream until
+        // we send it a message or the stream's encoder produces output, which can't happen
+        // before the encoder is started below.
+        mEncoderThread = new EncoderThread(mStreams, cb);
         mEncoderThread.start();
         mEncoderThread.waitUntilReady();
+
+        for (int i = 0; i < streamCount; i++) {
+            Stream stream = mStreams[i];
+            if (asyncCodec) {
+                stream.mAsyncEncoder = new MediaCodecEncoder(format,
+                        mEncoderThread.getHandler());
+                stream.mInputSurface = stream.mAsyncEncoder.getInputSurface();
+                stream.mEngine = mEncoderThread.createEngine(stream);
+                stream.mEngine.start();
+            } else {
+                // Create a MediaCodec encoder, and configure it with our format.  Get a
+                // Surface we can use for input and wrap it with a class that handles the
+                // EGL work.
+                MediaCodec encoder = CodecCapabilityCache.createVideoEncoder(format);
+                encoder.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+                stream.mInputSurface = encoder.createInputSurface();
+                encoder.start();
+                stream.mEncoder = encoder;
+            }
+        }
+
+        if (recordAudio) {
+            mAudioThread = new AudioThread(mStreams[streamCount].mEncoder,
+                    mEncoderThread.getHandler());
+            mAudioThread.start();
+        }
     }
 
     /**
-     * Returns the encoder's input surface.
+     * Returns the number of video streams.
+     */
+    public int getStreamCount() {
+        return mVideoStreamCount;
+    }
+
+    /**
+     * Returns the encoder's input surface.  If there's more than one stream, this is the
+     * first stream's surface.
      */
     public Surface getInputSurface() {
-        return mInputSurface;
+        return getInputSurface(0);
+    }
+
+    /**
+     * Returns the input surface for the specified stream.
+     */
+    public Surface getInputSurface(int stream) {
+        return mStreams[stream].mInputSurface;
+    }
+
+    /**
+     * Copies the counters for the specified stream into "stats".  If audio is being
+     * recorded, its stream number is getStreamCount().
+     * <p>
+     * May be called from any thread.  It doesn't wait for the encoder thread, so it's cheap
+     * enough to poll from the UI or a metrics exporter.
+     */
+    public void getStats(int stream, CircularEncoderStats stats) {
+        mStreams[stream].mEncBuffer.getStats(stats);
+    }
+
+    /**
+     * Lets the video encoders' bit rates float between the given bounds, so that what they
+     * actually produce stays close to the bit rate we were created with.
+     * <p>
+     * Each stream's controller watches the stream's output.  It also turns the rate down if
+     * the buffer holds less than the desired span once it has filled, or if saves show that
+     * storage can't keep up.  Needs API 19; ignored on older devices.
+     */
+    public void setRateControl(int minBitRate, int maxBitRate) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.KITKAT) {
+            Log.w(TAG, "Bit rate control needs API 19");
+            return;
+        }
+        for (int i = 0; i < mVideoStreamCount; i++) {
+            final Stream stream = mStreams[i];
+            stream.mRateController = new BitrateController(mBitRate, minBitRate, maxBitRate,
+                    new BitrateController.Encoder() {
+                @Override
+                public void setBitRate(int bitRate) {
+                    if (VERBOSE) Log.d(TAG, "setting bit rate to " + bitRate);
+                    if (stream.mAsyncEncoder != null) {
+                        stream.mAsyncEncoder.setBitRate(bitRate);
+                    } else {
+                        Bundle params = new Bundle();
+                        params.putInt(MediaCodec.PARAMETER_KEY_VIDEO_BITRATE, bitRate);
+                        stream.mEncoder.setParameters(params);
+                    }
+                }
+            });
+            stream.mRateController.setWriteShare(RATE_CONTROL_WRITE_SHARE);
+        }
     }
 
     /**
      * Shuts down the encoder thread, and releases encoder resources.
      * <p>
-     * Does not return until the encoder thread has stopped.
+     * Does not return until the encoder and writer threads have stopped.  A save still in
+     * progress is finished with what has been written so far, and reported through
+     * Callback#fileSaveComplete() before this returns.
      */
     public void shutdown() {
         if (VERBOSE) Log.d(TAG, "releasing encoder objects");
 
+        // Stop feeding the audio encoder, and stop the asynchronous encoders, first, so
+        // nothing gets sent to a dead thread.
+        if (mAudioThread != null) {
+            mAudioThread.stopRecording();
+            mAudioThread = null;
+        }
+        // stop() waits for any callback in progress on the encoder thread.  The field is
+        // left set: the encoder thread's rate controller reads it, and a released encoder
+        // ignores the calls.
+        for (Stream stream : mStreams) {
+            if (stream.mAsyncEncoder != null) {
+                stream.mAsyncEncoder.stop();
+                stream.mAsyncEncoder.release();
+            }
+        }
+
         Handler handler = mEncoderThread.getHandler();
         handler.sendMessage(handler.obtainMessage(EncoderThread.EncoderHandler.MSG_SHUTDOWN));
         try {
@@ -154,10 +439,12 @@ public class CircularEncoder {
             Log.w(TAG, "Encoder thread join() was interrupted", ie);
         }
 
-        if (mEncoder != null) {
-            mEncoder.stop();
-            mEncoder.release();
-            mEncoder = null;
+        for (Stream stream : mStreams) {
+            if (stream.mEncoder != null) {
+                stream.mEncoder.stop();
+                stream.mEncoder.release();
+                stream.mEncoder = null;
+            }
         }
     }
 
@@ -174,6 +461,8 @@ public class CircularEncoder {
      * notifies us first and then sends the frame, we guarantee that the output buffers
      * were emptied, and it will be impossible for a single additional frame to block
      * indefinitely.
+     * <p>
+     * With multiple streams, call this once before submitting a frame to each of them.
      */
     public void frameAvailableSoon() {
         Handler handler = mEncoderThread.getHandler();
@@ -186,14 +475,310 @@ public class CircularEncoder {
      * data will be written as a .mp4 file.  The call returns immediately.  When the file
      * save completes, the callback will be notified.
      * <p>
-     * The file generation is performed on the encoder thread, which means we won't be
-     * draining the output buffers while this runs.  It would be wise to stop submitting
-     * frames during this time.
+     * The file generation is performed on a separate writer thread, so it's fine to keep
+     * submitting frames while this runs.  Frames that arrive after the call are not included.
+     * Only one save may be in progress at a time.
      */
     public void saveVideo(File outputFile) {
+        saveVideo(outputFile, 0);
+    }
+
+    /**
+     * Initiates saving the currently-buffered frames, plus the frames encoded over the next
+     * postEventMsec milliseconds, to the specified output file.  The call returns
+     * immediately.  When the file save completes, the callback will be notified.
+     * <p>
+     * The frames that follow the trigger are written as they come out of the encoder, so
+     * the caller must keep submitting frames until the save completes.  The circular buffer
+     * must be large enough to hold the pre-event span, plus whatever the writer hasn't
+     * caught up with yet.
+     * <p>
+     * If there's more than one stream, each becomes a track in the file.
+     */
+    public void saveVideo(File outputFile, int postEventMsec) {
+        Handler handler = mEncoderThread.getHandler();
+        handler.sendMessage(handler.obtainMessage(
+                EncoderThread.EncoderHandler.MSG_SAVE_VIDEO, postEventMsec, 0,
+                new File[] { outputFile }));
+    }
+
+    /**
+     * Like {@link #saveVideo(File, int)}, but writes each stream to its own file.
+     *
+     * @param outputFiles One file per stream.
+     */
+    public void saveVideo(File[] outputFiles, int postEventMsec) {
+        if (outputFiles.length != mVideoStreamCount) {
+            throw new IllegalArgumentException("Expected " + mVideoStreamCount +
+                    " output files, got " + outputFiles.length);
+        }
         Handler handler = mEncoderThread.getHandler();
         handler.sendMessage(handler.obtainMessage(
-                EncoderThread.EncoderHandler.MSG_SAVE_VIDEO, outputFile));
+                EncoderThread.EncoderHandler.MSG_SAVE_VIDEO, postEventMsec, 0,
+                outputFiles.clone()));
+    }
+
+    /**
+     * Muxes the packets recovered from a circular buffer journal into a .mp4 file.  Use this
+     * after a crash, on the ring files passed to the constructor.
+     *
+     * @return The number of packets written.  If zero, no output file was created.
+     * @throws IOException If the journal can't be read, or the output can't be written.
+     */
+    public static int recoverVideo(File journalFile, File outputFile) throws IOException {
+        CircularEncoderJournal.Recovery recovery = CircularEncoderJournal.recover(journalFile);
+        int count = recovery.getPacketCount();
+        if (count == 0 || recovery.getFormat().length == 0) {
+            Log.w(TAG, "Nothing to recover from " + journalFile);
+            return 0;
+        }
+
+        MediaFormat format = decodeFormat(recovery.getFormat());
+        int maxLength = 0;
+        for (int i = 0; i < count; i++) {
+            maxLength = Math.max(maxLength, recovery.getLength(i));
+        }
+        ByteBuffer buf = ByteBuffer.allocateDirect(maxLength);
+        MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+
+        MediaMuxer muxer = new MediaMuxer(outputFile.getPath(),
+                MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
+        try {
+            int track = muxer.addTrack(format);
+            muxer.start();
+            for (int i = 0; i < count; i++) {
+                buf.clear();
+                recovery.getPacket(i, buf);
+                buf.flip();
+                info.set(0, buf.limit(), recovery.getPtsUsec(i), recovery.getFlags(i));
+                muxer.writeSampleData(track, buf, info);
+            }
+            muxer.stop();
+        } finally {
+            muxer.release();
+        }
+        Log.d(TAG, "Recovered " + count + " packets from " + journalFile);
+        return count;
+    }
+
+    // Format keys we carry through the journal.  The codec-specific data is what matters
+    // to the muxer; the rest is needed to create a MediaFormat at all.
+    private static final String[] JOURNAL_INT_KEYS = {
+            MediaFormat.KEY_WIDTH, MediaFormat.KEY_HEIGHT,
+            MediaFormat.KEY_SAMPLE_RATE, MediaFormat.KEY_CHANNEL_COUNT };
+    private static final String[] JOURNAL_BUFFER_KEYS = { "csd-0", "csd-1", "csd-2" };
+
+    /**
+     * Serializes the parts of an encoder output format that MediaMuxer needs.
+     */
+    private static byte[] encodeFormat(MediaFormat format) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeUTF(format.getString(MediaFormat.KEY_MIME));
+            for (String key : JOURNAL_INT_KEYS) {
+                out.writeBoolean(format.containsKey(key));
+                if (format.containsKey(key)) {
+                    out.writeInt(format.getInteger(key));
+                }
+            }
+            for (String key : JOURNAL_BUFFER_KEYS) {
+                ByteBuffer buf = format.containsKey(key) ? format.getByteBuffer(key) : null;
+                out.writeBoolean(buf != null);
+                if (buf != null) {
+                    ByteBuffer dup = buf.duplicate();
+                    dup.position(0);
+                    byte[] data = new byte[dup.remaining()];
+                    dup.get(data);
+                    out.writeInt(data.length);
+                    out.write(data);
+                }
+            }
+            out.close();
+        } catch (IOException ioe) {
+            throw new RuntimeException(ioe);    // not expected for an in-memory stream
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Rebuilds a MediaFormat from the output of encodeFormat().
+     */
+    private static MediaFormat decodeFormat(byte[] encoded) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(encoded));
+        MediaFormat format = new MediaFormat();
+        format.setString(MediaFormat.KEY_MIME, in.readUTF());
+        for (String key : JOURNAL_INT_KEYS) {
+            if (in.readBoolean()) {
+                format.setInteger(key, in.readInt());
+            }
+        }
+        for (String key : JOURNAL_BUFFER_KEYS) {
+            if (in.readBoolean()) {
+                byte[] data = new byte[in.readInt()];
+                in.readFully(data);
+                format.setByteBuffer(key, ByteBuffer.wrap(data));
+            }
+        }
+        return format;
+    }
+
+    /**
+     * One encoder, and the circular buffer it feeds.
+     */
+    private static class Stream {
+        // ----- set up before the encoder thread first looks at the stream -----
+        MediaCodec mEncoder;                // null in asynchronous mode
+        MediaCodecEncoder mAsyncEncoder;    // null unless in asynchronous mode
+        AsyncEncoderEngine<MediaFormat> mEngine;
+        Surface mInputSurface;              // null for audio
+        final CircularEncoderBuffer mEncBuffer;
+        final boolean mIsAudio;
+
+        // ----- accessed exclusively by encoder thread -----
+        MediaFormat mEncodedFormat;
+        long mLastPtsUsec;
+
+        // Set by setRateControl(), then driven by the encoder thread.  Video only.
+        volatile BitrateController mRateController;
+
+        // ----- accessed exclusively by writer thread -----
+        int mSaveMuxerIndex;
+        int mSaveTrack;
+        int mSaveFirstIndex;
+        int mSaveLastIndex;
+        boolean mSaveDone;
+
+        Stream(CircularEncoderBuffer encBuffer, boolean isAudio) {
+            mEncBuffer = encBuffer;
+            mIsAudio = isAudio;
+        }
+
+        /**
+         * Returns the index of the next packet to save, or -1 if it isn't available yet.
+         */
+        int getNextSaveIndex() {
+            if (mSaveLastIndex < 0) {
+                return mSaveFirstIndex;
+            }
+            return mEncBuffer.getNextPinnedIndex(mSaveLastIndex);
+        }
+    }
+
+    /**
+     * Reads PCM samples from the microphone and feeds them to the audio encoder.
+     * <p>
+     * We block in AudioRecord.read(), so this needs a thread of its own.  It only touches the
+     * encoder's input side; the encoder thread drains the output, same as for video.  After
+     * each block we poke the encoder thread so it doesn't have to wait for the next video
+     * frame to pick up the audio.
+     * <p>
+     * Reads go straight into the encoder's input buffers, so there's no allocation in the
+     * steady state.
+     */
+    private static class AudioThread extends Thread {
+        private final MediaCodec mEncoder;
+        private final Handler mEncoderHandler;
+        private volatile boolean mStopped;
+
+        public AudioThread(MediaCodec encoder, Handler encoderHandler) {
+            super("CircularEncoderAudio");
+            mEncoder = encoder;
+            mEncoderHandler = encoderHandler;
+        }
+
+        @Override
+        public void run() {
+            final int TIMEOUT_USEC = 10000;
+            int minBufferSize = AudioRecord.getMinBufferSize(AUDIO_SAMPLE_RATE,
+                    AudioFormat.CHANNEL_IN_MONO, AudioFormat.ENCODING_PCM_16BIT);
+            int bufferSize = Math.max(minBufferSize, AUDIO_SAMPLES_PER_FRAME * 2 * 10);
+            AudioRecord audioRecord = openAudioRecord(bufferSize);
+            if (audioRecord == null) {
+                // Nobody would catch an exception on this thread, so carry on without audio.
+                mEncoderHandler.sendMessage(mEncoderHandler.obtainMessage(
+                        EncoderThread.EncoderHandler.MSG_AUDIO_FAILED));
+                return;
+            }
+
+            Log.d(TAG, "audio thread starting");
+            try {
+                ByteBuffer[] inputBuffers = mEncoder.getInputBuffers();
+                long lastPtsUsec = 0;
+                while (!mStopped) {
+                    int index = mEncoder.dequeueInputBuffer(TIMEOUT_USEC);
+                    if (index < 0) {
+                        continue;
+                    }
+                    ByteBuffer inputBuf = inputBuffers[index];
+                    inputBuf.clear();
+                    int len = audioRecord.read(inputBuf, inputBuf.capacity());
+                    if (len < 0) {
+                        Log.w(TAG, "AudioRecord.read failed: " + len);
+                        len = 0;
+                    }
+
+                    // The video timestamps come from the camera, which uses the same clock
+                    // as System.nanoTime().  The samples we just got were captured over the
+                    // span leading up to now, so back up by their duration.
+                    long durationUsec = (len / 2) * 1000000L / AUDIO_SAMPLE_RATE;
+                    long ptsUsec = System.nanoTime() / 1000 - durationUsec;
+                    if (ptsUsec <= lastPtsUsec) {
+                        ptsUsec = lastPtsUsec + 1;      // must be strictly increasing
+                    }
+                    lastPtsUsec = ptsUsec;
+
+                    mEncoder.queueInputBuffer(index, 0, len, ptsUsec, 0);
+                    mEncoderHandler.sendMessage(mEncoderHandler.obtainMessage(
+                            EncoderThread.EncoderHandler.MSG_AUDIO_AVAILABLE));
+                }
+            } finally {
+                audioRecord.stop();
+                audioRecord.release();
+            }
+            Log.d(TAG, "audio thread done");
+        }
+
+        /**
+         * Creates an AudioRecord and starts it.  Returns null, after logging the reason, if
+         * the microphone isn't available.
+         */
+        private static AudioRecord openAudioRecord(int bufferSize) {
+            AudioRecord audioRecord;
+            try {
+                audioRecord = new AudioRecord(MediaRecorder.AudioSource.MIC,
+                        AUDIO_SAMPLE_RATE, AudioFormat.CHANNEL_IN_MONO,
+                        AudioFormat.ENCODING_PCM_16BIT, bufferSize);
+            } catch (IllegalArgumentException iae) {
+                Log.w(TAG, "AudioRecord creation failed, recording video only", iae);
+                return null;
+            }
+            if (audioRecord.getState() != AudioRecord.STATE_INITIALIZED) {
+                Log.w(TAG, "AudioRecord init failed, recording video only");
+                audioRecord.release();
+                return null;
+            }
+            try {
+                audioRecord.startRecording();
+            } catch (IllegalStateException ise) {
+                Log.w(TAG, "AudioRecord start failed, recording video only", ise);
+                audioRecord.release();
+                return null;
+            }
+            return audioRecord;
+        }
+
+        /**
+         * Stops recording, and waits for the thread to finish.
+         */
+        public void stopRecording() {
+            mStopped = true;
+            try {
+                join();
+            } catch (InterruptedException ie) {
+                Log.w(TAG, "Audio thread join() was interrupted", ie);
+            }
+        }
     }
 
     /**
@@ -204,33 +789,54 @@ public class CircularEncoder {
      * input surface.  We will see data appear at the decoder output, so we can either use
      * an infinite timeout on dequeueOutputBuffer() or wait() on an object and require the
      * calling app wake us.  It's very useful to have all of the buffer management local to
-     * this thread -- avoids synchronization -- so we want to do the file muxing in here.
-     * So, it's best to sleep on an object and do something appropriate when awakened.
+     * this thread -- avoids synchronization -- so it's best to sleep on an object and do
+     * something appropriate when awakened.
+     * <p>
+     * File muxing is slow, so it's done on a writer thread owned by this one.  The buffer
+     * pins the packets being written, so the writer can read them without locking while we
+     * keep adding new ones.  The writer posts a message back when it's done, and we unpin
+     * and notify the callback from here.
      * <p>
      * This class does not manage the MediaCodec encoder startup/shutdown.  The encoder
      * should be fully started before the thread is created, and not shut down until this
      * thread has been joined.
      */
     private static class EncoderThread extends Thread {
-        private MediaCodec mEncoder;
-        private MediaFormat mEncodedFormat;
+        private Stream[] mStreams;
         private MediaCodec.BufferInfo mBufferInfo;
 
         private EncoderHandler mHandler;
-        private CircularEncoderBuffer mEncBuffer;
         private CircularEncoder.Callback mCallback;
         private int mFrameNum;
 
+        private HandlerThread mWriterThread;
+        private Handler mWriterHandler;
+        private Runnable mWriteMoreRunnable;
+
+        // ----- accessed exclusively by writer thread -----
+        private MediaCodec.BufferInfo mSaveBufferInfo;
+        private MediaMuxer[] mSaveMuxers;
+        private boolean[] mSaveMuxerStarted;
+        private int[] mSaveMuxerSamples;
+        private long mSaveDeadlineUsec;
+        private long mSaveByteCount;
+        private long mSaveWriteNsec;        // time spent in the muxer
+
         private final Object mLock = new Object();
         private volatile boolean mReady = false;
 
-        public EncoderThread(MediaCodec mediaCodec, CircularEncoderBuffer encBuffer,
-                CircularEncoder.Callback callback) {
-            mEncoder = mediaCodec;
-            mEncBuffer = encBuffer;
+        public EncoderThread(Stream[] streams, CircularEncoder.Callback callback) {
+            mStreams = streams;
             mCallback = callback;
 
             mBufferInfo = new MediaCodec.BufferInfo();
+            mSaveBufferInfo = new MediaCodec.BufferInfo();
+            mWriteMoreRunnable = new Runnable() {
+                @Override
+                public void run() {
+                    writeMore();
+                }
+            };
         }
 
         /**
@@ -242,6 +848,9 @@ public class CircularEncoder {
         public void run() {
             Looper.prepare();
             mHandler = new EncoderHandler(this);    // must create on encoder thread
+            mWriterThread = new HandlerThread("CircularEncoderWriter");
+            mWriterThread.start();
+            mWriterHandler = new Handler(mWriterThread.getLooper());
             Log.d(TAG, "encoder thread ready");
             synchronized (mLock) {
                 mReady = true;
@@ -285,29 +894,109 @@ public class CircularEncoder {
             return mHandler;
         }
 
+        /**
+         * Drains all pending output from every stream's encoder.
+         */
+        public void drainEncoders() {
+            for (Stream stream : mStreams) {
+                if (stream.mEncoder != null) {
+                    drainEncoder(stream);
+                }
+            }
+        }
+
+        /**
+         * Creates the engine that takes output from a stream's asynchronous encoder.  The
+         * engine's calls arrive on the encoder thread.
+         */
+        AsyncEncoderEngine<MediaFormat> createEngine(final Stream stream) {
+            return new AsyncEncoderEngine<MediaFormat>(stream.mAsyncEncoder,
+                    new AsyncEncoderEngine.Sink<MediaFormat>() {
+                @Override
+                public void onFormat(MediaFormat format) {
+                    formatChanged(stream, format);
+                }
+
+                @Override
+                public void onPacket(ByteBuffer data, int flags, long ptsUsec) {
+                    packetAvailable(stream, data, flags, ptsUsec);
+                    feedWriter();
+                }
+
+                @Override
+                public void onEndOfStream() {
+                    Log.w(TAG, "reached end of stream unexpectedly");
+                }
+            });
+        }
+
+        /**
+         * Records a stream's output format.
+         */
+        private void formatChanged(Stream stream, MediaFormat format) {
+            // Should happen before receiving buffers, and should only happen once.
+            // The MediaFormat contains the csd-0 and csd-1 keys, which we'll need
+            // for MediaMuxer.  It's unclear what else MediaMuxer might want, so
+            // rather than extract the codec-specific data and reconstruct a new
+            // MediaFormat later, we just grab it here and keep it around.
+            stream.mEncodedFormat = format;
+            Log.d(TAG, "encoder output format changed: " + format);
+            stream.mEncBuffer.setJournalFormat(encodeFormat(format));
+        }
+
+        /**
+         * Adds an encoded packet to a stream's circular buffer.
+         */
+        private void packetAvailable(Stream stream, ByteBuffer data, int flags, long ptsUsec) {
+            // Every AAC frame can be decoded on its own, but the encoder doesn't
+            // necessarily say so.  The buffer needs to know.
+            if (stream.mIsAudio) {
+                flags |= MediaCodec.BUFFER_FLAG_SYNC_FRAME;
+            }
+            int size = data.remaining();
+            stream.mEncBuffer.add(data, flags, ptsUsec);
+            stream.mLastPtsUsec = ptsUsec;
+
+            // The timestamps come from System.nanoTime(), so this is how long
+            // the packet took to get through the encoder and to us.
+            CircularEncoderStats stats = stream.mEncBuffer.getLiveStats();
+            stats.recordDrainLatency(System.nanoTime() / 1000 - ptsUsec);
+
+            BitrateController controller = stream.mRateController;
+            if (controller != null) {
+                // Until something has been evicted the buffer is still filling, and its
+                // span says nothing about whether it's big enough.
+                if (stats.dataEvictions + stats.metaEvictions != 0) {
+                    long desiredUsec = stream.mEncBuffer.getDesiredSpanSec() * 1000000L;
+                    controller.setSpanRatio(
+                            stream.mEncBuffer.computeTimeSpanUsec() / (float) desiredUsec);
+                }
+                controller.onPacket(size, ptsUsec);
+            }
+
+            if (VERBOSE) {
+                Log.d(TAG, "sent " + size + " bytes to buffer, ts=" + ptsUsec);
+            }
+        }
+
         /**
          * Drains all pending output from the decoder, and adds it to the circular buffer.
          */
-        public void drainEncoder() {
+        public void drainEncoder(Stream stream) {
             final int TIMEOUT_USEC = 0;     // no timeout -- check for buffers, bail if none
 
-            ByteBuffer[] encoderOutputBuffers = mEncoder.getOutputBuffers();
+            MediaCodec encoder = stream.mEncoder;
+            ByteBuffer[] encoderOutputBuffers = encoder.getOutputBuffers();
             while (true) {
-                int encoderStatus = mEncoder.dequeueOutputBuffer(mBufferInfo, TIMEOUT_USEC);
+                int encoderStatus = encoder.dequeueOutputBuffer(mBufferInfo, TIMEOUT_USEC);
                 if (encoderStatus == MediaCodec.INFO_TRY_AGAIN_LATER) {
                     // no output available yet
                     break;
                 } else if (encoderStatus == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
                     // not expected for an encoder
-                    encoderOutputBuffers = mEncoder.getOutputBuffers();
+                    encoderOutputBuffers = encoder.getOutputBuffers();
                 } else if (encoderStatus == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
-                    // Should happen before receiving buffers, and should only happen once.
-                    // The MediaFormat contains the csd-0 and csd-1 keys, which we'll need
-                    // for MediaMuxer.  It's unclear what else MediaMuxer might want, so
-                    // rather than extract the codec-specific data and reconstruct a new
-                    // MediaFormat later, we just grab it here and keep it around.
-                    mEncodedFormat = mEncoder.getOutputFormat();
-                    Log.d(TAG, "encoder output format changed: " + mEncodedFormat);
+                    formatChanged(stream, encoder.getOutputFormat());
                 } else if (encoderStatus < 0) {
                     Log.w(TAG, "unexpected result from encoder.dequeueOutputBuffer: " +
                             encoderStatus);
@@ -333,16 +1022,11 @@ public class CircularEncoder {
                         encodedData.position(mBufferInfo.offset);
                         encodedData.limit(mBufferInfo.offset + mBufferInfo.size);
 
-                        mEncBuffer.add(encodedData, mBufferInfo.flags,
+                        packetAvailable(stream, encodedData, mBufferInfo.flags,
                                 mBufferInfo.presentationTimeUs);
-
-                        if (VERBOSE) {
-                            Log.d(TAG, "sent " + mBufferInfo.size + " bytes to muxer, ts=" +
-                                    mBufferInfo.presentationTimeUs);
-                        }
                     }
 
-                    mEncoder.releaseOutputBuffer(encoderStatus, false);
+                    encoder.releaseOutputBuffer(encoderStatus, false);
 
                     if ((mBufferInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
                         Log.w(TAG, "reached end of stream unexpectedly");
@@ -359,75 +1043,343 @@ public class CircularEncoder {
          */
         void frameAvailableSoon() {
             if (VERBOSE) Log.d(TAG, "frameAvailableSoon");
-            drainEncoder();
+            drainEncoders();
+            feedWriter();
 
             mFrameNum++;
             if ((mFrameNum % 10) == 0) {        // TODO: should base off frame rate or clock?
-                mCallback.bufferStatus(mEncBuffer.computeTimeSpanUsec());
+                // Report the shortest span, since that's all we can save from every stream.
+                long spanUsec = Long.MAX_VALUE;
+                for (Stream stream : mStreams) {
+                    spanUsec = Math.min(spanUsec, stream.mEncBuffer.computeTimeSpanUsec());
+                }
+                mCallback.bufferStatus(spanUsec);
+            }
+        }
+
+        /**
+         * Drains the audio encoder output.  The audio thread sends this after each block of
+         * samples it submits, since audio doesn't arrive in step with the video frames.
+         */
+        void audioAvailable() {
+            drainEncoder(mStreams[mStreams.length - 1]);
+            feedWriter();
+        }
+
+        /**
+         * Drops the audio stream after the audio thread failed to open the microphone, so
+         * we can carry on saving video.  The audio encoder is still released at shutdown.
+         * <p>
+         * A save can't be in progress, since saveVideo() needs data from every stream and
+         * the audio stream never got any, so the writer thread isn't looking at mStreams.
+         */
+        void audioFailed() {
+            Stream last = mStreams[mStreams.length - 1];
+            if (!last.mIsAudio) {
+                return;
+            }
+            Stream[] streams = new Stream[mStreams.length - 1];
+            System.arraycopy(mStreams, 0, streams, 0, streams.length);
+            mStreams = streams;
+        }
+
+        /**
+         * If a save is in progress, lets the writer see what we just added.
+         */
+        private void feedWriter() {
+            if (mStreams[0].mEncBuffer.isPinned()) {
+                for (Stream stream : mStreams) {
+                    stream.mEncBuffer.extendPin();
+                }
+                mWriterHandler.post(mWriteMoreRunnable);
             }
         }
 
         /**
-         * Saves the encoder output to a .mp4 file.
+         * Starts saving the encoder output to one or more .mp4 files.
          * <p>
          * We'll drain the encoder to get any lingering data, but we're not going to shut
          * the encoder down or use other tricks to try to "flush" the encoder.  This may
          * mean we miss the last couple of submitted frames if they're still working their
          * way through.
          * <p>
-         * We may want to reset the buffer after this -- if they hit "capture" again right
-         * away they'll end up saving video with a gap where we paused to write the file.
+         * The buffered packets are pinned and handed to the writer thread.  We go back to
+         * draining the encoder while the file is written.
+         *
+         * @param outputFiles A single file for all streams, or one file per stream.
          */
-        void saveVideo(File outputFile) {
-            if (VERBOSE) Log.d(TAG, "saveVideo " + outputFile);
+        void saveVideo(final File[] outputFiles, int postEventMsec) {
+            if (VERBOSE) Log.d(TAG, "saveVideo " + outputFiles[0] + " +" + postEventMsec + "ms");
 
-            int index = mEncBuffer.getFirstIndex();
-            if (index < 0) {
-                Log.w(TAG, "Unable to get first index");
-                mCallback.fileSaveComplete(1);
+            if (mStreams[0].mEncBuffer.isPinned()) {
+                Log.w(TAG, "File save already in progress");
+                mCallback.fileSaveComplete(3);
                 return;
             }
 
-            MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
-            MediaMuxer muxer = null;
-            int result = -1;
+            drainEncoders();
+
+            // Find the common window.  It starts at the newest of the oldest sync frames,
+            // and ends at the oldest of the newest packets.
+            long startPtsUsec = Long.MIN_VALUE;
+            long endPtsUsec = Long.MAX_VALUE;
+            for (Stream stream : mStreams) {
+                int first = stream.mEncBuffer.getFirstIndex();
+                if (first < 0 || stream.mEncodedFormat == null) {
+                    Log.w(TAG, "Unable to get first index");
+                    mCallback.fileSaveComplete(1);
+                    return;
+                }
+                startPtsUsec = Math.max(startPtsUsec, stream.mEncBuffer.getPtsUsec(first));
+                endPtsUsec = Math.min(endPtsUsec, stream.mLastPtsUsec);
+            }
+
+            final MediaFormat[] formats = new MediaFormat[mStreams.length];
+            final int[] firstIndices = new int[mStreams.length];
+            for (int i = 0; i < mStreams.length; i++) {
+                Stream stream = mStreams[i];
+                firstIndices[i] = stream.mEncBuffer.getSyncIndexAtOrBefore(startPtsUsec);
+                stream.mEncBuffer.pin(firstIndices[i]);
+                formats[i] = stream.mEncodedFormat;
+            }
+
+            final long deadlineUsec = endPtsUsec + postEventMsec * 1000L;
+            mWriterHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    startFile(outputFiles, formats, firstIndices, deadlineUsec);
+                }
+            });
+        }
+
+        /**
+         * Creates the muxers and writes whatever is pinned.  Runs on the writer thread.
+         * <p>
+         * The muxers aren't started until their first sample is written.  MediaMuxer won't
+         * stop a muxer that has no samples, and release() stops a started muxer, so a muxer
+         * that never got anything must never be started.
+         */
+        private void startFile(File[] outputFiles, MediaFormat[] formats, int[] firstIndices,
+                long deadlineUsec) {
+            mSaveDeadlineUsec = deadlineUsec;
+            mSaveByteCount = 0;
+            mSaveWriteNsec = 0;
+            mSaveMuxers = new MediaMuxer[outputFiles.length];
+            mSaveMuxerStarted = new boolean[outputFiles.length];
+            mSaveMuxerSamples = new int[outputFiles.length];
             try {
-                muxer = new MediaMuxer(outputFile.getPath(),
-                        MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
-                int videoTrack = muxer.addTrack(mEncodedFormat);
-                muxer.start();
-
-                do {
-                    ByteBuffer buf = mEncBuffer.getChunk(index, info);
-                    if (VERBOSE) {
-                        Log.d(TAG, "SAVE " + index + " flags=0x" + Integer.toHexString(info.flags));
-                    }
-                    muxer.writeSampleData(videoTrack, buf, info);
-                    index = mEncBuffer.getNextIndex(index);
-                } while (index >= 0);
-                result = 0;
+                for (int i = 0; i < outputFiles.length; i++) {
+                    mSaveMuxers[i] = new MediaMuxer(outputFiles[i].getPath(),
+                            MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
+                }
+
+                for (int i = 0; i < mStreams.length; i++) {
+                    Stream stream = mStreams[i];
+                    // With one file per stream, the audio goes in with the first video stream.
+                    stream.mSaveMuxerIndex = stream.mIsAudio ? 0 :
+                            (outputFiles.length == 1 ? 0 : i);
+                    stream.mSaveTrack =
+                            mSaveMuxers[stream.mSaveMuxerIndex].addTrack(formats[i]);
+                    stream.mSaveFirstIndex = firstIndices[i];
+                    stream.mSaveLastIndex = -1;
+                    stream.mSaveDone = false;
+                }
             } catch (IOException ioe) {
                 Log.w(TAG, "muxer failed", ioe);
-                result = 2;
-            } finally {
-                if (muxer != null) {
-                    muxer.stop();
-                    muxer.release();
+                finishFile(2);
+                return;
+            } catch (RuntimeException re) {
+                // e.g. addTrack() didn't like the format
+                Log.w(TAG, "muxer setup failed", re);
+                finishFile(2);
+                return;
+            }
+
+            writeMore();
+        }
+
+        /**
+         * Writes pinned packets we haven't written yet, and finishes the file if we've
+         * reached the deadline.  Runs on the writer thread.
+         * <p>
+         * Packets are released back to the buffer as soon as they're written, so a long
+         * post-event window only needs buffer space for what we haven't caught up with.
+         * <p>
+         * With multiple streams, packets are written in presentation time order, so the
+         * muxer can interleave them without holding on to a lot of data.  If a stream hasn't
+         * produced its next packet yet, we wait for it.
+         */
+        private void writeMore() {
+            if (mSaveMuxers == null) {
+                // No save in progress; the encoder thread hasn't seen our result yet.
+                return;
+            }
+
+            MediaCodec.BufferInfo info = mSaveBufferInfo;
+            while (true) {
+                Stream next = null;
+                int nextIndex = -1;
+                long nextPtsUsec = Long.MAX_VALUE;
+                for (Stream stream : mStreams) {
+                    if (stream.mSaveDone) {
+                        continue;
+                    }
+                    int index = stream.getNextSaveIndex();
+                    if (index < 0) {
+                        return;     // wait for more data
+                    }
+                    long ptsUsec = stream.mEncBuffer.getPtsUsec(index);
+                    if (ptsUsec < nextPtsUsec) {
+                        next = stream;
+                        nextIndex = index;
+                        nextPtsUsec = ptsUsec;
+                    }
+                }
+                if (next == null) {
+                    finishFile(0);
+                    return;
+                }
+
+                ByteBuffer buf = next.mEncBuffer.getChunk(nextIndex, info);
+                if (VERBOSE) {
+                    Log.d(TAG, "SAVE " + nextIndex + " flags=0x" +
+                            Integer.toHexString(info.flags));
+                }
+                int muxerIndex = next.mSaveMuxerIndex;
+                MediaMuxer muxer = mSaveMuxers[muxerIndex];
+                try {
+                    if (!mSaveMuxerStarted[muxerIndex]) {
+                        muxer.start();
+                        mSaveMuxerStarted[muxerIndex] = true;
+                    }
+                    // Only the write itself counts toward the throughput.  Waiting for the
+                    // post-event window says nothing about how fast storage is.
+                    long startNsec = System.nanoTime();
+                    muxer.writeSampleData(next.mSaveTrack, buf, info);
+                    mSaveWriteNsec += System.nanoTime() - startNsec;
+                } catch (RuntimeException re) {
+                    Log.w(TAG, "muxer write failed", re);
+                    finishFile(2);
+                    return;
+                }
+                mSaveMuxerSamples[muxerIndex]++;
+                mSaveByteCount += info.size;
+                next.mSaveLastIndex = nextIndex;
+                next.mEncBuffer.releasePinned(nextIndex);
+
+                if (info.presentationTimeUs >= mSaveDeadlineUsec) {
+                    next.mSaveDone = true;
                 }
             }
+        }
+
+        /**
+         * Stops the muxers and tells the encoder thread we're done.  Runs on the writer thread.
+         * <p>
+         * Whatever goes wrong here, we still send MSG_SAVE_COMPLETE, so the encoder thread
+         * unpins the buffers and reports the result.
+         */
+        private void finishFile(int result) {
+            if (mSaveMuxers != null) {
+                for (int i = 0; i < mSaveMuxers.length; i++) {
+                    MediaMuxer muxer = mSaveMuxers[i];
+                    if (muxer == null) {
+                        continue;   // creation failed
+                    }
+                    if (mSaveMuxerSamples[i] == 0 && result == 0) {
+                        Log.w(TAG, "nothing written to muxer " + i);
+                        result = 2;
+                    }
+                    try {
+                        // stop() throws if the muxer isn't started or has no samples.
+                        if (mSaveMuxerStarted[i] && mSaveMuxerSamples[i] > 0) {
+                            // stop() flushes whatever the muxer has buffered, so it counts.
+                            long startNsec = System.nanoTime();
+                            muxer.stop();
+                            mSaveWriteNsec += System.nanoTime() - startNsec;
+                        }
+                    } catch (RuntimeException re) {
+                        Log.w(TAG, "muxer stop failed", re);
+                        result = 2;
+                    }
+                    try {
+                        muxer.release();
+                    } catch (RuntimeException re) {
+                        // Started with no samples; release() tries to stop it.
+                        Log.w(TAG, "muxer release failed", re);
+                        result = 2;
+                    }
+                }
+                mSaveMuxers = null;
+                mSaveMuxerStarted = null;
+                mSaveMuxerSamples = null;
+            }
+            long elapsedUsec = mSaveWriteNsec / 1000;
 
             if (VERBOSE) {
-                Log.d(TAG, "muxer stopped, result=" + result);
+                Log.d(TAG, "muxer stopped, result=" + result + " bytes=" + mSaveByteCount +
+                        " usec=" + elapsedUsec);
+            }
+            Handler handler = mHandler;
+            if (handler != null) {
+                handler.sendMessage(handler.obtainMessage(EncoderHandler.MSG_SAVE_COMPLETE,
+                        result, 0, new long[] { mSaveByteCount, elapsedUsec }));
+            }
+        }
+
+        /**
+         * Releases the pinned packets and reports the result.  Called on the encoder thread
+         * after the writer thread finishes.
+         */
+        void saveComplete(int result, long byteCount, long elapsedUsec) {
+            for (Stream stream : mStreams) {
+                stream.mEncBuffer.unpin();
+            }
+            if (byteCount > 0) {
+                if (elapsedUsec > 0) {
+                    long bytesPerSec = byteCount * 1000000 / elapsedUsec;
+                    for (Stream stream : mStreams) {
+                        BitrateController controller = stream.mRateController;
+                        if (controller != null) {
+                            controller.onWriteThroughput(bytesPerSec);
+                        }
+                    }
+                }
+                mCallback.fileSaveThroughput(byteCount, elapsedUsec);
             }
             mCallback.fileSaveComplete(result);
         }
 
         /**
-         * Tells the Looper to quit.
+         * Stops the writer thread, then tells the Looper to quit.
+         * <p>
+         * The writer is joined before we return, so nothing is muxed after
+         * CircularEncoder#shutdown() releases the codecs.
          */
         void shutdown() {
             if (VERBOSE) Log.d(TAG, "shutdown");
-            Looper.myLooper().quit();
+
+            // Let the writer finish what it has queued up.  If a post-event save is still
+            // waiting for frames, close out the file with what we have.
+            mWriterHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (mSaveMuxers != null) {
+                        finishFile(0);
+                    }
+                }
+            });
+            mWriterThread.quitSafely();
+            try {
+                mWriterThread.join();
+            } catch (InterruptedException ie) {
+                Log.w(TAG, "Writer thread join() was interrupted", ie);
+            }
+
+            // If the writer finished a save, its MSG_SAVE_COMPLETE is now in our queue.
+            // quitSafely() delivers it before the Looper exits, so the caller always hears
+            // about the file.
+            Looper.myLooper().quitSafely();
         }
 
         /**
@@ -440,6 +1392,9 @@ public class CircularEncoder {
             public static final int MSG_FRAME_AVAILABLE_SOON = 1;
             public static final int MSG_SAVE_VIDEO = 2;
             public static final int MSG_SHUTDOWN = 3;
+            public static final int MSG_SAVE_COMPLETE = 4;
+            public static final int MSG_AUDIO_AVAILABLE = 5;
+            public static final int MSG_AUDIO_FAILED = 6;
 
             // This shouldn't need to be a weak ref, since we'll go away when the Looper quits,
             // but no real harm in it.
@@ -470,11 +1425,22 @@ public class CircularEncoder {
                         encoderThread.frameAvailableSoon();
                         break;
                     case MSG_SAVE_VIDEO:
-                        encoderThread.saveVideo((File) msg.obj);
+                        encoderThread.saveVideo((File[]) msg.obj, msg.arg1);
                         break;
                     case MSG_SHUTDOWN:
                         encoderThread.shutdown();
                         break;
+                    case MSG_AUDIO_AVAILABLE:
+                        encoderThread.audioAvailable();
+                        break;
+                    case MSG_AUDIO_FAILED:
+                        encoderThread.audioFailed();
+                        break;
+                    case MSG_SAVE_COMPLETE: {
+                        long[] stats = (long[]) msg.obj;
+                        encoderThread.saveComplete(msg.arg1, stats[0], stats[1]);
+                        break;
+                    }
                     default:
                         throw new RuntimeException("unknown message " + what);
                 }
@@ -19,15 +19,38 @@ package com.android.grafika;
 import android.media.MediaCodec;
 import android.util.Log;
 
+import java.io.File;
+import java.io.IOException;
 import java.nio.ByteBuffer;
 
 /**
  * Holds encoded video data in a circular buffer.
  * <p>
  * This is actually a pair of circular buffers, one for the raw data and one for the meta-data
- * (flags and PTS).
+ * (flags and PTS).  A third, much smaller ring holds the meta-data index of every sync frame
+ * in the buffer.
  * <p>
- * Not thread-safe.
+ * Data is evicted a GOP at a time: when we run out of room we drop everything from the
+ * oldest sync frame up to (but not including) the next one.  The tail of the buffer is
+ * therefore always a sync frame, so every packet we hold can be written to a file.
+ * <p>
+ * The raw data can live on the heap, or in a memory-mapped file.  The latter is useful for
+ * long time spans, where a heap allocation of the required size would be impractical; the
+ * cost moves from the Java heap to the page cache.  A file-backed buffer also journals
+ * each packet's meta-data (see CircularEncoderJournal), so the buffered window survives the
+ * process dying.
+ * <p>
+ * Encoders don't always produce the bit rate we ask for, so a heap buffer can be told to
+ * size itself from the rates it actually observes (see setAutoResize()).  It's resized at
+ * a sync frame while nothing is pinned, which is the only time the layout can change
+ * without disturbing a reader.  The packets already held are carried over.
+ * <p>
+ * Not thread-safe, with one exception: while a range of packets is pinned (see pin()), one
+ * other thread may call getNextPinnedIndex(), getChunk(), and releasePinned() for the packets
+ * in that range.  The pinned range can be extended to cover newly-added packets, so the
+ * reader can follow the head of the buffer.  Pinned packets are only evicted once the
+ * reader has released a whole GOP; if we run out of room before that, new packets are
+ * dropped until space frees up and the next sync frame arrives.
  */
 public class CircularEncoderBuffer {
     private static final String TAG = MainActivity.TAG;
@@ -41,12 +64,21 @@ public class CircularEncoderBuffer {
     // JNI functions to access the backing byte[] (which, in the current VM, is done without
     // copying the data).
     //
-    // It's much more convenient to work with a byte[], so we just wrap it with a ByteBuffer
-    // as needed.  This is a bit awkward when we hit the edge of the buffer, but for that
-    // we can just do an allocation and data copy (we know it happens at most once per file
-    // save operation).
+    // The data lives in a ByteBuffer that either wraps a byte[] or maps a file.  We use
+    // mDataBuffer internally (its position and limit are scratch state), and hand out
+    // mDataBufferWrapper, a duplicate that shares the contents, so callers can play with
+    // position and limit without disturbing us.  getChunk() uses its own duplicate,
+    // mDataReadView, so that it can run on a different thread.  This is a bit awkward when
+    // we hit the edge of the buffer, so packets that wrap around are copied into a scratch
+    // buffer.  The scratch buffer is reused across calls, and is sized to the largest packet
+    // we've seen, so once it has grown to fit we don't allocate during a file save.
     private ByteBuffer mDataBufferWrapper;
-    private byte[] mDataBuffer;
+    private ByteBuffer mDataBuffer;
+    private ByteBuffer mDataReadView;
+    private int mDataLen;
+    private CircularEncoderJournal mJournal;     // null unless backed by a file
+    private ByteBuffer mScratchBuffer;
+    private int mMaxPacketSize;
 
     // Meta-data held here.  We're using a collection of arrays, rather than an array of
     // objects with multiple fields, to minimize allocations and heap footprint.
@@ -60,32 +92,197 @@ public class CircularEncoderBuffer {
     private int mMetaHead;
     private int mMetaTail;
 
+    // Meta-data indices of the sync frames currently held, oldest first.  Same head/tail
+    // convention as the meta-data ring.  There can't be more sync frames than packets, so
+    // this is sized to match the meta-data arrays and can never overflow.
+    private int[] mSyncIndex;
+    private int mSyncHead;
+    private int mSyncTail;
+
+    // Pinned range, [tail, mPinEnd).  The reader has consumed everything before mPinRead,
+    // so GOPs that end at or before it may still be evicted.  The end and read positions
+    // are shared with the reader thread.  If we had to drop a packet to honor the pin, we
+    // keep dropping until the next sync frame so the buffered stream stays decodable.
+    private boolean mPinned;
+    private volatile int mPinEnd;
+    private volatile int mPinRead;
+    private boolean mDropUntilSync;
+
+    // Self-tuning state.  We measure the bytes and packets added over a window of time,
+    // and at the end of each window decide whether the buffers are the right size for
+    // mDesiredSpanSec.  Zero mMaxTotalBytes means auto-resize is disabled.
+    private int mDesiredSpanSec;
+    private long mMaxTotalBytes;
+    private long mRateWindowUsec;
+    private long mRateStartPtsUsec = -1;
+    private long mRateBytes;
+    private int mRatePackets;
+    private int mObservedBitRate;
+    private int mObservedPacketRate;
+
+    // Counters, updated as we go.  Other threads read them through getStats().
+    private final CircularEncoderStats mStats = new CircularEncoderStats();
+
+    // Results from checkSpace().
+    private static final int SPACE_AVAILABLE = 0;
+    private static final int SPACE_NO_META = 1;
+    private static final int SPACE_NO_DATA = 2;
+
     /**
      * Allocates the circular buffers we use for encoded data and meta-data.
      */
     public CircularEncoderBuffer(int bitRate, int frameRate, int desiredSpanSec) {
+        int dataBufferSize = computeDataBufferSize(bitRate, desiredSpanSec);
+        init(ByteBuffer.wrap(new byte[dataBufferSize]), computeMetaBufferCount(frameRate,
+                desiredSpanSec), bitRate, frameRate, desiredSpanSec);
+    }
+
+    /**
+     * Allocates the meta-data buffers, and maps the encoded data buffer onto a journal file.
+     * <p>
+     * The file is created if necessary, and resized to fit.  Any previous contents are
+     * discarded.  Every packet's meta-data is journaled along with its data, so if the
+     * process dies, the packets can be read back with CircularEncoderJournal.recover().
+     * The caller owns the file, and may delete it once this object is no longer in use.
+     */
+    public CircularEncoderBuffer(int bitRate, int frameRate, int desiredSpanSec,
+            File backingFile) throws IOException {
+        int dataBufferSize = computeDataBufferSize(bitRate, desiredSpanSec);
+        int metaBufferCount = computeMetaBufferCount(frameRate, desiredSpanSec);
+        mJournal = new CircularEncoderJournal(backingFile, dataBufferSize, metaBufferCount);
+        init(mJournal.getDataBuffer(), metaBufferCount, bitRate, frameRate, desiredSpanSec);
+    }
+
+    /**
+     * Computes the size of the encoded data buffer.
+     */
+    private static int computeDataBufferSize(int bitRate, int desiredSpanSec) {
         // For the encoded data, we assume the encoded bit rate is close to what we request.
         //
         // There would be a minor performance advantage to using a power of two here, because
         // not all ARM CPUs support integer modulus.
-        int dataBufferSize = bitRate * desiredSpanSec / 8;
-        mDataBuffer = new byte[dataBufferSize];
-        mDataBufferWrapper = ByteBuffer.wrap(mDataBuffer);
+        long dataBufferSize = (long) bitRate * desiredSpanSec / 8;
+        if (dataBufferSize > Integer.MAX_VALUE) {
+            throw new RuntimeException("Buffer too large: " + dataBufferSize + " bytes");
+        }
+        return (int) dataBufferSize;
+    }
 
+    /**
+     * Computes the number of entries in the meta-data buffers.
+     */
+    private static int computeMetaBufferCount(int frameRate, int desiredSpanSec) {
         // Meta-data is smaller than encoded data for non-trivial frames, so we over-allocate
         // a bit.  This should ensure that we drop packets because we ran out of (expensive)
         // data storage rather than (inexpensive) metadata storage.
-        int metaBufferCount = frameRate * desiredSpanSec * 2;
+        return frameRate * desiredSpanSec * 2;
+    }
+
+    /**
+     * Finishes construction, once the data buffer has been created.
+     */
+    private void init(ByteBuffer dataBuffer, int metaBufferCount, int bitRate, int frameRate,
+            int desiredSpanSec) {
+        int dataBufferSize = dataBuffer.capacity();
+        mDesiredSpanSec = desiredSpanSec;
+        mDataBuffer = dataBuffer;
+        mDataBufferWrapper = dataBuffer.duplicate();
+        mDataReadView = dataBuffer.duplicate();
+        mDataLen = dataBufferSize;
+
         mPacketFlags = new int[metaBufferCount];
         mPacketPtsUsec = new long[metaBufferCount];
         mPacketStart = new int[metaBufferCount];
         mPacketLength = new int[metaBufferCount];
+        mSyncIndex = new int[metaBufferCount];
+        mStats.dataBufferSize = dataBufferSize;
+        mStats.metaBufferCount = metaBufferCount;
 
         if (VERBOSE) {
             Log.d(TAG, "CBE: bitRate=" + bitRate + " frameRate=" + frameRate +
                     " desiredSpan=" + desiredSpanSec + ": dataBufferSize=" + dataBufferSize +
-                " metaBufferCount=" + metaBufferCount);
+                " metaBufferCount=" + metaBufferCount + " direct=" + dataBuffer.isDirect());
+        }
+    }
+
+    /**
+     * Stores a description of the stream in the journal, so recovered packets can be muxed.
+     * Does nothing if the buffer isn't backed by a file.
+     */
+    public void setJournalFormat(byte[] format) {
+        if (mJournal != null) {
+            mJournal.setFormat(format);
+        }
+    }
+
+    /**
+     * Lets the buffer resize itself to hold the desired time span at the rates the encoder
+     * is actually producing, rather than the ones we asked for.
+     * <p>
+     * Only heap buffers can be resized.  Resizing allocates new arrays and copies the
+     * buffered packets over, so we only do it when the size is off by a fair margin.
+     *
+     * @param maxTotalBytes Ceiling on the memory used for data and meta-data together.
+     */
+    public void setAutoResize(long maxTotalBytes) {
+        if (mDataBuffer.isDirect()) {
+            throw new RuntimeException("Can't resize a memory-mapped buffer");
         }
+        mMaxTotalBytes = maxTotalBytes;
+        mRateWindowUsec = Math.max(1, mDesiredSpanSec / 2) * 1000000L;
+        mRateStartPtsUsec = -1;
+    }
+
+    /**
+     * Returns the span of video the buffer was sized to hold, in seconds.
+     */
+    public int getDesiredSpanSec() {
+        return mDesiredSpanSec;
+    }
+
+    /**
+     * Returns the size of the encoded data buffer, in bytes.
+     */
+    public int getDataBufferSize() {
+        return mDataLen;
+    }
+
+    /**
+     * Returns the number of packets the meta-data buffer can hold.
+     */
+    public int getMetaBufferCount() {
+        return mPacketStart.length;
+    }
+
+    /**
+     * Returns the bit rate observed over the most recent measurement window, or zero if
+     * auto-resize is disabled or we haven't finished a window yet.
+     */
+    public int getObservedBitRate() {
+        return mObservedBitRate;
+    }
+
+    /**
+     * Returns the number of packets per second observed over the most recent measurement
+     * window, or zero if auto-resize is disabled or we haven't finished a window yet.
+     */
+    public int getObservedPacketRate() {
+        return mObservedPacketRate;
+    }
+
+    /**
+     * Copies the current counters into "stats".  Unlike everything else here, this may be
+     * called on any thread, and never blocks the thread calling add().
+     */
+    public void getStats(CircularEncoderStats stats) {
+        stats.copyFrom(mStats);
+    }
+
+    /**
+     * Returns the live counters, for the thread calling add() to record drain latency.
+     */
+    CircularEncoderStats getLiveStats() {
+        return mStats;
     }
 
     /**
@@ -107,6 +304,9 @@ public class CircularEncoderBuffer {
 
     /**
      * Adds a new encoded data packet to the buffer.
+     * <p>
+     * If the buffer is empty and the packet isn't a sync frame, the packet is discarded,
+     * since there would be no way to decode it.
      *
      * @param buf The data.  Set position() to the start offset and limit() to position+size.
      *     The position and limit may be altered by this method.
@@ -115,16 +315,74 @@ public class CircularEncoderBuffer {
      * @param ptsUsec Presentation time stamp, in microseconds.
      */
     public void add(ByteBuffer buf, int flags, long ptsUsec) {
+        final CircularEncoderStats stats = mStats;
+        stats.beginUpdate();
+        try {
+            addPacket(buf, flags, ptsUsec);
+        } finally {
+            final int metaLen = mPacketStart.length;
+            stats.packetsHeld = (mMetaHead + metaLen - mMetaTail) % metaLen;
+            stats.dataBufferSize = mDataLen;
+            stats.metaBufferCount = metaLen;
+            stats.maxPacketSize = mMaxPacketSize;
+            stats.endUpdate();
+        }
+    }
+
+    /**
+     * Does the work for add().  Updates the counters that don't depend on the final state.
+     */
+    private void addPacket(ByteBuffer buf, int flags, long ptsUsec) {
+        final CircularEncoderStats stats = mStats;
         int size = buf.limit() - buf.position();
         if (VERBOSE) {
             Log.d(TAG, "add size=" + size + " flags=0x" + Integer.toHexString(flags) +
                     " pts=" + ptsUsec);
         }
-        while (!canAdd(size)) {
-            removeTail();
+        if (size > mMaxPacketSize) {
+            mMaxPacketSize = size;
+        }
+
+        boolean isSync = (flags & MediaCodec.BUFFER_FLAG_SYNC_FRAME) != 0;
+        if (mDropUntilSync) {
+            if (!isSync) {
+                if (VERBOSE) Log.v(TAG, "still dropping, pts=" + ptsUsec);
+                stats.droppedPackets++;
+                return;
+            }
+            mDropUntilSync = false;
+        }
+
+        if (mMaxTotalBytes != 0) {
+            updateRates(size, isSync, ptsUsec);
+        }
+
+        int space;
+        while ((space = checkSpace(size)) != SPACE_AVAILABLE) {
+            if (mPinned && !isTailGopReleased()) {
+                // Can't make room without stepping on data that's being saved.
+                Log.w(TAG, "buffer full while pinned, dropping packets until next sync");
+                mDropUntilSync = true;
+                stats.droppedPackets++;
+                return;
+            }
+            if (space == SPACE_NO_META) {
+                stats.metaEvictions++;
+            } else {
+                stats.dataEvictions++;
+            }
+            removeTailGop();
+        }
+
+        if (mMetaHead == mMetaTail && !isSync) {
+            // Either we haven't seen a sync frame yet, or the current GOP is too big to
+            // share the buffer with the previous one and had to be thrown out.
+            if (VERBOSE) Log.v(TAG, "dropping non-sync packet at pts=" + ptsUsec);
+            stats.droppedPackets++;
+            return;
         }
 
-        final int dataLen = mDataBuffer.length;
+        final int dataLen = mDataLen;
         final int metaLen = mPacketStart.length;
         int packetStart = getHeadStart();
         mPacketFlags[mMetaHead] = flags;
@@ -133,18 +391,38 @@ public class CircularEncoderBuffer {
         mPacketLength[mMetaHead] = size;
 
         // Copy the data in.  Take care if it gets split in half.
-        if (packetStart + size < dataLen) {
+        ByteBuffer data = mDataBuffer;
+        data.clear();
+        if (packetStart + size <= dataLen) {
             // one chunk
-            buf.get(mDataBuffer, packetStart, size);
+            data.position(packetStart);
+            data.put(buf);
         } else {
             // two chunks
             int firstSize = dataLen - packetStart;
             if (VERBOSE) { Log.v(TAG, "split, firstsize=" + firstSize + " size=" + size); }
-            buf.get(mDataBuffer, packetStart, firstSize);
-            buf.get(mDataBuffer, 0, size - firstSize);
+            int bufLimit = buf.limit();
+            buf.limit(buf.position() + firstSize);
+            data.position(packetStart);
+            data.put(buf);
+            buf.limit(bufLimit);
+            data.position(0);
+            data.put(buf);
+            stats.wrappedPackets++;
+        }
+        if (mJournal != null) {
+            // Data first, then the record that describes it.
+            mJournal.append(flags, ptsUsec, packetStart, size);
         }
 
+        if (isSync) {
+            mSyncIndex[mSyncHead] = mMetaHead;
+            mSyncHead = (mSyncHead + 1) % metaLen;
+            stats.syncFrames++;
+        }
         mMetaHead = (mMetaHead + 1) % metaLen;
+        stats.packetsAdded++;
+        stats.bytesHeld += size;
 
         if (EXTRA_DEBUG) {
             // The head packet is the next-available spot.
@@ -156,26 +434,174 @@ public class CircularEncoderBuffer {
     }
 
     /**
-     * Returns the index of the oldest sync frame.  Valid until the next add().
+     * Accounts for a packet that's about to be added, and resizes the buffers if a
+     * measurement window has ended and the sizes are well off the mark.
      * <p>
-     * When sending output to a MediaMuxer, start here.
+     * We only resize on a sync frame while nothing is pinned.  At that point nobody else is
+     * looking at the buffer, and every packet we hold is part of a complete GOP.
      */
-    public int getFirstIndex() {
-        final int metaLen = mPacketStart.length;
+    private void updateRates(int size, boolean isSync, long ptsUsec) {
+        if (mRateStartPtsUsec < 0) {
+            mRateStartPtsUsec = ptsUsec;
+        }
+        long elapsedUsec = ptsUsec - mRateStartPtsUsec;
+        if (isSync && elapsedUsec >= mRateWindowUsec) {
+            mObservedBitRate = (int) Math.min(Integer.MAX_VALUE,
+                    mRateBytes * 8 * 1000000L / elapsedUsec);
+            mObservedPacketRate = (int) ((mRatePackets * 1000000L + elapsedUsec - 1) /
+                    elapsedUsec);
+            mRateStartPtsUsec = ptsUsec;
+            mRateBytes = 0;
+            mRatePackets = 0;
+
+            if (!mPinned) {
+                maybeResize();
+            }
+        }
+        mRateBytes += size;
+        mRatePackets++;
+    }
+
+    /**
+     * Resizes the buffers to fit the desired span at the observed rates, if the current
+     * sizes are off by more than 25%.
+     */
+    private void maybeResize() {
+        // Leave some headroom: we evict a GOP at a time, so we need room for the span plus
+        // most of a GOP, and the rate fluctuates.  Each packet also costs a byte of padding
+        // in the data buffer.
+        long wantMeta = (long) mObservedPacketRate * mDesiredSpanSec * 3 / 2 + 1;
+        long wantData = (long) mObservedBitRate * mDesiredSpanSec / 8 * 5 / 4 + wantMeta;
+        wantData = Math.max(wantData, (long) mMaxPacketSize * 2);
+
+        // Meta-data costs an int, a long, two more ints, and a sync index slot per packet.
+        final int metaEntryBytes = 4 + 8 + 4 + 4 + 4;
+        long total = wantData + wantMeta * metaEntryBytes;
+        if (total > mMaxTotalBytes) {
+            double scale = (double) mMaxTotalBytes / total;
+            wantData = (long) (wantData * scale);
+            wantMeta = (long) (wantMeta * scale);
+        }
+        if (wantData > Integer.MAX_VALUE) {
+            wantData = Integer.MAX_VALUE;
+        }
+
+        boolean dataOff = Math.abs(wantData - mDataLen) * 4 > mDataLen;
+        boolean metaOff = Math.abs(wantMeta - mPacketStart.length) * 4 > mPacketStart.length;
+        if ((dataOff || metaOff) && wantData > mMaxPacketSize && wantMeta > 2) {
+            resize((int) wantData, (int) wantMeta);
+        }
+    }
 
-        int index = mMetaTail;
-        while (index != mMetaHead) {
-            if ((mPacketFlags[index] & MediaCodec.BUFFER_FLAG_SYNC_FRAME) != 0) {
+    /**
+     * Replaces the buffers with new ones of the specified size, and copies the buffered
+     * packets over.  If they don't all fit, the oldest GOPs are dropped.  Must not be
+     * called while pinned.
+     */
+    private void resize(int dataLen, int metaLen) {
+        Log.d(TAG, "CBE resize: data " + mDataLen + " -> " + dataLen + ", meta " +
+                mPacketStart.length + " -> " + metaLen + " (observed " + mObservedBitRate +
+                " bps, " + mObservedPacketRate + " pkt/s)");
+
+        // Drop whole GOPs until what's left fits.  Each packet takes one spare byte.
+        final int oldMetaLen = mPacketStart.length;
+        while (mMetaHead != mMetaTail) {
+            int count = (mMetaHead + oldMetaLen - mMetaTail) % oldMetaLen;
+            long bytes = 0;
+            for (int i = mMetaTail; i != mMetaHead; i = (i + 1) % oldMetaLen) {
+                bytes += mPacketLength[i] + 1;
+            }
+            if (count < metaLen && bytes < dataLen) {
                 break;
             }
-            index = (index + 1) % metaLen;
+            removeTailGop();
+        }
+
+        int[] packetFlags = new int[metaLen];
+        long[] packetPtsUsec = new long[metaLen];
+        int[] packetStart = new int[metaLen];
+        int[] packetLength = new int[metaLen];
+        int[] syncIndex = new int[metaLen];
+        byte[] data = new byte[dataLen];
+
+        // Copy the packets over in order, starting at the front of the new buffers.
+        ByteBuffer dst = ByteBuffer.wrap(data);
+        MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+        int count = 0;
+        int syncCount = 0;
+        int start = 0;
+        for (int i = mMetaTail; i != mMetaHead; i = (i + 1) % oldMetaLen) {
+            ByteBuffer src = getChunk(i, info);
+            src.limit(info.offset + info.size);
+            src.position(info.offset);
+            dst.position(start);
+            dst.put(src);
+
+            packetFlags[count] = info.flags;
+            packetPtsUsec[count] = info.presentationTimeUs;
+            packetStart[count] = start;
+            packetLength[count] = info.size;
+            if ((info.flags & MediaCodec.BUFFER_FLAG_SYNC_FRAME) != 0) {
+                syncIndex[syncCount++] = count;
+            }
+            start += info.size + 1;
+            count++;
         }
 
-        if (index == mMetaHead) {
+        mDataBuffer = ByteBuffer.wrap(data);
+        mDataBufferWrapper = mDataBuffer.duplicate();
+        mDataReadView = mDataBuffer.duplicate();
+        mDataLen = dataLen;
+        mPacketFlags = packetFlags;
+        mPacketPtsUsec = packetPtsUsec;
+        mPacketStart = packetStart;
+        mPacketLength = packetLength;
+        mSyncIndex = syncIndex;
+        mMetaTail = 0;
+        mMetaHead = count;
+        mSyncTail = 0;
+        mSyncHead = syncCount;
+    }
+
+    /**
+     * Returns the index of the oldest sync frame.  Valid until the next add().
+     * <p>
+     * When sending output to a MediaMuxer, start here.  Because we evict whole GOPs, this
+     * is always the tail of the buffer.
+     */
+    public int getFirstIndex() {
+        if (mSyncHead == mSyncTail) {
             Log.w(TAG, "HEY: could not find sync frame in buffer");
-            index = -1;
+            return -1;
+        }
+        return mSyncIndex[mSyncTail];
+    }
+
+    /**
+     * Returns the index of the newest sync frame whose presentation time is at or before
+     * ptsUsec, or the oldest sync frame if they're all later.  Returns -1 if the buffer
+     * has no sync frames.  Valid until the next add().
+     * <p>
+     * Useful for lining up the start of a save with another stream.
+     */
+    public int getSyncIndexAtOrBefore(long ptsUsec) {
+        final int metaLen = mPacketStart.length;
+        int best = getFirstIndex();
+        for (int i = mSyncTail; i != mSyncHead; i = (i + 1) % metaLen) {
+            int index = mSyncIndex[i];
+            if (mPacketPtsUsec[index] > ptsUsec) {
+                break;
+            }
+            best = index;
         }
-        return index;
+        return best;
+    }
+
+    /**
+     * Returns the presentation time stamp of the specified packet, in microseconds.
+     */
+    public long getPtsUsec(int index) {
+        return mPacketPtsUsec[index];
     }
 
     /**
@@ -191,14 +617,97 @@ public class CircularEncoderBuffer {
     }
 
     /**
-     * Returns a reference to a "direct" ByteBuffer with the data, and fills in the
-     * BufferInfo.
+     * Pins everything currently in the buffer, starting from the oldest sync frame, so that
+     * it won't be evicted or overwritten by add().  Only one range may be pinned at a time.
+     *
+     * @return The index of the first pinned packet, or -1 if there's nothing to save (in
+     *     which case nothing is pinned).
+     */
+    public int pin() {
+        int first = getFirstIndex();
+        if (first < 0) {
+            return -1;
+        }
+        pin(first);
+        return first;
+    }
+
+    /**
+     * Pins everything from the specified sync frame to the head of the buffer.  Older
+     * packets are treated as already released, so they may still be evicted.
+     *
+     * @param firstIndex Index of a sync frame, e.g. from getSyncIndexAtOrBefore().
+     */
+    public void pin(int firstIndex) {
+        if (mPinned) {
+            throw new RuntimeException("Buffer is already pinned");
+        }
+        mPinRead = firstIndex;
+        mPinEnd = mMetaHead;
+        mPinned = true;
+    }
+
+    /**
+     * Extends the pinned range to include every packet added since it was pinned.  Call on
+     * the thread that calls add().
+     */
+    public void extendPin() {
+        if (!mPinned) {
+            throw new RuntimeException("Buffer is not pinned");
+        }
+        mPinEnd = mMetaHead;
+    }
+
+    /**
+     * Tells the buffer that the reader is done with every pinned packet up to and including
+     * "index".  Whole GOPs that have been released may be evicted again.
+     */
+    public void releasePinned(int index) {
+        mPinRead = (index + 1) % mPacketStart.length;
+    }
+
+    /**
+     * Releases the pinned range.  Call on the thread that calls add(), after the thread
+     * reading the pinned packets is done with them.
+     */
+    public void unpin() {
+        mPinned = false;
+    }
+
+    /**
+     * Returns true if a range is pinned.
+     */
+    public boolean isPinned() {
+        return mPinned;
+    }
+
+    /**
+     * Returns the index of the next pinned packet, or -1 if we've reached the end of the
+     * pinned range.  Unlike getNextIndex(), this may be called while add() is running on
+     * another thread.
+     */
+    public int getNextPinnedIndex(int index) {
+        final int metaLen = mPacketStart.length;
+        int next = (index + 1) % metaLen;
+        if (next == mPinEnd) {
+            next = -1;
+        }
+        return next;
+    }
+
+    /**
+     * Returns a reference to a ByteBuffer with the data, and fills in the BufferInfo.
      * <p>
      * The caller must not modify the contents of the returned ByteBuffer.  Altering
-     * the position and limit is allowed.
+     * the position and limit is allowed.  If the packet wraps around the end of the
+     * buffer, the data is copied into an internal scratch buffer, which is only valid
+     * until the next call to getChunk().
+     * <p>
+     * Only one thread may call this at a time.  If it isn't the thread calling add(),
+     * the packet must be in the pinned range.
      */
     public ByteBuffer getChunk(int index, MediaCodec.BufferInfo info) {
-        final int dataLen = mDataBuffer.length;
+        final int dataLen = mDataLen;
         int packetStart = mPacketStart[index];
         int length = mPacketLength[index];
 
@@ -212,15 +721,36 @@ public class CircularEncoderBuffer {
             return mDataBufferWrapper;
         } else {
             // two chunks
-            ByteBuffer tempBuf = ByteBuffer.allocateDirect(length);
+            ByteBuffer tempBuf = getScratchBuffer(length);
+            ByteBuffer data = mDataReadView;
             int firstSize = dataLen - packetStart;
-            tempBuf.put(mDataBuffer, mPacketStart[index], firstSize);
-            tempBuf.put(mDataBuffer, 0, length - firstSize);
+            data.clear();
+            data.position(packetStart);
+            tempBuf.put(data);
+            data.position(0);
+            data.limit(length - firstSize);
+            tempBuf.put(data);
             info.offset = 0;
             return tempBuf;
         }
     }
 
+    /**
+     * Returns the scratch buffer, cleared and ready to receive at least "length" bytes.
+     * <p>
+     * The buffer is only reallocated when it's too small, and then it's sized to the
+     * largest packet added so far, so it should only grow a couple of times.
+     */
+    private ByteBuffer getScratchBuffer(int length) {
+        if (mScratchBuffer == null || mScratchBuffer.capacity() < length) {
+            int capacity = Math.max(length, mMaxPacketSize);
+            if (VERBOSE) Log.v(TAG, "allocating scratch buffer, capacity=" + capacity);
+            mScratchBuffer = ByteBuffer.allocateDirect(capacity);
+        }
+        mScratchBuffer.clear();
+        return mScratchBuffer;
+    }
+
     /**
      * Computes the data buffer offset for the next place to store data.
      * <p>
@@ -232,7 +762,7 @@ public class CircularEncoderBuffer {
             return 0;
         }
 
-        final int dataLen = mDataBuffer.length;
+        final int dataLen = mDataLen;
         final int metaLen = mPacketStart.length;
 
         int beforeHead = (mMetaHead + metaLen - 1) % metaLen;
@@ -243,10 +773,11 @@ public class CircularEncoderBuffer {
      * Determines whether this is enough space to fit "size" bytes in the data buffer, and
      * one more packet in the meta-data buffer.
      *
-     * @return True if there is enough space to add without removing anything.
+     * @return SPACE_AVAILABLE if there is enough space to add without removing anything,
+     *     otherwise SPACE_NO_META or SPACE_NO_DATA depending on what we ran out of.
      */
-    private boolean canAdd(int size) {
-        final int dataLen = mDataBuffer.length;
+    private int checkSpace(int size) {
+        final int dataLen = mDataLen;
         final int metaLen = mPacketStart.length;
 
         if (size > dataLen) {
@@ -255,7 +786,7 @@ public class CircularEncoderBuffer {
         }
         if (mMetaHead == mMetaTail) {
             // empty list
-            return true;
+            return SPACE_AVAILABLE;
         }
 
         // Make sure we can advance head without stepping on the tail.
@@ -264,7 +795,7 @@ public class CircularEncoderBuffer {
             if (VERBOSE) {
                 Log.v(TAG, "ran out of metadata (head=" + mMetaHead + " tail=" + mMetaTail +")");
             }
-            return false;
+            return SPACE_NO_META;
         }
 
         // Need the byte offset of the start of the "tail" packet, and the byte offset where
@@ -272,12 +803,14 @@ public class CircularEncoderBuffer {
         int headStart = getHeadStart();
         int tailStart = mPacketStart[mMetaTail];
         int freeSpace = (tailStart + dataLen - headStart) % dataLen;
-        if (size > freeSpace) {
+        // Packets are followed by a spare byte, so a packet that exactly fills the free space
+        // would leave the next head one byte past the tail, and the buffer would look empty.
+        if (size >= freeSpace) {
             if (VERBOSE) {
                 Log.v(TAG, "ran out of data (tailStart=" + tailStart + " headStart=" + headStart +
                     " req=" + size + " free=" + freeSpace + ")");
             }
-            return false;
+            return SPACE_NO_DATA;
         }
 
         if (VERBOSE) {
@@ -285,17 +818,53 @@ public class CircularEncoderBuffer {
                     ((mMetaTail + metaLen - mMetaHead) % metaLen - 1));
         }
 
-        return true;
+        return SPACE_AVAILABLE;
     }
 
     /**
-     * Removes the tail packet.
+     * Determines whether the pinned-range reader has released all of the oldest GOP.
+     * <p>
+     * The GOP ends where the next sync frame begins; if there isn't one, the GOP is still
+     * growing and can't have been fully released.
      */
-    private void removeTail() {
+    private boolean isTailGopReleased() {
+        final int metaLen = mPacketStart.length;
+        int nextSync = (mSyncTail + 1) % metaLen;
+        if (nextSync == mSyncHead) {
+            return false;
+        }
+        int gopLen = (mSyncIndex[nextSync] + metaLen - mMetaTail) % metaLen;
+        int releasedLen = (mPinRead + metaLen - mMetaTail) % metaLen;
+        return gopLen <= releasedLen;
+    }
+
+    /**
+     * Removes the oldest GOP, i.e. everything from the tail sync frame up to the next sync
+     * frame.  If there is no next sync frame, the buffer is emptied.
+     */
+    private void removeTailGop() {
         if (mMetaHead == mMetaTail) {
-            throw new RuntimeException("Can't removeTail() in empty buffer");
+            throw new RuntimeException("Can't removeTailGop() in empty buffer");
         }
         final int metaLen = mPacketStart.length;
-        mMetaTail = (mMetaTail + 1) % metaLen;
+        int oldTail = mMetaTail;
+
+        // The tail is always a sync frame, so the oldest sync entry describes it.
+        mSyncTail = (mSyncTail + 1) % metaLen;
+        if (mSyncTail == mSyncHead) {
+            mMetaTail = mMetaHead;
+        } else {
+            mMetaTail = mSyncIndex[mSyncTail];
+        }
+        for (int i = oldTail; i != mMetaTail; i = (i + 1) % metaLen) {
+            mStats.bytesHeld -= mPacketLength[i];
+        }
+        if (mJournal != null) {
+            // Before anything is written over them.
+            mJournal.evict((mMetaTail + metaLen - oldTail) % metaLen);
+        }
+        if (VERBOSE) {
+            Log.v(TAG, "removed GOP, tail=" + mMetaTail + " head=" + mMetaHead);
+        }
     }
 }
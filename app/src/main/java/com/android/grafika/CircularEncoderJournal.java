@@ -0,0 +1,380 @@
+/*
+ * Copyright 2026 The CombineCameras Authors. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.grafika;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Random;
+
+/**
+ * On-disk layout for a circular encoder buffer that survives the process dying.
+ * <p>
+ * The file holds a header, a ring of fixed-size meta-data records, and the data ring.  The
+ * whole thing is memory-mapped, so CircularEncoderBuffer copies each packet into the data
+ * ring as usual, and we add one small record describing it.  That's the only extra write
+ * per packet.  Once the bytes are in the mapping they're in the page cache, so they
+ * outlive the process; they aren't forced to the device, so a kernel crash or power loss
+ * can still lose them.
+ * <p>
+ * Each record carries a sequence number and a check value that mixes in a session ID, so
+ * records from an earlier run, or slots that haven't been written yet, are easy to reject.
+ * At every sync frame we checkpoint the newest sequence number into the header.  Recovery
+ * starts at the checkpoint, scans forward over any records written after it, and then
+ * walks backward to the oldest packet the buffer still held.
+ * <p>
+ * Records for evicted packets stay valid in the file, but their data may already have been
+ * overwritten by a packet whose record hasn't been written yet.  So the buffer tells us
+ * about each eviction, before it reuses the space, and we keep the sequence number of the
+ * oldest live packet in the header.  Recovery never goes back past it.
+ * <p>
+ * This class doesn't use any Android APIs, so recovery can be exercised on a desktop JVM.
+ */
+public class CircularEncoderJournal {
+    private static final int MAGIC = 0x43454a31;        // "CEJ1"
+    private static final int VERSION = 2;
+
+    // Header layout.
+    private static final int HEADER_SIZE = 8192;
+    private static final int OFF_MAGIC = 0;
+    private static final int OFF_VERSION = 4;
+    private static final int OFF_DATA_LEN = 8;
+    private static final int OFF_META_LEN = 12;
+    private static final int OFF_SESSION = 16;
+    private static final int OFF_CHECKPOINT_SEQ = 24;
+    private static final int OFF_TAIL_SEQ = 32;
+    private static final int OFF_FORMAT_LEN = 40;
+    private static final int OFF_FORMAT = 44;
+    private static final int MAX_FORMAT_LEN = HEADER_SIZE - OFF_FORMAT;
+
+    // Meta-data record layout.
+    private static final int RECORD_SIZE = 32;
+    private static final int REC_SEQ = 0;
+    private static final int REC_PTS = 8;
+    private static final int REC_FLAGS = 16;
+    private static final int REC_START = 20;
+    private static final int REC_LENGTH = 24;
+    private static final int REC_CHECK = 28;
+
+    // Same value as MediaCodec.BUFFER_FLAG_SYNC_FRAME.  Duplicated so we don't depend on
+    // the framework.
+    private static final int FLAG_SYNC_FRAME = 1;
+
+    private final MappedByteBuffer mMap;
+    private final int mDataLen;
+    private final int mMetaLen;
+    private final long mSession;
+    private long mNextSeq;
+    private long mTailSeq;
+
+    /**
+     * Creates (or re-initializes) a journal file with room for the specified amount of data
+     * and number of packets.  Anything previously in the file is discarded.
+     */
+    public CircularEncoderJournal(File file, int dataLen, int metaLen) throws IOException {
+        long fileLen = HEADER_SIZE + (long) metaLen * RECORD_SIZE + dataLen;
+        if (fileLen > Integer.MAX_VALUE) {
+            throw new RuntimeException("Journal too large: " + fileLen + " bytes");
+        }
+
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(fileLen);
+            // The mapping remains valid after the channel is closed.
+            mMap = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, fileLen);
+        } finally {
+            raf.close();
+        }
+        mDataLen = dataLen;
+        mMetaLen = metaLen;
+
+        // A fresh session ID invalidates every record left over from before, so we don't
+        // have to clear the meta-data ring.
+        long session;
+        do {
+            session = new Random().nextLong();
+        } while (session == mMap.getLong(OFF_SESSION));
+        mSession = session;
+
+        mMap.putInt(OFF_MAGIC, 0);          // not valid until the header is complete
+        mMap.putInt(OFF_VERSION, VERSION);
+        mMap.putInt(OFF_DATA_LEN, dataLen);
+        mMap.putInt(OFF_META_LEN, metaLen);
+        mMap.putLong(OFF_SESSION, session);
+        mMap.putLong(OFF_CHECKPOINT_SEQ, -1);
+        mMap.putLong(OFF_TAIL_SEQ, 0);
+        mMap.putInt(OFF_FORMAT_LEN, 0);
+        mMap.putInt(OFF_MAGIC, MAGIC);
+    }
+
+    /**
+     * Returns a view of the data ring.  CircularEncoderBuffer stores packet data here.
+     */
+    public ByteBuffer getDataBuffer() {
+        ByteBuffer dup = mMap.duplicate();
+        dup.position(HEADER_SIZE + mMetaLen * RECORD_SIZE);
+        dup.limit(dup.position() + mDataLen);
+        return dup.slice();
+    }
+
+    /**
+     * Returns the number of meta-data records.
+     */
+    public int getMetaLen() {
+        return mMetaLen;
+    }
+
+    /**
+     * Stores an opaque description of the stream, e.g. the encoder's output format, which
+     * is needed to mux the packets after recovery.
+     */
+    public void setFormat(byte[] format) {
+        if (format.length > MAX_FORMAT_LEN) {
+            throw new RuntimeException("Format too large: " + format.length);
+        }
+        mMap.putInt(OFF_FORMAT_LEN, 0);
+        for (int i = 0; i < format.length; i++) {
+            mMap.put(OFF_FORMAT + i, format[i]);
+        }
+        mMap.putInt(OFF_FORMAT_LEN, format.length);
+    }
+
+    /**
+     * Records a packet whose data has already been copied into the data ring.
+     * <p>
+     * Records are stored by sequence number, so the Nth packet goes in slot N mod metaLen,
+     * which matches where CircularEncoderBuffer puts it in its own meta-data arrays.
+     */
+    public void append(int flags, long ptsUsec, int start, int length) {
+        long seq = mNextSeq++;
+        int off = recordOffset(mMetaLen, seq);
+        // Invalidate the slot first, so a half-written record can't pass for a valid one.
+        mMap.putInt(off + REC_CHECK, 0);
+        mMap.putLong(off + REC_SEQ, seq);
+        mMap.putLong(off + REC_PTS, ptsUsec);
+        mMap.putInt(off + REC_FLAGS, flags);
+        mMap.putInt(off + REC_START, start);
+        mMap.putInt(off + REC_LENGTH, length);
+        mMap.putInt(off + REC_CHECK, check(mSession, seq, ptsUsec, flags, start, length));
+
+        if ((flags & FLAG_SYNC_FRAME) != 0) {
+            mMap.putLong(OFF_CHECKPOINT_SEQ, seq);
+        }
+    }
+
+    /**
+     * Records that the oldest "count" packets have been evicted.  Must be called before the
+     * space they occupied is reused.
+     */
+    public void evict(int count) {
+        mTailSeq += count;
+        mMap.putLong(OFF_TAIL_SEQ, mTailSeq);
+    }
+
+    /**
+     * Computes the check value for a record.  Never returns zero.
+     */
+    private static int check(long session, long seq, long ptsUsec, int flags, int start,
+            int length) {
+        long h = session;
+        h = h * 31 + seq;
+        h = h * 31 + ptsUsec;
+        h = h * 31 + flags;
+        h = h * 31 + start;
+        h = h * 31 + length;
+        int result = (int) (h ^ (h >>> 32));
+        return result == 0 ? 1 : result;
+    }
+
+    /**
+     * Reads back the packets that survived in a journal file.  The result starts at a sync
+     * frame, and may be empty.
+     *
+     * @throws IOException If the file can't be read, or isn't a journal.
+     */
+    public static Recovery recover(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        MappedByteBuffer map;
+        try {
+            map = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+        } finally {
+            raf.close();
+        }
+        if (map.capacity() < HEADER_SIZE || map.getInt(OFF_MAGIC) != MAGIC ||
+                map.getInt(OFF_VERSION) != VERSION) {
+            throw new IOException("Not a journal: " + file);
+        }
+        int dataLen = map.getInt(OFF_DATA_LEN);
+        int metaLen = map.getInt(OFF_META_LEN);
+        if (map.capacity() < HEADER_SIZE + (long) metaLen * RECORD_SIZE + dataLen) {
+            throw new IOException("Journal truncated: " + file);
+        }
+        long session = map.getLong(OFF_SESSION);
+        long tail = map.getLong(OFF_TAIL_SEQ);
+        int formatLen = map.getInt(OFF_FORMAT_LEN);
+        byte[] format = new byte[Math.max(0, Math.min(formatLen, MAX_FORMAT_LEN))];
+        for (int i = 0; i < format.length; i++) {
+            format[i] = map.get(OFF_FORMAT + i);
+        }
+
+        // Find the newest record.  The checkpoint is at most a GOP behind.
+        long newest = map.getLong(OFF_CHECKPOINT_SEQ);
+        if (newest >= 0 && !isValid(map, session, metaLen, newest)) {
+            throw new IOException("Journal checkpoint is damaged: " + file);
+        }
+        while (isValid(map, session, metaLen, newest + 1)) {
+            newest++;
+        }
+
+        // Walk backward until we run out of records, or reach the packets the buffer had
+        // evicted.  Packets are stored back to back, with one spare byte after each.
+        long oldest = newest + 1;
+        long span = 0;
+        int nextStart = -1;
+        for (long seq = newest; seq >= tail && newest - seq < metaLen; seq--) {
+            if (!isValid(map, session, metaLen, seq)) {
+                break;
+            }
+            int off = recordOffset(metaLen, seq);
+            int start = map.getInt(off + REC_START);
+            int length = map.getInt(off + REC_LENGTH);
+            if (nextStart >= 0 && (start + length + 1) % dataLen != nextStart) {
+                break;      // buffer was emptied and restarted here
+            }
+            span += length + 1;
+            if (span > dataLen) {
+                break;
+            }
+            nextStart = start;
+            oldest = seq;
+        }
+
+        // Decoding has to start at a sync frame.
+        while (oldest <= newest) {
+            int flags = map.getInt(recordOffset(metaLen, oldest) + REC_FLAGS);
+            if ((flags & FLAG_SYNC_FRAME) != 0) {
+                break;
+            }
+            oldest++;
+        }
+
+        int count = (int) (newest - oldest + 1);
+        int[] flags = new int[count];
+        long[] ptsUsec = new long[count];
+        int[] start = new int[count];
+        int[] length = new int[count];
+        for (int i = 0; i < count; i++) {
+            int off = recordOffset(metaLen, oldest + i);
+            flags[i] = map.getInt(off + REC_FLAGS);
+            ptsUsec[i] = map.getLong(off + REC_PTS);
+            start[i] = map.getInt(off + REC_START);
+            length[i] = map.getInt(off + REC_LENGTH);
+        }
+
+        ByteBuffer data = map.duplicate();
+        data.position(HEADER_SIZE + metaLen * RECORD_SIZE);
+        data.limit(data.position() + dataLen);
+        return new Recovery(data.slice(), format, flags, ptsUsec, start, length);
+    }
+
+    private static int recordOffset(int metaLen, long seq) {
+        return HEADER_SIZE + (int) (seq % metaLen) * RECORD_SIZE;
+    }
+
+    /**
+     * Returns true if the record for "seq" is present and intact.
+     */
+    private static boolean isValid(ByteBuffer map, long session, int metaLen, long seq) {
+        if (seq < 0) {
+            return false;
+        }
+        int off = recordOffset(metaLen, seq);
+        return map.getLong(off + REC_SEQ) == seq &&
+                map.getInt(off + REC_CHECK) == check(session, seq,
+                        map.getLong(off + REC_PTS), map.getInt(off + REC_FLAGS),
+                        map.getInt(off + REC_START), map.getInt(off + REC_LENGTH));
+    }
+
+    /**
+     * Packets read back from a journal, oldest first.
+     */
+    public static class Recovery {
+        private final ByteBuffer mData;
+        private final byte[] mFormat;
+        private final int[] mFlags;
+        private final long[] mPtsUsec;
+        private final int[] mStart;
+        private final int[] mLength;
+
+        private Recovery(ByteBuffer data, byte[] format, int[] flags, long[] ptsUsec,
+                int[] start, int[] length) {
+            mData = data;
+            mFormat = format;
+            mFlags = flags;
+            mPtsUsec = ptsUsec;
+            mStart = start;
+            mLength = length;
+        }
+
+        /**
+         * Returns the stream description passed to setFormat(), or an empty array.
+         */
+        public byte[] getFormat() {
+            return mFormat;
+        }
+
+        public int getPacketCount() {
+            return mFlags.length;
+        }
+
+        public int getFlags(int index) {
+            return mFlags[index];
+        }
+
+        public long getPtsUsec(int index) {
+            return mPtsUsec[index];
+        }
+
+        public int getLength(int index) {
+            return mLength[index];
+        }
+
+        /**
+         * Copies a packet's data into "dst", at its current position.
+         */
+        public void getPacket(int index, ByteBuffer dst) {
+            int start = mStart[index];
+            int length = mLength[index];
+            int dataLen = mData.capacity();
+            ByteBuffer src = mData.duplicate();
+            if (start + length <= dataLen) {
+                src.limit(start + length).position(start);
+                dst.put(src);
+            } else {
+                int firstSize = dataLen - start;
+                src.position(start);
+                dst.put(src);
+                src.clear();
+                src.limit(length - firstSize);
+                dst.put(src);
+            }
+        }
+    }
+}
@@ -0,0 +1,145 @@
+/*
+ * Copyright 2026 The CombineCameras Authors. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.grafika;
+
+/**
+ * Counters describing the state of a circular encoder buffer.
+ * <p>
+ * The buffer keeps a live instance that's updated on the encoder thread.  Other threads
+ * get a snapshot by passing their own instance to CircularEncoderBuffer.getStats() or
+ * CircularEncoder.getStats(), which copies the fields over.  The copy never blocks the
+ * encoder thread: the writer bumps a sequence number before and after each update, and
+ * the reader retries if the number changed while it was copying.  Keep an instance around
+ * and reuse it to avoid allocating.
+ * <p>
+ * The fields are volatile.  A sequence lock over plain fields doesn't work in Java: the
+ * memory model lets plain reads and writes move across the volatile sequence accesses,
+ * and a plain long can be torn on 32-bit ARM.  Making every access volatile keeps them in
+ * program order, and the counters are only updated a few times per packet, so the cost
+ * doesn't matter.
+ * <p>
+ * Counts are totals since the buffer was created, unless noted otherwise.
+ */
+public class CircularEncoderStats {
+    /** Bytes of encoded data currently held. */
+    public volatile long bytesHeld;
+    /** Packets currently held. */
+    public volatile int packetsHeld;
+    /** Current size of the data buffer, in bytes. */
+    public volatile int dataBufferSize;
+    /** Current number of packets the meta-data buffer can hold. */
+    public volatile int metaBufferCount;
+
+    /** Packets added. */
+    public volatile long packetsAdded;
+    /** Sync frames added. */
+    public volatile long syncFrames;
+    /** Packets that were split across the end of the data buffer. */
+    public volatile long wrappedPackets;
+    /** Packets thrown away, e.g. because the buffer was full while pinned. */
+    public volatile long droppedPackets;
+    /** GOPs evicted because we ran out of meta-data entries. */
+    public volatile long metaEvictions;
+    /** GOPs evicted because we ran out of data space. */
+    public volatile long dataEvictions;
+    /** Size of the largest packet seen, in bytes. */
+    public volatile int maxPacketSize;
+
+    /** Packets drained from the encoder. */
+    public volatile long packetsDrained;
+    /** Time between capture and drain for the most recent packet, in microseconds. */
+    public volatile long drainLatencyLastUsec;
+    /** Largest capture-to-drain time seen, in microseconds. */
+    public volatile long drainLatencyMaxUsec;
+    /** Sum of capture-to-drain times, in microseconds.  Divide by packetsDrained. */
+    public volatile long drainLatencyTotalUsec;
+
+    // Odd while an update is in progress.  Only one thread may update an instance.
+    private volatile int mSequence;
+
+    /**
+     * Copies a consistent snapshot of "src" into this object.  May be called on any thread.
+     */
+    public void copyFrom(CircularEncoderStats src) {
+        while (true) {
+            int seq = src.mSequence;
+            if ((seq & 1) != 0) {
+                Thread.yield();     // writer is mid-update
+                continue;
+            }
+
+            bytesHeld = src.bytesHeld;
+            packetsHeld = src.packetsHeld;
+            dataBufferSize = src.dataBufferSize;
+            metaBufferCount = src.metaBufferCount;
+            packetsAdded = src.packetsAdded;
+            syncFrames = src.syncFrames;
+            wrappedPackets = src.wrappedPackets;
+            droppedPackets = src.droppedPackets;
+            metaEvictions = src.metaEvictions;
+            dataEvictions = src.dataEvictions;
+            maxPacketSize = src.maxPacketSize;
+            packetsDrained = src.packetsDrained;
+            drainLatencyLastUsec = src.drainLatencyLastUsec;
+            drainLatencyMaxUsec = src.drainLatencyMaxUsec;
+            drainLatencyTotalUsec = src.drainLatencyTotalUsec;
+
+            if (src.mSequence == seq) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Marks the start of an update.  Call on the updating thread.
+     */
+    void beginUpdate() {
+        mSequence++;
+    }
+
+    /**
+     * Marks the end of an update.  Call on the updating thread.
+     */
+    void endUpdate() {
+        mSequence++;
+    }
+
+    /**
+     * Records the capture-to-drain time of a packet pulled from the encoder.
+     */
+    void recordDrainLatency(long latencyUsec) {
+        beginUpdate();
+        packetsDrained++;
+        drainLatencyLastUsec = latencyUsec;
+        if (latencyUsec > drainLatencyMaxUsec) {
+            drainLatencyMaxUsec = latencyUsec;
+        }
+        drainLatencyTotalUsec += latencyUsec;
+        endUpdate();
+    }
+
+    @Override
+    public String toString() {
+        return "held=" + bytesHeld + "B/" + packetsHeld + "pkt of " + dataBufferSize + "B/" +
+                metaBufferCount + "pkt, added=" + packetsAdded + " sync=" + syncFrames +
+                " wrapped=" + wrappedPackets + " dropped=" + droppedPackets +
+                " evict(meta/data)=" + metaEvictions + "/" + dataEvictions +
+                " maxPkt=" + maxPacketSize + " drainLat(last/max/avg)=" +
+                drainLatencyLastUsec + "/" + drainLatencyMaxUsec + "/" +
+                (packetsDrained == 0 ? 0 : drainLatencyTotalUsec / packetsDrained) + "us";
+    }
+}
@@ -0,0 +1,584 @@
+/*
+ * Copyright 2026 The CombineCameras Authors. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.grafika;
+
+import android.content.Context;
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
+import android.media.MediaCodecList;
+import android.media.MediaFormat;
+import android.os.Build;
+import android.util.Log;
+import android.util.Range;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+
+/**
+ * Remembers what the device's codecs can do, so we don't have to ask every time.
+ * <p>
+ * Walking MediaCodecList and pulling the capabilities out of each codec takes a noticeable
+ * amount of time, and so does discovering by trial that a codec won't accept a
+ * configuration.  We do the walk once, keep the results in memory, and write them to a
+ * small file in the app's cache directory.  The file is tagged with the OS build
+ * fingerprint, so it's thrown away when the system (and with it the codec set) changes.
+ * <p>
+ * For each codec we keep its name, whether it's an encoder, whether it's a software
+ * implementation, and per supported type the color formats, profile/level pairs, and (on
+ * API 21+) the supported sizes, frame rates, bit rates, and bit rate modes.  Queries are a
+ * scan of an in-memory array.
+ * <p>
+ * Call initialize() early, e.g. from Activity#onCreate(); it loads or builds the cache on a
+ * background thread.  Without it queries still work, but build the cache in memory on
+ * first use and don't save it.
+ */
+public class CodecCapabilityCache {
+    private static final String TAG = MainActivity.TAG;
+    private static final boolean VERBOSE = false;
+
+    private static final String CACHE_FILE_NAME = "codec-caps.bin";
+    private static final int MAGIC = 0x43434331;    // "CCC1"
+    private static final int VERSION = 3;
+
+    // Housekeeping.
+    private static final Object sLock = new Object();
+    private static CodecCapabilityCache sInstance = null;
+
+    private File mCacheFile;            // guarded by sLock
+    private CodecCaps[] mCodecs;        // guarded by sLock; null until loaded
+
+    /**
+     * What one codec can do.  Immutable.
+     */
+    public static class CodecCaps {
+        final String mName;
+        final boolean mIsEncoder;
+        final boolean mIsSoftware;
+        final TypeCaps[] mTypes;
+
+        CodecCaps(String name, boolean isEncoder, boolean isSoftware, TypeCaps[] types) {
+            mName = name;
+            mIsEncoder = isEncoder;
+            mIsSoftware = isSoftware;
+            mTypes = types;
+        }
+
+        public String getName() {
+            return mName;
+        }
+
+        public boolean isEncoder() {
+            return mIsEncoder;
+        }
+
+        public boolean isSoftware() {
+            return mIsSoftware;
+        }
+
+        /**
+         * Returns the capabilities for the MIME type, or null if the codec doesn't handle it.
+         */
+        public TypeCaps getTypeCaps(String mimeType) {
+            for (TypeCaps type : mTypes) {
+                if (type.mMimeType.equalsIgnoreCase(mimeType)) {
+                    return type;
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * What one codec can do with one MIME type.  Immutable.
+     * <p>
+     * Size, frame rate, and bit rate limits are only known on API 21+.  Before that,
+     * everything is assumed to be supported.
+     */
+    public static class TypeCaps {
+        final String mMimeType;
+        final int[] mColorFormats;
+        final int[] mProfiles;          // parallel with mLevels
+        final int[] mLevels;
+        final boolean mHasVideoLimits;
+        final int mMinWidth, mMaxWidth, mWidthAlignment;
+        final int mMinHeight, mMaxHeight, mHeightAlignment;
+        final int mMaxFrameRate;
+        final int mMaxBitRate;
+        final int mBitrateModes;        // bit (1 << mode) set for each supported mode
+
+        TypeCaps(String mimeType, int[] colorFormats, int[] profiles, int[] levels,
+                boolean hasVideoLimits, int minWidth, int maxWidth, int widthAlignment,
+                int minHeight, int maxHeight, int heightAlignment, int maxFrameRate,
+                int maxBitRate, int bitrateModes) {
+            mMimeType = mimeType;
+            mColorFormats = colorFormats;
+            mProfiles = profiles;
+            mLevels = levels;
+            mHasVideoLimits = hasVideoLimits;
+            mMinWidth = minWidth;
+            mMaxWidth = maxWidth;
+            mWidthAlignment = widthAlignment;
+            mMinHeight = minHeight;
+            mMaxHeight = maxHeight;
+            mHeightAlignment = heightAlignment;
+            mMaxFrameRate = maxFrameRate;
+            mMaxBitRate = maxBitRate;
+            mBitrateModes = bitrateModes;
+        }
+
+        public String getMimeType() {
+            return mMimeType;
+        }
+
+        public boolean supportsColorFormat(int colorFormat) {
+            for (int format : mColorFormats) {
+                if (format == colorFormat) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Returns the highest level supported for the profile, or -1 if the profile isn't
+         * supported.
+         */
+        public int getMaxLevel(int profile) {
+            int maxLevel = -1;
+            for (int i = 0; i < mProfiles.length; i++) {
+                if (mProfiles[i] == profile && mLevels[i] > maxLevel) {
+                    maxLevel = mLevels[i];
+                }
+            }
+            return maxLevel;
+        }
+
+        public boolean isSizeSupported(int width, int height) {
+            if (!mHasVideoLimits) {
+                return true;
+            }
+            return width >= mMinWidth && width <= mMaxWidth && width % mWidthAlignment == 0 &&
+                    height >= mMinHeight && height <= mMaxHeight &&
+                    height % mHeightAlignment == 0;
+        }
+
+        public boolean isSizeAndRateSupported(int width, int height, int frameRate) {
+            return isSizeSupported(width, height) &&
+                    (!mHasVideoLimits || frameRate <= mMaxFrameRate);
+        }
+
+        public boolean isBitRateSupported(int bitRate) {
+            return !mHasVideoLimits || bitRate <= mMaxBitRate;
+        }
+
+        /**
+         * @param mode One of the MediaCodecInfo.EncoderCapabilities.BITRATE_MODE_* values.
+         */
+        public boolean isBitrateModeSupported(int mode) {
+            return (mBitrateModes & (1 << mode)) != 0;
+        }
+    }
+
+    /**
+     * Returns the singleton instance.
+     */
+    public static CodecCapabilityCache getInstance() {
+        synchronized (sLock) {
+            if (sInstance == null) {
+                sInstance = new CodecCapabilityCache();
+            }
+            return sInstance;
+        }
+    }
+
+    private CodecCapabilityCache() {}
+
+    /**
+     * Tells the cache where to keep its file, and starts loading it in the background.
+     */
+    public static void initialize(Context context) {
+        final CodecCapabilityCache cache = getInstance();
+        synchronized (sLock) {
+            if (cache.mCacheFile != null) {
+                return;
+            }
+            cache.mCacheFile = new File(context.getCacheDir(), CACHE_FILE_NAME);
+        }
+        Thread loader = new Thread("CodecCapabilityCache") {
+            @Override
+            public void run() {
+                cache.getCodecs();
+            }
+        };
+        loader.setDaemon(true);
+        loader.start();
+    }
+
+    /**
+     * Returns the capabilities of every codec on the device, loading or building the cache
+     * if necessary.
+     */
+    public CodecCaps[] getCodecs() {
+        synchronized (sLock) {
+            if (mCodecs != null) {
+                return mCodecs;
+            }
+            long startNsec = System.nanoTime();
+            CodecCaps[] codecs = null;
+            if (mCacheFile != null && mCacheFile.exists()) {
+                try {
+                    codecs = read(mCacheFile);
+                } catch (IOException ioe) {
+                    Log.w(TAG, "Unable to read codec cache, rebuilding", ioe);
+                }
+            }
+            if (codecs == null) {
+                codecs = enumerate();
+                if (mCacheFile != null) {
+                    try {
+                        write(mCacheFile, codecs);
+                    } catch (IOException ioe) {
+                        Log.w(TAG, "Unable to write codec cache", ioe);
+                    }
+                }
+            }
+            Log.d(TAG, "codec capabilities ready: " + codecs.length + " codecs in " +
+                    (System.nanoTime() - startNsec) / 1000 + "us");
+            mCodecs = codecs;
+            return codecs;
+        }
+    }
+
+    /**
+     * Returns the capabilities of the named codec, or null if there's no such codec.
+     */
+    public CodecCaps getCodec(String name) {
+        for (CodecCaps codec : getCodecs()) {
+            if (codec.mName.equals(name)) {
+                return codec;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Finds the best encoder for the type, size, and frame rate, taking input from a Surface.
+     * Hardware encoders are preferred over software ones; otherwise we go with the order in
+     * which the platform lists them.
+     *
+     * @return The codec's name, or null if nothing fits.
+     */
+    public String findSurfaceEncoder(String mimeType, int width, int height, int frameRate) {
+        return findSurfaceEncoder(mimeType, width, height, frameRate, 0, -1, 0, -1, null);
+    }
+
+    /**
+     * Finds the best Surface-input encoder for the profile, as findSurfaceEncoder() does.
+     *
+     * @param whyNot If non-null and nothing fits, gets a description of why not.
+     * @return The codec's name, or null if nothing fits.
+     */
+    public String findEncoder(EncoderProfile profile, StringBuilder whyNot) {
+        return findSurfaceEncoder(profile.getMimeType(), profile.getWidth(),
+                profile.getHeight(), profile.getFrameRate(), profile.getBitRate(),
+                profile.getBitrateMode(), profile.getProfile(), profile.getLevel(), whyNot);
+    }
+
+    /**
+     * Finds the best encoder that passes every check.  Zero or negative values aren't
+     * checked.
+     */
+    private String findSurfaceEncoder(String mimeType, int width, int height, int frameRate,
+            int bitRate, int bitrateMode, int profile, int level, StringBuilder whyNot) {
+        CodecCaps software = null;
+        String problem = "no encoder for " + mimeType;
+        for (CodecCaps codec : getCodecs()) {
+            if (!codec.mIsEncoder) {
+                continue;
+            }
+            TypeCaps type = codec.getTypeCaps(mimeType);
+            if (type == null) {
+                continue;
+            }
+            if (!type.supportsColorFormat(
+                    MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface)) {
+                problem = codec.mName + " doesn't take Surface input";
+                continue;
+            }
+            if (!type.isSizeAndRateSupported(width, height, frameRate)) {
+                problem = codec.mName + " can't do " + width + "x" + height + "@" + frameRate;
+                continue;
+            }
+            if (bitRate > 0 && !type.isBitRateSupported(bitRate)) {
+                problem = codec.mName + " can't do " + bitRate + " bps";
+                continue;
+            }
+            if (bitrateMode >= 0 && !type.isBitrateModeSupported(bitrateMode)) {
+                problem = codec.mName + " doesn't support bit rate mode " + bitrateMode;
+                continue;
+            }
+            // Some codecs don't list any profiles; give them the benefit of the doubt.
+            if (profile > 0 && type.mProfiles.length != 0 &&
+                    type.getMaxLevel(profile) < Math.max(level, 0)) {
+                problem = codec.mName + " doesn't support profile " + profile +
+                        (level > 0 ? " at level " + level : "");
+                continue;
+            }
+            if (!codec.mIsSoftware) {
+                return codec.mName;
+            }
+            if (software == null) {
+                software = codec;
+            }
+        }
+        if (software != null) {
+            return software.mName;
+        }
+        if (whyNot != null) {
+            whyNot.append(problem);
+        }
+        return null;
+    }
+
+    /**
+     * Creates an encoder for a Surface-input video format, picking it from the cache.  Falls
+     * back to MediaCodec#createEncoderByType() if the cache doesn't know of anything
+     * suitable.
+     *
+     * @param format Must have the MIME type, width, and height set.  The frame rate, bit
+     *     rate, bit rate mode, profile, and level are checked if present.
+     */
+    public static MediaCodec createVideoEncoder(MediaFormat format) throws IOException {
+        String mimeType = format.getString(MediaFormat.KEY_MIME);
+        String name = getInstance().findSurfaceEncoder(mimeType,
+                format.getInteger(MediaFormat.KEY_WIDTH),
+                format.getInteger(MediaFormat.KEY_HEIGHT),
+                getInteger(format, MediaFormat.KEY_FRAME_RATE, 0),
+                getInteger(format, MediaFormat.KEY_BIT_RATE, 0),
+                getInteger(format, MediaFormat.KEY_BITRATE_MODE, -1),
+                getInteger(format, MediaFormat.KEY_PROFILE, 0),
+                getInteger(format, MediaFormat.KEY_LEVEL, -1), null);
+        if (name == null) {
+            Log.w(TAG, "No cached encoder fits " + format + ", asking by type");
+            return MediaCodec.createEncoderByType(mimeType);
+        }
+        if (VERBOSE) Log.d(TAG, "using encoder " + name);
+        return MediaCodec.createByCodecName(name);
+    }
+
+    private static int getInteger(MediaFormat format, String key, int defaultValue) {
+        return format.containsKey(key) ? format.getInteger(key) : defaultValue;
+    }
+
+    /**
+     * Returns true if the codec is a software implementation.
+     */
+    public static boolean isSoftwareCodec(String name) {
+        CodecCaps codec = getInstance().getCodec(name);
+        if (codec != null) {
+            return codec.mIsSoftware;
+        }
+        return isSoftwareCodecName(name);
+    }
+
+    /**
+     * Guesses from the name whether a codec is a software implementation.  The platform
+     * can tell us directly from API 29 (MediaCodecInfo#isSoftwareOnly()), but we build
+     * against API 28, and the platform's own software codecs all follow this naming.
+     */
+    private static boolean isSoftwareCodecName(String name) {
+        return name.startsWith("OMX.google.") || name.startsWith("c2.android.");
+    }
+
+    /**
+     * Asks MediaCodecList about every codec.  This is the slow part.
+     */
+    private static CodecCaps[] enumerate() {
+        MediaCodecInfo[] infos;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            infos = new MediaCodecList(MediaCodecList.REGULAR_CODECS).getCodecInfos();
+        } else {
+            infos = new MediaCodecInfo[MediaCodecList.getCodecCount()];
+            for (int i = 0; i < infos.length; i++) {
+                infos[i] = MediaCodecList.getCodecInfoAt(i);
+            }
+        }
+
+        ArrayList<CodecCaps> codecs = new ArrayList<CodecCaps>(infos.length);
+        for (MediaCodecInfo info : infos) {
+            String[] mimeTypes = info.getSupportedTypes();
+            ArrayList<TypeCaps> types = new ArrayList<TypeCaps>(mimeTypes.length);
+            for (String mimeType : mimeTypes) {
+                try {
+                    types.add(describe(mimeType, info.getCapabilitiesForType(mimeType)));
+                } catch (IllegalArgumentException iae) {
+                    // Some codecs list types they then refuse to describe.
+                    Log.w(TAG, "No capabilities for " + info.getName() + " " + mimeType);
+                }
+            }
+
+            boolean isSoftware = isSoftwareCodecName(info.getName());
+            codecs.add(new CodecCaps(info.getName(), info.isEncoder(), isSoftware,
+                    types.toArray(new TypeCaps[types.size()])));
+        }
+        return codecs.toArray(new CodecCaps[codecs.size()]);
+    }
+
+    private static TypeCaps describe(String mimeType,
+            MediaCodecInfo.CodecCapabilities caps) {
+        int[] colorFormats = caps.colorFormats != null ? caps.colorFormats : new int[0];
+        MediaCodecInfo.CodecProfileLevel[] profileLevels = caps.profileLevels != null ?
+                caps.profileLevels : new MediaCodecInfo.CodecProfileLevel[0];
+        int[] profiles = new int[profileLevels.length];
+        int[] levels = new int[profileLevels.length];
+        for (int i = 0; i < profileLevels.length; i++) {
+            profiles[i] = profileLevels[i].profile;
+            levels[i] = profileLevels[i].level;
+        }
+
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            MediaCodecInfo.VideoCapabilities video = caps.getVideoCapabilities();
+            if (video != null) {
+                Range<Integer> widths = video.getSupportedWidths();
+                Range<Integer> heights = video.getSupportedHeights();
+                Range<Integer> frameRates = video.getSupportedFrameRates();
+                int bitrateModes = -1;
+                MediaCodecInfo.EncoderCapabilities encoder = caps.getEncoderCapabilities();
+                if (encoder != null) {
+                    bitrateModes = 0;
+                    int[] modes = new int[] {
+                            MediaCodecInfo.EncoderCapabilities.BITRATE_MODE_CQ,
+                            MediaCodecInfo.EncoderCapabilities.BITRATE_MODE_VBR,
+                            MediaCodecInfo.EncoderCapabilities.BITRATE_MODE_CBR };
+                    for (int mode : modes) {
+                        if (encoder.isBitrateModeSupported(mode)) {
+                            bitrateModes |= 1 << mode;
+                        }
+                    }
+                }
+                return new TypeCaps(mimeType, colorFormats, profiles, levels, true,
+                        widths.getLower(), widths.getUpper(), video.getWidthAlignment(),
+                        heights.getLower(), heights.getUpper(), video.getHeightAlignment(),
+                        frameRates.getUpper(), video.getBitrateRange().getUpper(),
+                        bitrateModes);
+            }
+        }
+        return new TypeCaps(mimeType, colorFormats, profiles, levels, false,
+                0, 0, 1, 0, 0, 1, 0, 0, -1);
+    }
+
+    /**
+     * Reads the cache file.  Returns null if it was written by a different OS build.
+     */
+    private static CodecCaps[] read(File file) throws IOException {
+        DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(file)));
+        try {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION ||
+                    !in.readUTF().equals(Build.FINGERPRINT)) {
+                Log.d(TAG, "codec cache is stale");
+                return null;
+            }
+            CodecCaps[] codecs = new CodecCaps[in.readInt()];
+            for (int i = 0; i < codecs.length; i++) {
+                String name = in.readUTF();
+                boolean isEncoder = in.readBoolean();
+                boolean isSoftware = in.readBoolean();
+                TypeCaps[] types = new TypeCaps[in.readInt()];
+                for (int j = 0; j < types.length; j++) {
+                    String mimeType = in.readUTF();
+                    int[] colorFormats = readInts(in);
+                    int[] profiles = readInts(in);
+                    int[] levels = readInts(in);
+                    types[j] = new TypeCaps(mimeType, colorFormats, profiles, levels,
+                            in.readBoolean(), in.readInt(), in.readInt(), in.readInt(),
+                            in.readInt(), in.readInt(), in.readInt(), in.readInt(),
+                            in.readInt(), in.readInt());
+                }
+                codecs[i] = new CodecCaps(name, isEncoder, isSoftware, types);
+            }
+            return codecs;
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Writes the cache file.  We write to a temporary file and rename it, so a reader never
+     * sees half a file.
+     */
+    private static void write(File file, CodecCaps[] codecs) throws IOException {
+        File tmpFile = new File(file.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(tmpFile)));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeUTF(Build.FINGERPRINT);
+            out.writeInt(codecs.length);
+            for (CodecCaps codec : codecs) {
+                out.writeUTF(codec.mName);
+                out.writeBoolean(codec.mIsEncoder);
+                out.writeBoolean(codec.mIsSoftware);
+                out.writeInt(codec.mTypes.length);
+                for (TypeCaps type : codec.mTypes) {
+                    out.writeUTF(type.mMimeType);
+                    writeInts(out, type.mColorFormats);
+                    writeInts(out, type.mProfiles);
+                    writeInts(out, type.mLevels);
+                    out.writeBoolean(type.mHasVideoLimits);
+                    out.writeInt(type.mMinWidth);
+                    out.writeInt(type.mMaxWidth);
+                    out.writeInt(type.mWidthAlignment);
+                    out.writeInt(type.mMinHeight);
+                    out.writeInt(type.mMaxHeight);
+                    out.writeInt(type.mHeightAlignment);
+                    out.writeInt(type.mMaxFrameRate);
+                    out.writeInt(type.mMaxBitRate);
+                    out.writeInt(type.mBitrateModes);
+                }
+            }
+        } finally {
+            out.close();
+        }
+        if (!tmpFile.renameTo(file)) {
+            throw new IOException("Unable to rename " + tmpFile + " to " + file);
+        }
+    }
+
+    private static int[] readInts(DataInputStream in) throws IOException {
+        int[] values = new int[in.readInt()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = in.readInt();
+        }
+        return values;
+    }
+
+    private static void writeInts(DataOutputStream out, int[] values) throws IOException {
+        out.writeInt(values.length);
+        for (int value : values) {
+            out.writeInt(value);
+        }
+    }
+}
@@ -79,6 +79,7 @@ public class ContinuousCaptureActivity extends Activity implements SurfaceHolder
     private CircularEncoder mCircEncoder;
     private WindowSurface mEncoderSurface;
     private boolean mFileSaveInProgress;
+    private boolean mAudioPermissionRequested;
 
     private MainHandler mHandler;
     private float mSecondsOfVideo;
@@ -107,6 +108,14 @@ public class ContinuousCaptureActivity extends Activity implements SurfaceHolder
             sendMessage(obtainMessage(MSG_FILE_SAVE_COMPLETE, status, 0, null));
         }
 
+        // CircularEncoder.Callback, called on encoder thread
+        @Override
+        public void fileSaveThroughput(long byteCount, long elapsedUsec) {
+            Log.d(TAG, "saved " + byteCount + " bytes in " + elapsedUsec / 1000 + " ms (" +
+                    (elapsedUsec == 0 ? 0 : byteCount * 1000000 / elapsedUsec / 1024) +
+                    " KiB/s)");
+        }
+
         // CircularEncoder.Callback, called on encoder thread
         @Override
         public void bufferStatus(long totalTimeMsec) {
@@ -182,8 +191,13 @@ public class ContinuousCaptureActivity extends Activity implements SurfaceHolder
     protected void onResume() {
         super.onResume();
 
-        if (!PermissionHelper.hasCameraPermission(this)) {
-            PermissionHelper.requestCameraPermission(this, false);
+        // The microphone is optional.  Ask for it along with the camera, but only once, so
+        // a denial doesn't put us in a loop.
+        boolean askForAudio = !mAudioPermissionRequested &&
+                !PermissionHelper.hasRecordAudioPermission(this);
+        if (!PermissionHelper.hasCameraPermission(this) || askForAudio) {
+            mAudioPermissionRequested |= askForAudio;
+            PermissionHelper.requestCameraPermission(this, false, askForAudio);
         } else  {
             if (mCamera == null) {
                 // Ideally, the frames from the camera are at the same resolution as the input to
@@ -382,7 +396,7 @@ public class ContinuousCaptureActivity extends Activity implements SurfaceHolder
         //
         // The display surface that we use for the SurfaceView, and the encoder surface we
         // use for video, use the same EGL context.
-        mEglCore = new EglCore(null, EglCore.FLAG_RECORDABLE);
+        mEglCore = new EglCore(null, EglCore.FLAG_RECORDABLE | EglCore.FLAG_TRY_GLES3);
         mDisplaySurface = new WindowSurface(mEglCore, holder.getSurface(), false);
         mDisplaySurface.makeCurrent();
 
@@ -409,9 +423,12 @@ public class ContinuousCaptureActivity extends Activity implements SurfaceHolder
         // TODO: adjust bit rate based on frame rate?
         // TODO: adjust video width/height based on what we're getting from the camera preview?
         //       (can we guarantee that camera preview size is compatible with AVC video encoder?)
+        // Buffer microphone audio too, if we're allowed to.
+        boolean recordAudio = PermissionHelper.hasRecordAudioPermission(this);
         try {
-            mCircEncoder = new CircularEncoder(VIDEO_WIDTH, VIDEO_HEIGHT, 6000000,
-                    mCameraPreviewThousandFps / 1000, 7, mHandler);
+            mCircEncoder = new CircularEncoder(1, VIDEO_WIDTH, VIDEO_HEIGHT, 6000000,
+                    mCameraPreviewThousandFps / 1000, 7, null, recordAudio, true, mHandler);
+            mCircEncoder.setRateControl(2000000, 8000000);
         } catch (IOException ioe) {
             throw new RuntimeException(ioe);
         }
@@ -446,7 +463,12 @@ public class ContinuousCaptureActivity extends Activity implements SurfaceHolder
             PermissionHelper.launchPermissionSettings(this);
             finish();
         } else {
-            openCamera(VIDEO_WIDTH, VIDEO_HEIGHT, DESIRED_PREVIEW_FPS);
+            if (!PermissionHelper.hasRecordAudioPermission(this)) {
+                Log.i(TAG, "no microphone permission, recording video only");
+            }
+            if (mCamera == null) {
+                openCamera(VIDEO_WIDTH, VIDEO_HEIGHT, DESIRED_PREVIEW_FPS);
+            }
         }
     }
 
@@ -482,16 +504,15 @@ public class ContinuousCaptureActivity extends Activity implements SurfaceHolder
         drawExtra(mFrameNum, viewWidth, viewHeight);
         mDisplaySurface.swapBuffers();
 
-        // Send it to the video encoder.
-        if (!mFileSaveInProgress) {
-            mEncoderSurface.makeCurrent();
-            GLES20.glViewport(0, 0, VIDEO_WIDTH, VIDEO_HEIGHT);
-//            mFullFrameBlit.drawFrame(mTextureId, mTmpMatrix);
-            drawExtra(mFrameNum, VIDEO_WIDTH, VIDEO_HEIGHT);
-            mCircEncoder.frameAvailableSoon();
-            mEncoderSurface.setPresentationTime(mCameraTexture.getTimestamp());
-            mEncoderSurface.swapBuffers();
-        }
+        // Send it to the video encoder.  The file save runs on its own thread, so we keep
+        // feeding the encoder while it's in progress.
+        mEncoderSurface.makeCurrent();
+        GLES20.glViewport(0, 0, VIDEO_WIDTH, VIDEO_HEIGHT);
+//        mFullFrameBlit.drawFrame(mTextureId, mTmpMatrix);
+        drawExtra(mFrameNum, VIDEO_WIDTH, VIDEO_HEIGHT);
+        mCircEncoder.frameAvailableSoon();
+        mEncoderSurface.setPresentationTime(mCameraTexture.getTimestamp());
+        mEncoderSurface.swapBuffers();
 
         mFrameNum++;
     }
@@ -0,0 +1,86 @@
+/*
+ * Copyright 2026 The CombineCameras Authors. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.grafika;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The output side of an encoder that pushes its output to us, rather than waiting to be
+ * polled.
+ * <p>
+ * MediaCodecEncoder implements this on top of MediaCodec's asynchronous mode.  The interface
+ * doesn't mention any framework types, so AsyncEncoderEngine can also be driven by a fake
+ * codec on a desktop JVM.
+ *
+ * @param <F> The type describing the output format, e.g. MediaFormat.
+ */
+public interface EncoderCodec<F> {
+    /**
+     * Receives output from the codec.  Calls arrive on a single thread chosen by the codec.
+     */
+    interface Listener<F> {
+        /**
+         * Called once, before any output buffers, with the format that the muxer needs.
+         */
+        void onOutputFormatChanged(F format);
+
+        /**
+         * Called when an output buffer is ready.  The buffer's position and limit bracket
+         * the data.  The listener must hand the buffer back with releaseOutputBuffer().
+         *
+         * @param index Identifies the buffer to the codec.
+         * @param flags MediaCodec.BufferInfo flags.
+         */
+        void onOutputBufferAvailable(int index, ByteBuffer data, int flags, long ptsUsec);
+
+        /**
+         * Called if the codec fails.  No further output will arrive.
+         */
+        void onError(Exception e);
+    }
+
+    /**
+     * Sets the listener.  Must be called before start().
+     */
+    void setListener(Listener<F> listener);
+
+    /**
+     * Starts the codec.  Output will be delivered to the listener.
+     */
+    void start();
+
+    /**
+     * Returns an output buffer to the codec.
+     */
+    void releaseOutputBuffer(int index);
+
+    /**
+     * Tells the codec no more input is coming.  It will finish with a buffer that has the
+     * end-of-stream flag set.
+     */
+    void signalEndOfInputStream();
+
+    /**
+     * Stops the codec.  No more calls will be made to the listener.
+     */
+    void stop();
+
+    /**
+     * Releases the codec's resources.
+     */
+    void release();
+}
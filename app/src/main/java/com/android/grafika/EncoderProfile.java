@@ -0,0 +1,370 @@
+/*
+ * Copyright 2026 The CombineCameras Authors. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.grafika;
+
+import android.media.MediaCodecInfo;
+import android.media.MediaFormat;
+import android.os.Build;
+import android.util.Log;
+
+/**
+ * Everything needed to configure a Surface-input video encoder: codec, size, frame rate,
+ * key frame spacing, and rate control.
+ * <p>
+ * Instances are immutable; use a Builder to make one.  Optional settings left unset are
+ * left out of the MediaFormat, so the codec picks its own default.  Settings the device's
+ * API level doesn't know about are dropped with a warning, since there's no way to ask for
+ * them anyway.
+ * <p>
+ * validate() checks the profile against the codecs on the device, using the
+ * CodecCapabilityCache.
+ */
+public class EncoderProfile {
+    private static final String TAG = MainActivity.TAG;
+
+    public static final String MIME_TYPE_AVC = "video/avc";     // H.264 Advanced Video Coding
+    public static final String MIME_TYPE_HEVC = "video/hevc";   // H.265 High Efficiency
+
+    /** Value for optional int settings meaning "let the codec decide". */
+    public static final int UNSET = -1;
+
+    // Build.VERSION_CODES.Q and MediaFormat.KEY_MAX_B_FRAMES, which aren't in the SDK we
+    // compile against.
+    private static final int API_Q = 29;
+    private static final String KEY_MAX_B_FRAMES = "max-bframes";
+
+    private final String mMimeType;
+    private final int mWidth;
+    private final int mHeight;
+    private final int mFrameRate;
+    private final int mIFrameIntervalSec;
+    private final int mBitRate;
+    private final int mBitrateMode;
+    private final int mQuality;
+    private final int mProfile;
+    private final int mLevel;
+    private final int mMaxBFrames;
+
+    /**
+     * Builds an EncoderProfile.  Defaults to H.264 at 30fps, with a key frame every
+     * 5 seconds.
+     */
+    public static class Builder {
+        private String mMimeType = MIME_TYPE_AVC;
+        private int mWidth;
+        private int mHeight;
+        private int mFrameRate = 30;
+        private int mIFrameIntervalSec = 5;
+        private int mBitRate;
+        private int mBitrateMode = UNSET;
+        private int mQuality = UNSET;
+        private int mProfile = UNSET;
+        private int mLevel = UNSET;
+        private int mMaxBFrames = UNSET;
+
+        public Builder(int width, int height, int bitRate) {
+            mWidth = width;
+            mHeight = height;
+            mBitRate = bitRate;
+        }
+
+        /**
+         * Starts from a copy of an existing profile.
+         */
+        public Builder(EncoderProfile profile) {
+            mMimeType = profile.mMimeType;
+            mWidth = profile.mWidth;
+            mHeight = profile.mHeight;
+            mFrameRate = profile.mFrameRate;
+            mIFrameIntervalSec = profile.mIFrameIntervalSec;
+            mBitRate = profile.mBitRate;
+            mBitrateMode = profile.mBitrateMode;
+            mQuality = profile.mQuality;
+            mProfile = profile.mProfile;
+            mLevel = profile.mLevel;
+            mMaxBFrames = profile.mMaxBFrames;
+        }
+
+        /**
+         * @param mimeType MIME_TYPE_AVC or MIME_TYPE_HEVC.
+         */
+        public Builder setMimeType(String mimeType) {
+            mMimeType = mimeType;
+            return this;
+        }
+
+        public Builder setSize(int width, int height) {
+            mWidth = width;
+            mHeight = height;
+            return this;
+        }
+
+        public Builder setFrameRate(int frameRate) {
+            mFrameRate = frameRate;
+            return this;
+        }
+
+        /**
+         * Sets the time between key frames.  Zero makes every frame a key frame.
+         */
+        public Builder setIFrameInterval(int seconds) {
+            mIFrameIntervalSec = seconds;
+            return this;
+        }
+
+        public Builder setBitRate(int bitRate) {
+            mBitRate = bitRate;
+            return this;
+        }
+
+        /**
+         * @param mode One of the MediaCodecInfo.EncoderCapabilities.BITRATE_MODE_* values.
+         *     Requires API 21.
+         */
+        public Builder setBitrateMode(int mode) {
+            mBitrateMode = mode;
+            return this;
+        }
+
+        /**
+         * Sets the quality for constant-quality mode, in the codec's own scale.  Requires
+         * API 28.
+         */
+        public Builder setQuality(int quality) {
+            mQuality = quality;
+            return this;
+        }
+
+        /**
+         * @param profile A MediaCodecInfo.CodecProfileLevel profile constant for the codec.
+         * @param level A matching level constant, or UNSET.  Requires API 23.
+         */
+        public Builder setProfileLevel(int profile, int level) {
+            mProfile = profile;
+            mLevel = level;
+            return this;
+        }
+
+        /**
+         * Allows or forbids B-frames.  Requires API 29.
+         *
+         * @param maxBFrames Largest number of B-frames between reference frames; zero to
+         *     turn them off.
+         */
+        public Builder setMaxBFrames(int maxBFrames) {
+            mMaxBFrames = maxBFrames;
+            return this;
+        }
+
+        /**
+         * Creates the profile.
+         *
+         * @throws IllegalArgumentException if the settings don't make sense.  This doesn't
+         *     check what the device supports; see EncoderProfile#validate().
+         */
+        public EncoderProfile build() {
+            if (!MIME_TYPE_AVC.equals(mMimeType) && !MIME_TYPE_HEVC.equals(mMimeType)) {
+                throw new IllegalArgumentException("Unsupported MIME type: " + mMimeType);
+            }
+            if (mWidth <= 0 || mHeight <= 0 || (mWidth & 1) != 0 || (mHeight & 1) != 0) {
+                throw new IllegalArgumentException("Bad size: " + mWidth + "x" + mHeight);
+            }
+            if (mFrameRate <= 0 || mIFrameIntervalSec < 0) {
+                throw new IllegalArgumentException("Bad frame rate " + mFrameRate +
+                        " or I-frame interval " + mIFrameIntervalSec);
+            }
+            if (mBitRate <= 0 &&
+                    mBitrateMode != MediaCodecInfo.EncoderCapabilities.BITRATE_MODE_CQ) {
+                throw new IllegalArgumentException("Bit rate required: " + mBitRate);
+            }
+            if (mQuality != UNSET &&
+                    mBitrateMode != MediaCodecInfo.EncoderCapabilities.BITRATE_MODE_CQ) {
+                throw new IllegalArgumentException("Quality only applies to CQ mode");
+            }
+            if (mLevel != UNSET && mProfile == UNSET) {
+                throw new IllegalArgumentException("Level requires a profile");
+            }
+            return new EncoderProfile(this);
+        }
+    }
+
+    private EncoderProfile(Builder builder) {
+        mMimeType = builder.mMimeType;
+        mWidth = builder.mWidth;
+        mHeight = builder.mHeight;
+        mFrameRate = builder.mFrameRate;
+        mIFrameIntervalSec = builder.mIFrameIntervalSec;
+        mBitRate = builder.mBitRate;
+        mBitrateMode = builder.mBitrateMode;
+        mQuality = builder.mQuality;
+        mProfile = builder.mProfile;
+        mLevel = builder.mLevel;
+        mMaxBFrames = builder.mMaxBFrames;
+    }
+
+    public String getMimeType() {
+        return mMimeType;
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    public int getFrameRate() {
+        return mFrameRate;
+    }
+
+    public int getIFrameInterval() {
+        return mIFrameIntervalSec;
+    }
+
+    public int getBitRate() {
+        return mBitRate;
+    }
+
+    public int getBitrateMode() {
+        return mBitrateMode;
+    }
+
+    public int getQuality() {
+        return mQuality;
+    }
+
+    public int getProfile() {
+        return mProfile;
+    }
+
+    public int getLevel() {
+        return mLevel;
+    }
+
+    public int getMaxBFrames() {
+        return mMaxBFrames;
+    }
+
+    /**
+     * Checks the profile against the encoders on this device.
+     *
+     * @throws IllegalArgumentException with the reason, if no encoder can handle it.
+     */
+    public void validate() {
+        StringBuilder whyNot = new StringBuilder();
+        if (CodecCapabilityCache.getInstance().findEncoder(this, whyNot) == null) {
+            throw new IllegalArgumentException("Can't encode " + this + ": " + whyNot);
+        }
+    }
+
+    /**
+     * Returns true if some encoder on this device can handle the profile.
+     */
+    public boolean isSupported() {
+        return CodecCapabilityCache.getInstance().findEncoder(this, null) != null;
+    }
+
+    /**
+     * Creates a MediaFormat for configuring a Surface-input encoder.
+     */
+    public MediaFormat toMediaFormat() {
+        MediaFormat format = MediaFormat.createVideoFormat(mMimeType, mWidth, mHeight);
+
+        // Set some properties.  Failing to specify some of these can cause the MediaCodec
+        // configure() call to throw an unhelpful exception.
+        format.setInteger(MediaFormat.KEY_COLOR_FORMAT,
+                MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface);
+        if (mBitRate > 0) {
+            format.setInteger(MediaFormat.KEY_BIT_RATE, mBitRate);
+        }
+        format.setInteger(MediaFormat.KEY_FRAME_RATE, mFrameRate);
+        format.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, mIFrameIntervalSec);
+
+        int api = Build.VERSION.SDK_INT;
+        if (mBitrateMode != UNSET) {
+            if (api >= Build.VERSION_CODES.LOLLIPOP) {
+                format.setInteger(MediaFormat.KEY_BITRATE_MODE, mBitrateMode);
+            } else {
+                Log.w(TAG, "Bit rate mode needs API 21, ignoring");
+            }
+        }
+        if (mQuality != UNSET) {
+            if (api >= Build.VERSION_CODES.P) {
+                format.setInteger(MediaFormat.KEY_QUALITY, mQuality);
+            } else {
+                Log.w(TAG, "Quality needs API 28, ignoring");
+            }
+        }
+        if (mProfile != UNSET) {
+            if (api >= Build.VERSION_CODES.M) {
+                format.setInteger(MediaFormat.KEY_PROFILE, mProfile);
+                if (mLevel != UNSET) {
+                    format.setInteger(MediaFormat.KEY_LEVEL, mLevel);
+                }
+            } else {
+                Log.w(TAG, "Profile and level need API 23, ignoring");
+            }
+        }
+        if (mMaxBFrames != UNSET) {
+            if (api >= API_Q) {
+                format.setInteger(KEY_MAX_B_FRAMES, mMaxBFrames);
+            } else {
+                Log.w(TAG, "B-frame control needs API 29, ignoring");
+            }
+        }
+        return format;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof EncoderProfile)) {
+            return false;
+        }
+        EncoderProfile other = (EncoderProfile) o;
+        return mMimeType.equals(other.mMimeType) &&
+                mWidth == other.mWidth && mHeight == other.mHeight &&
+                mFrameRate == other.mFrameRate &&
+                mIFrameIntervalSec == other.mIFrameIntervalSec &&
+                mBitRate == other.mBitRate && mBitrateMode == other.mBitrateMode &&
+                mQuality == other.mQuality && mProfile == other.mProfile &&
+                mLevel == other.mLevel && mMaxBFrames == other.mMaxBFrames;
+    }
+
+    @Override
+    public int hashCode() {
+        int hash = mMimeType.hashCode();
+        hash = hash * 31 + mWidth;
+        hash = hash * 31 + mHeight;
+        hash = hash * 31 + mFrameRate;
+        hash = hash * 31 + mIFrameIntervalSec;
+        hash = hash * 31 + mBitRate;
+        hash = hash * 31 + mBitrateMode;
+        hash = hash * 31 + mQuality;
+        hash = hash * 31 + mProfile;
+        hash = hash * 31 + mLevel;
+        hash = hash * 31 + mMaxBFrames;
+        return hash;
+    }
+
+    @Override
+    public String toString() {
+        return mMimeType + " " + mWidth + "x" + mHeight + "@" + mFrameRate + " " +
+                mBitRate + "bps mode=" + mBitrateMode + " gop=" + mIFrameIntervalSec +
+                "s profile=" + mProfile + "/" + mLevel + " bframes=" + mMaxBFrames;
+    }
+}
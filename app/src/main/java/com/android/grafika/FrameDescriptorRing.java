@@ -0,0 +1,227 @@
+/*
+ * Copyright 2026 The CombineCameras Authors. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.grafika;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Fixed-size ring of frame descriptors (texture transform, timestamp, texture name), passed
+ * from the thread that latches camera frames to an encoder thread.
+ * <p>
+ * Everything is allocated up front, so handing a frame over doesn't allocate.  There must be
+ * exactly one producer thread and one consumer thread.  The producer fills in the slot from
+ * beginWrite() and calls publish(); the consumer copies the oldest frame out with take().
+ * <p>
+ * When the ring is full the producer can discard the oldest frame with dropOldest(), wait
+ * for the consumer with awaitSpace(), or give up on the new frame.  Because the producer
+ * may advance the tail, the consumer copies a frame out before claiming it; if the claim
+ * fails the producer got there first, and the copy (which may be torn) is thrown away.
+ */
+public class FrameDescriptorRing {
+    /**
+     * A frame copied out of the ring.  Keep one around and reuse it.
+     */
+    public static class Frame {
+        /** Texture transform, from SurfaceTexture. */
+        public final float[] transform = new float[16];
+        /** Frame timestamp, from SurfaceTexture. */
+        public long timestampNanos;
+        /** System.nanoTime() when the frame was published. */
+        public long publishNanos;
+        /** Texture the frame was latched into. */
+        public int textureId;
+        /** Position of the frame among all frames published, from publish(). */
+        public int sequence;
+    }
+
+    private final int mMask;
+    private final float[][] mTransforms;
+    private final long[] mTimestampsNanos;
+    private final long[] mPublishNanos;
+    private final int[] mTextureIds;
+
+    // Free-running counters; the slot is the low bits.  Head is written only by the
+    // producer.  Tail is advanced by the consumer, and by the producer in dropOldest().
+    private volatile int mHead;
+    private final AtomicInteger mTail = new AtomicInteger();
+
+    // Set while the producer is waiting in awaitSpace().
+    private final Object mSpaceLock = new Object();
+    private volatile boolean mProducerWaiting;
+
+    /**
+     * Allocates the ring.
+     *
+     * @param capacity Number of frames that can be in flight.  Must be a power of two.
+     */
+    public FrameDescriptorRing(int capacity) {
+        if (capacity <= 0 || (capacity & (capacity - 1)) != 0) {
+            throw new IllegalArgumentException("Capacity must be a power of two: " + capacity);
+        }
+        mMask = capacity - 1;
+        mTransforms = new float[capacity][16];
+        mTimestampsNanos = new long[capacity];
+        mPublishNanos = new long[capacity];
+        mTextureIds = new int[capacity];
+    }
+
+    /**
+     * Returns the number of frames published but not yet taken.  May be called on any thread.
+     */
+    public int size() {
+        int size = mHead - mTail.get();
+        return size < 0 ? 0 : size;
+    }
+
+    /**
+     * Returns the slot for the next frame, or -1 if the ring is full.  Producer only.
+     */
+    public int beginWrite() {
+        int head = mHead;
+        if (head - mTail.get() > mMask) {
+            return -1;
+        }
+        return head & mMask;
+    }
+
+    /**
+     * Makes the slot returned by beginWrite() visible to the consumer.  Producer only.
+     *
+     * @return The frame's sequence number.  It counts up from zero, and wraps.
+     */
+    public int publish() {
+        int head = mHead;
+        mPublishNanos[head & mMask] = System.nanoTime();
+        mHead = head + 1;
+        return head;
+    }
+
+    /**
+     * If the ring is full, discards the oldest frame to make room.  Producer only.
+     *
+     * @return True if a frame was discarded.
+     */
+    public boolean dropOldest() {
+        int tail = mTail.get();
+        if (mHead - tail <= mMask) {
+            return false;
+        }
+        // If this fails, the consumer just took the frame, so there's room anyway.
+        return mTail.compareAndSet(tail, tail + 1);
+    }
+
+    /**
+     * Waits for the consumer to make room.  Producer only.
+     *
+     * @return True if there's room, false if we timed out.
+     */
+    public boolean awaitSpace(long timeoutMsec) {
+        long deadline = System.currentTimeMillis() + timeoutMsec;
+        synchronized (mSpaceLock) {
+            mProducerWaiting = true;
+            try {
+                while (mHead - mTail.get() > mMask) {
+                    long remaining = deadline - System.currentTimeMillis();
+                    if (remaining <= 0) {
+                        return false;
+                    }
+                    try {
+                        mSpaceLock.wait(remaining);
+                    } catch (InterruptedException ie) {
+                        return false;
+                    }
+                }
+                return true;
+            } finally {
+                mProducerWaiting = false;
+            }
+        }
+    }
+
+    /**
+     * Copies the oldest frame into "out" and removes it from the ring.  Consumer only.
+     *
+     * @return False if the ring was empty.
+     */
+    public boolean take(Frame out) {
+        while (true) {
+            int tail = mTail.get();
+            if (tail == mHead) {
+                return false;
+            }
+            int slot = tail & mMask;
+            System.arraycopy(mTransforms[slot], 0, out.transform, 0, 16);
+            out.timestampNanos = mTimestampsNanos[slot];
+            out.publishNanos = mPublishNanos[slot];
+            out.textureId = mTextureIds[slot];
+            out.sequence = tail;
+            if (mTail.compareAndSet(tail, tail + 1)) {
+                if (mProducerWaiting) {
+                    synchronized (mSpaceLock) {
+                        mSpaceLock.notify();
+                    }
+                }
+                return true;
+            }
+            // Producer dropped it out from under us; try the next one.
+        }
+    }
+
+    /**
+     * Discards everything but the newest frame.  Consumer only.
+     *
+     * @return The number of frames discarded.
+     */
+    public int skipToNewest() {
+        while (true) {
+            int tail = mTail.get();
+            int head = mHead;
+            if (head - tail <= 1) {
+                return 0;
+            }
+            if (mTail.compareAndSet(tail, head - 1)) {
+                return head - 1 - tail;
+            }
+        }
+    }
+
+    /**
+     * Discards all published frames.  Consumer only.
+     *
+     * @return The sequence number the next frame will get.
+     */
+    public int clear() {
+        int head = mHead;
+        mTail.set(head);
+        return head;
+    }
+
+    /**
+     * Returns the slot's texture transform, for the producer to fill in.
+     */
+    public float[] getTransform(int slot) {
+        return mTransforms[slot];
+    }
+
+    public void setTimestampNanos(int slot, long timestampNanos) {
+        mTimestampsNanos[slot] = timestampNanos;
+    }
+
+    public void setTextureId(int slot, int textureId) {
+        mTextureIds[slot] = textureId;
+    }
+}
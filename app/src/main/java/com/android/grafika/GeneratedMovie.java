@@ -57,15 +57,6 @@ public abstract class GeneratedMovie implements Content {
      */
     public abstract void create(File outputFile, ContentManager.ProgressUpdater prog);
 
-    /**
-     * Returns true if the codec has a software implementation.
-     */
-    private static boolean isSoftwareCodec(MediaCodec codec) {
-        String codecName = codec.getCodecInfo().getName();
-
-        return ("OMX.google.h264.encoder".equals(codecName));
-    }
-
     /**
      * Prepares the video encoder, muxer, and an EGL input surface.
      */
@@ -86,7 +77,7 @@ public abstract class GeneratedMovie implements Content {
 
         // Create a MediaCodec encoder, and configure it with our format.  Get a Surface
         // we can use for input and wrap it with a class that handles the EGL work.
-        mEncoder = MediaCodec.createEncoderByType(mimeType);
+        mEncoder = CodecCapabilityCache.createVideoEncoder(format);
         mEncoder.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
         Log.v(TAG, "encoder is " + mEncoder.getCodecInfo().getName());
         Surface surface;
@@ -96,7 +87,7 @@ public abstract class GeneratedMovie implements Content {
             // This is generally the first time we ever try to encode something through a
             // Surface, so specialize the message a bit if we can guess at why it's failing.
             // TODO: failure message should come out of strings.xml for i18n
-            if (isSoftwareCodec(mEncoder)) {
+            if (CodecCapabilityCache.isSoftwareCodec(mEncoder.getName())) {
                 throw new RuntimeException("Can't use input surface with software codec: " +
                         mEncoder.getCodecInfo().getName(),
                         ise);
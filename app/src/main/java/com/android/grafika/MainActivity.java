@@ -26,6 +26,8 @@ import android.view.View;
 import android.widget.ListView;
 import android.widget.SimpleAdapter;
 
+import com.android.grafika.gles.ProgramCache;
+
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
@@ -135,6 +137,8 @@ public class MainActivity extends ListActivity {
 
         // One-time singleton initialization; requires activity context to get file location.
         ContentManager.initialize(this);
+        CodecCapabilityCache.initialize(this);
+        ProgramCache.initialize(this);
 
         setListAdapter(new SimpleAdapter(this, createActivityList(),
                 android.R.layout.two_line_list_item, new String[] { TITLE, DESCRIPTION },
@@ -0,0 +1,257 @@
+/*
+ * Copyright 2026 The CombineCameras Authors. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.grafika;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.os.Build;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.support.annotation.NonNull;
+import android.support.annotation.RequiresApi;
+import android.util.Log;
+import android.view.Surface;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * A Surface-input MediaCodec encoder running in asynchronous mode.
+ * <p>
+ * Asynchronous mode needs the callback to be set before the codec is configured, so we do
+ * both in the constructor.  Callbacks are delivered on the thread behind the Handler passed
+ * in, and forwarded to the listener.
+ * <p>
+ * stop() and release() run on the callback thread, so they can't pull the codec out from
+ * under a callback in progress.  Callbacks that were already queued when the codec stopped
+ * are dropped, and calls that would touch a stopped codec do nothing.
+ * <p>
+ * Directing callbacks to a Handler requires API 23.
+ */
+@RequiresApi(api = Build.VERSION_CODES.M)
+public class MediaCodecEncoder implements EncoderCodec<MediaFormat> {
+    private static final String TAG = MainActivity.TAG;
+    private static final boolean VERBOSE = false;
+
+    private final Handler mCallbackHandler;
+    private final Object mLock = new Object();
+    private MediaCodec mCodec;          // guarded by mLock once started
+    private boolean mStopped;           // guarded by mLock
+    private Surface mInputSurface;
+    private volatile EncoderCodec.Listener<MediaFormat> mListener;
+
+    /**
+     * Creates and configures an encoder for the format.
+     *
+     * @param format Encoder configuration.  Must specify COLOR_FormatSurface.
+     * @param callbackHandler Output is delivered on this Handler's thread.
+     */
+    public MediaCodecEncoder(MediaFormat format, Handler callbackHandler) throws IOException {
+        mCallbackHandler = callbackHandler;
+        mCodec = CodecCapabilityCache.createVideoEncoder(format);
+        mCodec.setCallback(new MediaCodec.Callback() {
+            @Override
+            public void onInputBufferAvailable(@NonNull MediaCodec codec, int index) {
+                // Input comes from the Surface, so we don't expect these.
+            }
+
+            @Override
+            public void onOutputBufferAvailable(@NonNull MediaCodec codec, int index,
+                    @NonNull MediaCodec.BufferInfo info) {
+                if (isStopped()) {
+                    return;     // queued before stop(); the buffer went with it
+                }
+                ByteBuffer buf = codec.getOutputBuffer(index);
+                if (buf == null) {
+                    throw new RuntimeException("output buffer " + index + " was null");
+                }
+                buf.position(info.offset);
+                buf.limit(info.offset + info.size);
+                mListener.onOutputBufferAvailable(index, buf, info.flags,
+                        info.presentationTimeUs);
+            }
+
+            @Override
+            public void onError(@NonNull MediaCodec codec,
+                    @NonNull MediaCodec.CodecException e) {
+                if (isStopped()) {
+                    return;
+                }
+                Log.e(TAG, "encoder error", e);
+                mListener.onError(e);
+            }
+
+            @Override
+            public void onOutputFormatChanged(@NonNull MediaCodec codec,
+                    @NonNull MediaFormat format) {
+                if (isStopped()) {
+                    return;
+                }
+                if (VERBOSE) Log.d(TAG, "encoder output format changed: " + format);
+                mListener.onOutputFormatChanged(format);
+            }
+        }, callbackHandler);
+        mCodec.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+        mInputSurface = mCodec.createInputSurface();
+    }
+
+    /**
+     * Returns the encoder's input surface.
+     */
+    public Surface getInputSurface() {
+        return mInputSurface;
+    }
+
+    @Override
+    public void setListener(EncoderCodec.Listener<MediaFormat> listener) {
+        mListener = listener;
+    }
+
+    @Override
+    public void start() {
+        mCodec.start();
+    }
+
+    @Override
+    public void releaseOutputBuffer(int index) {
+        synchronized (mLock) {
+            if (!mStopped) {
+                mCodec.releaseOutputBuffer(index, false);
+            }
+        }
+    }
+
+    /**
+     * Asks the encoder to make the next frame a sync frame.  Ignored once stopped.
+     */
+    public void requestSyncFrame() {
+        Bundle params = new Bundle();
+        params.putInt(MediaCodec.PARAMETER_KEY_REQUEST_SYNC_FRAME, 0);
+        setParameters(params);
+    }
+
+    /**
+     * Changes the encoder's target bit rate on the fly.  Ignored once stopped.
+     */
+    public void setBitRate(int bitRate) {
+        Bundle params = new Bundle();
+        params.putInt(MediaCodec.PARAMETER_KEY_VIDEO_BITRATE, bitRate);
+        setParameters(params);
+    }
+
+    @Override
+    public void signalEndOfInputStream() {
+        synchronized (mLock) {
+            if (!mStopped) {
+                mCodec.signalEndOfInputStream();
+            }
+        }
+    }
+
+    /**
+     * Stops the codec.  Waits for any callback in progress to return; none are delivered
+     * after this.
+     */
+    @Override
+    public void stop() {
+        runOnCallbackThread(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (mLock) {
+                    if (!mStopped) {
+                        mStopped = true;
+                        mCodec.stop();
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Releases the codec, stopping it first if need be.
+     */
+    @Override
+    public void release() {
+        runOnCallbackThread(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (mLock) {
+                    mStopped = true;
+                    if (mCodec != null) {
+                        mCodec.release();
+                        mCodec = null;
+                    }
+                }
+            }
+        });
+    }
+
+    private boolean isStopped() {
+        synchronized (mLock) {
+            return mStopped;
+        }
+    }
+
+    private void setParameters(Bundle params) {
+        synchronized (mLock) {
+            if (!mStopped) {
+                mCodec.setParameters(params);
+            }
+        }
+    }
+
+    /**
+     * Runs the task on the thread callbacks are delivered on, and waits for it.  Callbacks
+     * run one at a time on that thread, so the task never overlaps with one.
+     */
+    private void runOnCallbackThread(final Runnable task) {
+        if (Looper.myLooper() == mCallbackHandler.getLooper()) {
+            task.run();
+            return;
+        }
+        final CountDownLatch done = new CountDownLatch(1);
+        boolean posted = mCallbackHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    task.run();
+                } finally {
+                    done.countDown();
+                }
+            }
+        });
+        if (!posted) {
+            // The callback thread has quit, so there's nothing to overlap with.
+            task.run();
+            return;
+        }
+        boolean interrupted = false;
+        while (true) {
+            try {
+                done.await();
+                break;
+            } catch (InterruptedException ie) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
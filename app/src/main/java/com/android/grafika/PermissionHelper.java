@@ -27,6 +27,8 @@ import android.support.v4.app.ActivityCompat;
 import android.support.v4.content.ContextCompat;
 import android.widget.Toast;
 
+import java.util.ArrayList;
+
 /**
  * Helper class for handling dangerous permissions for Android API level >= 23 which
  * requires user consent at runtime to access the camera.
@@ -37,11 +39,24 @@ class PermissionHelper {
     return ContextCompat.checkSelfPermission(activity,
             Manifest.permission.CAMERA) == PackageManager.PERMISSION_GRANTED;
   }
+  public static boolean hasRecordAudioPermission(Activity activity) {
+    return ContextCompat.checkSelfPermission(activity,
+            Manifest.permission.RECORD_AUDIO) == PackageManager.PERMISSION_GRANTED;
+  }
   public static boolean hasWriteStoragePermission(Activity activity) {
     return ContextCompat.checkSelfPermission(activity,
             Manifest.permission.WRITE_EXTERNAL_STORAGE) == PackageManager.PERMISSION_GRANTED;
   }
   public static void requestCameraPermission(Activity activity, boolean requestWritePermission) {
+    requestCameraPermission(activity, requestWritePermission, false);
+  }
+
+  /**
+   * Requests the camera permission, plus storage and microphone access if asked for.  The
+   * microphone is optional, so a denial doesn't trigger the rationale message.
+   */
+  public static void requestCameraPermission(Activity activity, boolean requestWritePermission,
+          boolean requestAudioPermission) {
 
     boolean showRationale = ActivityCompat.shouldShowRequestPermissionRationale(activity,
               Manifest.permission.CAMERA) || (requestWritePermission &&
@@ -54,9 +69,16 @@ class PermissionHelper {
 
         // No explanation needed, we can request the permission.
 
-      String permissions[] = requestWritePermission ? new String[]{Manifest.permission.CAMERA,
-              Manifest.permission.WRITE_EXTERNAL_STORAGE}: new String[]{Manifest.permission.CAMERA};
-        ActivityCompat.requestPermissions(activity,permissions,RC_PERMISSION_REQUEST);
+      ArrayList<String> permissions = new ArrayList<String>();
+      permissions.add(Manifest.permission.CAMERA);
+      if (requestWritePermission) {
+        permissions.add(Manifest.permission.WRITE_EXTERNAL_STORAGE);
+      }
+      if (requestAudioPermission) {
+        permissions.add(Manifest.permission.RECORD_AUDIO);
+      }
+        ActivityCompat.requestPermissions(activity,
+                permissions.toArray(new String[permissions.size()]), RC_PERMISSION_REQUEST);
       }
     }
 
@@ -0,0 +1,168 @@
+/*
+ * Copyright 2026 The CombineCameras Authors. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.grafika;
+
+import android.util.Log;
+
+/**
+ * Timestamps the stages a recording goes through between the start request and the first
+ * sync frame reaching the muxer, so we can see where startup time goes.
+ * <p>
+ * Events go into a fixed-size ring, which holds the last few recordings.  Only the first
+ * occurrence of each stage in a recording is kept, so the stages can be marked from the
+ * per-frame paths without filling the ring.  Once every stage has been seen, the breakdown
+ * is logged.
+ * <p>
+ * Stages may be marked from any thread.  They won't necessarily happen in the order listed:
+ * the muxer is started just before the first keyframe is written, for example.
+ */
+public class RecordingStartTrace {
+    private static final String TAG = MainActivity.TAG;
+
+    public static final int STAGE_START_REQUEST = 0;
+    public static final int STAGE_ENCODER_THREAD_READY = 1;
+    public static final int STAGE_EGL_SURFACE_READY = 2;
+    public static final int STAGE_FIRST_FRAME_DRAWN = 3;
+    public static final int STAGE_FIRST_OUTPUT_BUFFER = 4;
+    public static final int STAGE_FIRST_KEYFRAME = 5;
+    public static final int STAGE_MUXER_STARTED = 6;
+    public static final int STAGE_COUNT = 7;
+
+    private static final String[] STAGE_NAMES = {
+            "request", "thread", "egl", "drawn", "output", "keyframe", "muxer"
+    };
+    private static final int ALL_STAGES = (1 << STAGE_COUNT) - 1;
+
+    private static final int CAPACITY = 64;     // about nine recordings' worth
+
+    // ----- guarded by "this" -----
+    private final int[] mEventRecordings = new int[CAPACITY];
+    private final int[] mEventStages = new int[CAPACITY];
+    private final long[] mEventNanos = new long[CAPACITY];
+    private final long[] mReportOffsets = new long[STAGE_COUNT];
+    private int mEventCount;        // total ever recorded; the next slot is this % CAPACITY
+    private int mRecording;         // current recording number, starting from 1
+
+    // Stages seen in the current recording.  Written under the lock; read without it so
+    // mark() can return quickly for stages we already have.
+    private volatile int mSeenStages = ALL_STAGES;
+
+    /**
+     * Starts tracing a new recording, and marks STAGE_START_REQUEST.
+     *
+     * @return The recording number, for getBreakdown().
+     */
+    public synchronized int begin() {
+        mRecording++;
+        mSeenStages = 0;
+        record(STAGE_START_REQUEST, System.nanoTime());
+        return mRecording;
+    }
+
+    /**
+     * Marks a stage of the current recording.  Does nothing if the stage has already been
+     * marked.
+     */
+    public void mark(int stage) {
+        int bit = 1 << stage;
+        if ((mSeenStages & bit) != 0) {
+            return;
+        }
+        long now = System.nanoTime();
+        synchronized (this) {
+            if ((mSeenStages & bit) != 0) {
+                return;
+            }
+            record(stage, now);
+            if (mSeenStages == ALL_STAGES) {
+                getBreakdown(mRecording, mReportOffsets);
+                Log.d(TAG, "recording " + mRecording + " start: " +
+                        formatBreakdown(mReportOffsets));
+            }
+        }
+    }
+
+    /**
+     * Returns the number of the most recent recording, or zero if there hasn't been one.
+     */
+    public synchronized int getLastRecording() {
+        return mRecording;
+    }
+
+    /**
+     * Gets the time from the start request to each stage of a recording.
+     *
+     * @param recording Recording number, from begin() or getLastRecording().
+     * @param offsetsNanos Receives the offsets, indexed by stage.  Stages that weren't
+     *     reached (or have been overwritten) are set to -1.  Must hold STAGE_COUNT entries.
+     * @return False if the recording is no longer in the ring.
+     */
+    public synchronized boolean getBreakdown(int recording, long[] offsetsNanos) {
+        for (int i = 0; i < STAGE_COUNT; i++) {
+            offsetsNanos[i] = -1;
+        }
+        long startNanos = -1;
+        int first = Math.max(0, mEventCount - CAPACITY);
+        for (int i = first; i < mEventCount; i++) {
+            int slot = i % CAPACITY;
+            if (mEventRecordings[slot] != recording) {
+                continue;
+            }
+            if (mEventStages[slot] == STAGE_START_REQUEST) {
+                startNanos = mEventNanos[slot];
+            }
+            offsetsNanos[mEventStages[slot]] = mEventNanos[slot];
+        }
+        if (startNanos < 0) {
+            return false;
+        }
+        for (int i = 0; i < STAGE_COUNT; i++) {
+            if (offsetsNanos[i] >= 0) {
+                offsetsNanos[i] -= startNanos;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Formats a breakdown from getBreakdown() as e.g. "thread +1200us, egl +15400us, ...".
+     */
+    public static String formatBreakdown(long[] offsetsNanos) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = STAGE_START_REQUEST + 1; i < STAGE_COUNT; i++) {
+            if (sb.length() != 0) {
+                sb.append(", ");
+            }
+            sb.append(STAGE_NAMES[i]);
+            if (offsetsNanos[i] < 0) {
+                sb.append(" -");
+            } else {
+                sb.append(" +").append(offsetsNanos[i] / 1000).append("us");
+            }
+        }
+        return sb.toString();
+    }
+
+    private void record(int stage, long nanos) {
+        int slot = mEventCount % CAPACITY;
+        mEventRecordings[slot] = mRecording;
+        mEventStages[slot] = stage;
+        mEventNanos[slot] = nanos;
+        mEventCount++;
+        mSeenStages |= 1 << stage;
+    }
+}
@@ -26,6 +26,9 @@ import java.nio.FloatBuffer;
 /**
  * Tweaked version of Drawable2d that rescales the texture coordinates to provide a
  * "zoom" effect.
+ * <p>
+ * The coordinates are only recomputed, and re-uploaded to the GL buffer, when the scale
+ * actually changes.
  */
 public class ScaledDrawable2d extends Drawable2d {
     private static final String TAG = MainActivity.TAG;
@@ -52,8 +55,12 @@ public class ScaledDrawable2d extends Drawable2d {
         if (scale < 0.0f || scale > 1.0f) {
             throw new RuntimeException("invalid scale " + scale);
         }
+        if (scale == mScale) {
+            return;
+        }
         mScale = scale;
         mRecalculate = true;
+        texCoordsChanged();
     }
 
     /**
@@ -0,0 +1,290 @@
+/*
+ * Copyright 2026 The CombineCameras Authors. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.grafika;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Writes an encoder's output to a file, optionally split into segments.
+ * <p>
+ * When a segment has reached its limit, we ask the encoder for a sync frame, and when it
+ * arrives we close the current file and start the next one with it.  The encoder keeps
+ * running throughout, so nothing is lost between segments, and each segment starts with a
+ * frame that can be decoded on its own.
+ * <p>
+ * A file started with finishFile() / startFile() while the encoder is running can also be
+ * made to wait for a sync frame, so it doesn't start with frames that depend on ones it
+ * doesn't have.
+ * <p>
+ * No framework calls are made here, so the rotation logic can be exercised with a fake
+ * muxer on a desktop JVM.  Not thread-safe; VideoEncoderCore serializes access.
+ *
+ * @param <F> The type describing the output format, e.g. MediaFormat.
+ */
+public class SegmentWriter<F> {
+    // Same value as MediaCodec.BUFFER_FLAG_SYNC_FRAME.
+    private static final int FLAG_SYNC_FRAME = 1;
+
+    /**
+     * One output file.  Usually a wrapper around MediaMuxer with a single track.
+     */
+    public interface Muxer<F> {
+        /**
+         * Adds the track and starts the muxer.  Called just before the first sample.
+         */
+        void start(F format);
+
+        /**
+         * Writes a sample.  Position and limit bracket the data.
+         *
+         * @param flags MediaCodec.BufferInfo flags.
+         */
+        void writeSampleData(ByteBuffer data, int flags, long ptsUsec);
+
+        /**
+         * Finishes the file.  Only called on a started muxer that has samples.
+         */
+        void stop();
+
+        /**
+         * Releases the muxer's resources.
+         */
+        void release();
+    }
+
+    /**
+     * What the writer needs from its owner.
+     */
+    public interface Host<F> {
+        /**
+         * Creates a muxer writing to the given file.
+         */
+        Muxer<F> createMuxer(File file) throws IOException;
+
+        /**
+         * Asks the encoder to make its next frame a sync frame.  May be ignored, in which
+         * case we wait for the next scheduled one.
+         */
+        void requestSyncFrame();
+    }
+
+    /**
+     * Notified as each file or segment is finished.
+     */
+    public interface SegmentListener {
+        /**
+         * Called once the file has been closed and is ready to use.  Called on the thread
+         * that writes to the muxer, so don't dawdle.
+         *
+         * @param index Segment number, starting from zero.  Always zero for recordings
+         *     that aren't segmented.
+         */
+        void onSegmentComplete(File file, int index);
+    }
+
+    private final Host<F> mHost;
+    private F mFormat;
+    private File mOutputFile;
+    private Muxer<F> mMuxer;
+    private boolean mMuxerStarted;
+    private boolean mWaitingForSync;
+
+    private long mSegmentMaxUsec;
+    private long mSegmentMaxBytes;
+    private SegmentListener mListener;
+    private int mSegmentIndex;
+    private long mSegmentStartUsec;
+    private long mSegmentBytes;
+    private boolean mSyncFrameRequested;
+
+    public SegmentWriter(Host<F> host) {
+        mHost = host;
+    }
+
+    /**
+     * Sets the segment limits.  Each segment ends at the first sync frame after it reaches
+     * either limit.  The first segment goes to the file passed to startFile(), the rest to
+     * files named after it with "-1", "-2", ... inserted before the extension.
+     * <p>
+     * Applies from the next sample on; call before startFile() to cover a whole recording.
+     *
+     * @param maxDurationUsec Segment length limit, in microseconds, or 0 for no limit.
+     * @param maxBytes Segment size limit, or 0 for no limit.  Segments may overshoot this
+     *     by however much the encoder produces before the sync frame shows up.
+     * @param listener Told about each file as it's finished.  May be null.
+     */
+    public void setSegmentation(long maxDurationUsec, long maxBytes, SegmentListener listener) {
+        mSegmentMaxUsec = maxDurationUsec;
+        mSegmentMaxBytes = maxBytes;
+        mListener = listener;
+    }
+
+    /**
+     * Records the encoder's output format.  Each muxer is started with it when its first
+     * sample is written.
+     */
+    public void setFormat(F format) {
+        // should happen before receiving buffers, and should only happen once
+        if (mFormat != null) {
+            throw new RuntimeException("format changed twice");
+        }
+        mFormat = format;
+    }
+
+    /**
+     * Starts writing to a new file.
+     *
+     * @param waitForSync Drop samples until the next sync frame, and ask the encoder for
+     *     one.  Needed when the encoder has been running since before this file.
+     */
+    public void startFile(File outputFile, boolean waitForSync) throws IOException {
+        if (mMuxer != null) {
+            throw new RuntimeException("previous file not finished");
+        }
+        mMuxer = mHost.createMuxer(outputFile);
+        mOutputFile = outputFile;
+        mMuxerStarted = false;
+        mSegmentIndex = 0;
+        mSegmentBytes = 0;
+        mSyncFrameRequested = false;
+        mWaitingForSync = waitForSync;
+        if (waitForSync) {
+            mHost.requestSyncFrame();
+        }
+    }
+
+    /**
+     * Returns true between startFile() and finishFile().
+     */
+    public boolean isFileOpen() {
+        return mMuxer != null;
+    }
+
+    /**
+     * Writes an encoded frame, starting a new segment first if it's time.
+     *
+     * @param data The frame.  Position and limit bracket the data.
+     * @param flags MediaCodec.BufferInfo flags.
+     * @return True if the frame was written, false if we're between files or still waiting
+     *     for a sync frame.
+     */
+    public boolean writeSample(ByteBuffer data, int flags, long ptsUsec) {
+        if (mMuxer == null) {
+            return false;       // between files
+        }
+        if (mFormat == null) {
+            throw new RuntimeException("output format not known yet");
+        }
+        boolean sync = (flags & FLAG_SYNC_FRAME) != 0;
+        if (mWaitingForSync) {
+            if (!sync) {
+                return false;
+            }
+            mWaitingForSync = false;
+        }
+        int size = data.remaining();
+        if (mSegmentBytes != 0 && segmentFull(size, ptsUsec)) {
+            if (sync) {
+                nextSegment();
+            } else if (!mSyncFrameRequested) {
+                mHost.requestSyncFrame();
+                mSyncFrameRequested = true;
+            }
+        }
+
+        if (!mMuxerStarted) {
+            // now that we have the format and a sample, start the muxer
+            mMuxer.start(mFormat);
+            mMuxerStarted = true;
+        }
+        if (mSegmentBytes == 0) {
+            mSegmentStartUsec = ptsUsec;
+        }
+        mMuxer.writeSampleData(data, flags, ptsUsec);
+        mSegmentBytes += size;
+        return true;
+    }
+
+    /**
+     * Closes the current file, and reports it as done if anything was written to it.
+     * Does nothing if no file is open.
+     */
+    public void finishFile() {
+        if (mMuxer == null) {
+            return;
+        }
+        // Muxers refuse to stop when they haven't been fed any data, and release() stops
+        // a started muxer.  That's why the muxer isn't started until the first sample is
+        // written: a file that got nothing, e.g. because the recording ended before the
+        // first sync frame, is released without being started.
+        boolean wroteData = mMuxerStarted && mSegmentBytes != 0;
+        closeMuxer(wroteData);
+    }
+
+    /**
+     * Returns the file that the given segment of the current recording is written to.
+     */
+    public File getSegmentFile(int index) {
+        if (index == 0) {
+            return mOutputFile;
+        }
+        String name = mOutputFile.getName();
+        int dot = name.lastIndexOf('.');
+        String segmentName = dot > 0 ?
+                name.substring(0, dot) + "-" + index + name.substring(dot) :
+                name + "-" + index;
+        return new File(mOutputFile.getParentFile(), segmentName);
+    }
+
+    /**
+     * Returns true if the current segment would go over one of its limits with this sample.
+     */
+    private boolean segmentFull(int size, long ptsUsec) {
+        return (mSegmentMaxUsec > 0 && ptsUsec - mSegmentStartUsec >= mSegmentMaxUsec) ||
+                (mSegmentMaxBytes > 0 && mSegmentBytes + size > mSegmentMaxBytes);
+    }
+
+    /**
+     * Closes the current segment's file and opens the next.  The encoder isn't touched.
+     */
+    private void nextSegment() {
+        closeMuxer(true);
+        mSegmentIndex++;
+        try {
+            mMuxer = mHost.createMuxer(getSegmentFile(mSegmentIndex));
+        } catch (IOException ioe) {
+            throw new RuntimeException(ioe);
+        }
+        mSegmentBytes = 0;
+        mSyncFrameRequested = false;
+    }
+
+    private void closeMuxer(boolean wroteData) {
+        Muxer<F> muxer = mMuxer;
+        mMuxer = null;
+        mMuxerStarted = false;
+        if (wroteData) {
+            muxer.stop();
+        }
+        muxer.release();
+        if (wroteData && mListener != null) {
+            mListener.onSegmentComplete(getSegmentFile(mSegmentIndex), mSegmentIndex);
+        }
+    }
+}
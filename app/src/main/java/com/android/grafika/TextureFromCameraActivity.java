@@ -489,7 +489,7 @@ public class TextureFromCameraActivity extends Activity implements SurfaceHolder
             }
 
             // Prepare EGL and open the camera before we start handling messages.
-            mEglCore = new EglCore(null, 0);
+            mEglCore = new EglCore(null, EglCore.FLAG_TRY_GLES3);
             openCamera(REQ_CAMERA_WIDTH, REQ_CAMERA_HEIGHT, REQ_CAMERA_FPS);
 
             Looper.loop();
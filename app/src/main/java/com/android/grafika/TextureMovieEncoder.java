@@ -28,12 +28,16 @@ import android.util.Log;
 
 import com.android.grafika.gles.EglCore;
 import com.android.grafika.gles.FullFrameRect;
+import com.android.grafika.gles.GlUtil;
 import com.android.grafika.gles.Texture2dProgram;
 import com.android.grafika.gles.WindowSurface;
 
 import java.io.File;
 import java.io.IOException;
 import java.lang.ref.WeakReference;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Encode a movie from frames rendered from an external texture image.
@@ -48,6 +52,14 @@ import java.lang.ref.WeakReference;
  * in question is a GLSurfaceView, we don't have full control over the EGL context creation
  * on that side, so we have to bend a bit backwards here.
  * <p>
+ * Several movies can be recorded from the same frames at once, e.g. a full-size archive
+ * and a small preview.  Each output gets its own encoder and input surface, all sharing one
+ * EGL context, so each extra output costs one more blit of the texture.
+ * <p>
+ * With setKeepWarm(), the encoder thread, codecs, and EGL surfaces are kept between
+ * recordings, and stopping and starting just closes one file and opens the next.  That
+ * makes starting a recording much quicker.  Call release() when done.
+ * <p>
  * To use:
  * <ul>
  * <li>create TextureMovieEncoder object
@@ -67,26 +79,218 @@ public class TextureMovieEncoder implements Runnable {
     private static final int MSG_START_RECORDING = 0;
     private static final int MSG_STOP_RECORDING = 1;
     private static final int MSG_FRAME_AVAILABLE = 2;
-    private static final int MSG_SET_TEXTURE_ID = 3;
     private static final int MSG_UPDATE_SHARED_CONTEXT = 4;
     private static final int MSG_QUIT = 5;
 
+    /**
+     * Frame policy: when the queue is full, throw away the oldest frame.
+     */
+    public static final int FRAME_POLICY_DROP_OLDEST = 0;
+    /**
+     * Frame policy: only encode the newest frame; anything the encoder didn't get to in time
+     * is skipped.
+     */
+    public static final int FRAME_POLICY_LATEST_WINS = 1;
+    /**
+     * Frame policy: when the queue is full, make frameAvailable() wait for the encoder.  If
+     * it doesn't catch up within BLOCK_TIMEOUT_MSEC the frame is dropped.
+     */
+    public static final int FRAME_POLICY_BLOCK = 2;
+
+    // Frames that can be queued up before the frame policy kicks in.
+    private static final int MAX_PENDING_FRAMES = 4;
+    private static final long BLOCK_TIMEOUT_MSEC = 100;
+
     // ----- accessed exclusively by encoder thread -----
-    private WindowSurface mInputWindowSurface;
+    private Output[] mOutputs;
+    private OutputConfig[] mOutputConfigs;
+    private EGLContext mSharedContext;
     private EglCore mEglCore;
     private FullFrameRect mFullScreen;
-    private int mTextureId;
+    private Texture2dProgram.ProgramType mInputType;
     private int mFrameNum;
-    private VideoEncoderCore mVideoEncoder;
+    private long mLastFrameNanos;
+    private boolean mAwaitingFirstFrame;
+
+    private final FrameDescriptorRing.Frame mFrame = new FrameDescriptorRing.Frame();
+
+    // ----- accessed exclusively by the thread calling frameAvailable() -----
+    private int mProducerTextureId;
 
     // ----- accessed by multiple threads -----
     private volatile EncoderHandler mHandler;
+    private final FrameDescriptorRing mFrames = new FrameDescriptorRing(MAX_PENDING_FRAMES);
+    private final AtomicBoolean mFrameMessagePending = new AtomicBoolean();
+    private volatile int mFramePolicy = FRAME_POLICY_DROP_OLDEST;
+    // Each counter has a single writer: the producer, or the encoder thread.
+    private volatile long mProducerDroppedFrames;
+    private volatile long mEncoderDroppedFrames;
+    private volatile long mEncodedFrames;
+    private volatile long mLastLagNanos;
+    private volatile long mMaxLagNanos;
+    private volatile boolean mKeepWarm;
+    private volatile long mStartRequestNanos;
+    private volatile long mLastStartLatencyNanos;
+    private final RecordingStartTrace mStartTrace = new RecordingStartTrace();
+
+    // Textures the producer rendered into are handed back through these.  Each fence slot
+    // holds the newest fence, or 0; whoever takes a fence out of a slot deletes it.  A newer
+    // fence covers everything an older one from the same context did, so replacing one is
+    // fine.  mWriteFence orders the producer's rendering before our reads, mReadFence orders
+    // our reads before the producer's next write.  Every frame with a sequence number below
+    // mFramesDone has been read or thrown away.  Fences are only used when both contexts
+    // are GLES 3; otherwise each side calls glFinish() before handing the texture over.
+    private final AtomicLong mWriteFence = new AtomicLong();
+    private final AtomicLong mReadFence = new AtomicLong();
+    private volatile int mFramesDone;
+    private volatile boolean mTrackReads;
+    private volatile boolean mUseFences;        // our context is GLES 3
+    private volatile boolean mProducerGles3;
 
-    private Object mReadyFence = new Object();      // guards ready/running
+    private Object mReadyFence = new Object();      // guards ready/running/quitting/recording
     private boolean mReady;
     private boolean mRunning;
+    private boolean mQuitting;      // thread has been told to quit, but hasn't yet
+    private boolean mRecording;
 
 
+    /**
+     * Configuration for one output movie.  Immutable; use a Builder for anything beyond
+     * the file and profile.
+     */
+    public static class OutputConfig {
+        final File mOutputFile;
+        final EncoderProfile mProfile;
+        final long mSegmentMaxUsec;
+        final long mSegmentMaxBytes;
+        final SegmentWriter.SegmentListener mSegmentListener;
+        final int mMinBitRate;
+        final int mMaxBitRate;
+
+        /**
+         * Builds an OutputConfig.  By default the movie is written to a single file, at the
+         * profile's fixed bit rate.
+         */
+        public static class Builder {
+            private final File mOutputFile;
+            private final EncoderProfile mProfile;
+            private long mSegmentMaxUsec;
+            private long mSegmentMaxBytes;
+            private SegmentWriter.SegmentListener mSegmentListener;
+            private int mMinBitRate;
+            private int mMaxBitRate;
+
+            public Builder(File outputFile, EncoderProfile profile) {
+                mOutputFile = outputFile;
+                mProfile = profile;
+            }
+
+            /**
+             * Splits the movie into segments; see VideoEncoderCore#setSegmentation().
+             *
+             * @param maxDurationUsec Segment length limit, in microseconds, or 0 for none.
+             * @param maxBytes Segment size limit, or 0 for none.
+             * @param listener Told about each segment as it's finished, on an encoder
+             *     thread.  May be null.
+             */
+            public Builder setSegmentation(long maxDurationUsec, long maxBytes,
+                    SegmentWriter.SegmentListener listener) {
+                if (maxDurationUsec < 0 || maxBytes < 0) {
+                    throw new IllegalArgumentException("Bad segment limits: " +
+                            maxDurationUsec + "us " + maxBytes + " bytes");
+                }
+                mSegmentMaxUsec = maxDurationUsec;
+                mSegmentMaxBytes = maxBytes;
+                mSegmentListener = listener;
+                return this;
+            }
+
+            /**
+             * Lets the encoder's bit rate float between the given bounds, so that what it
+             * actually produces stays close to the profile's bit rate.  A BitrateController
+             * is created for each recording.  Needs API 19; ignored on older devices.
+             */
+            public Builder setRateControl(int minBitRate, int maxBitRate) {
+                mMinBitRate = minBitRate;
+                mMaxBitRate = maxBitRate;
+                return this;
+            }
+
+            /**
+             * Creates the config.
+             *
+             * @throws IllegalArgumentException if the rate control bounds don't bracket the
+             *     profile's bit rate.
+             */
+            public OutputConfig build() {
+                if (mMinBitRate != 0 || mMaxBitRate != 0) {
+                    int bitRate = mProfile.getBitRate();
+                    if (mMinBitRate <= 0 || mMinBitRate > bitRate || bitRate > mMaxBitRate) {
+                        throw new IllegalArgumentException("Bad rate control bounds: " +
+                                mMinBitRate + " <= " + bitRate + " <= " + mMaxBitRate);
+                    }
+                }
+                return new OutputConfig(this);
+            }
+        }
+
+        /**
+         * Records H.264 with the default frame rate and key frame interval.
+         */
+        public OutputConfig(File outputFile, int width, int height, int bitRate) {
+            this(outputFile, new EncoderProfile.Builder(width, height, bitRate).build());
+        }
+
+        public OutputConfig(File outputFile, EncoderProfile profile) {
+            this(new Builder(outputFile, profile));
+        }
+
+        private OutputConfig(Builder builder) {
+            mOutputFile = builder.mOutputFile;
+            mProfile = builder.mProfile;
+            mSegmentMaxUsec = builder.mSegmentMaxUsec;
+            mSegmentMaxBytes = builder.mSegmentMaxBytes;
+            mSegmentListener = builder.mSegmentListener;
+            mMinBitRate = builder.mMinBitRate;
+            mMaxBitRate = builder.mMaxBitRate;
+        }
+
+        /**
+         * Applies the per-recording settings to an encoder, before its file is started.
+         *
+         * @param warm The encoder was used for an earlier recording, so its bit rate may
+         *     have been changed.
+         */
+        void configure(final VideoEncoderCore encoder, boolean warm) {
+            encoder.setSegmentation(mSegmentMaxUsec, mSegmentMaxBytes, mSegmentListener);
+
+            if (warm && mProfile.getBitRate() > 0) {
+                // Start from the profile's rate, whatever the last controller left it at.
+                encoder.setBitRate(mProfile.getBitRate());
+            }
+            BitrateController controller = null;
+            if (mMinBitRate > 0) {
+                if (Build.VERSION.SDK_INT < Build.VERSION_CODES.KITKAT) {
+                    Log.w(TAG, "Bit rate control needs API 19");
+                } else {
+                    controller = new BitrateController(mProfile.getBitRate(), mMinBitRate,
+                            mMaxBitRate, new BitrateController.Encoder() {
+                        @Override
+                        public void setBitRate(int bitRate) {
+                            encoder.setBitRate(bitRate);
+                        }
+                    });
+                }
+            }
+            encoder.setBitrateController(controller);
+        }
+
+        @Override
+        public String toString() {
+            return mProfile + " to '" + mOutputFile + "'";
+        }
+    }
+
     /**
      * Encoder configuration.
      * <p>
@@ -98,25 +302,61 @@ public class TextureMovieEncoder implements Runnable {
      *       with reasonable defaults for those and bit rate.
      */
     public static class EncoderConfig {
-        final File mOutputFile;
-        final int mWidth;
-        final int mHeight;
-        final int mBitRate;
+        final OutputConfig[] mOutputs;
         final EGLContext mEglContext;
+        final Texture2dProgram.ProgramType mInputType;
 
         public EncoderConfig(File outputFile, int width, int height, int bitRate,
                 EGLContext sharedEglContext) {
-            mOutputFile = outputFile;
-            mWidth = width;
-            mHeight = height;
-            mBitRate = bitRate;
+            this(new OutputConfig[] { new OutputConfig(outputFile, width, height, bitRate) },
+                    sharedEglContext);
+        }
+
+        /**
+         * Records every frame to each of the outputs.  Frames are external textures, e.g.
+         * from SurfaceTexture.
+         */
+        public EncoderConfig(OutputConfig[] outputs, EGLContext sharedEglContext) {
+            this(outputs, sharedEglContext, Texture2dProgram.ProgramType.TEXTURE_EXT);
+        }
+
+        /**
+         * Records every frame to each of the outputs.
+         *
+         * @param inputType TEXTURE_EXT if the frames are external textures, TEXTURE_2D if
+         *     they're ordinary textures, e.g. something the caller rendered offscreen.
+         */
+        public EncoderConfig(OutputConfig[] outputs, EGLContext sharedEglContext,
+                Texture2dProgram.ProgramType inputType) {
+            if (outputs.length == 0) {
+                throw new IllegalArgumentException("no outputs");
+            }
+            if (inputType != Texture2dProgram.ProgramType.TEXTURE_EXT &&
+                    inputType != Texture2dProgram.ProgramType.TEXTURE_2D) {
+                throw new IllegalArgumentException("unsupported input type " + inputType);
+            }
+            mOutputs = outputs.clone();
             mEglContext = sharedEglContext;
+            mInputType = inputType;
         }
 
         @Override
         public String toString() {
-            return "EncoderConfig: " + mWidth + "x" + mHeight + " @" + mBitRate +
-                    " to '" + mOutputFile.toString() + "' ctxt=" + mEglContext;
+            return "EncoderConfig: " + Arrays.toString(mOutputs) + " ctxt=" + mEglContext +
+                    " input=" + mInputType;
+        }
+    }
+
+    /**
+     * An output movie being recorded: its encoder, and the EGL surface feeding it.
+     */
+    private static class Output {
+        final VideoEncoderCore mEncoder;
+        final WindowSurface mSurface;
+
+        Output(VideoEncoderCore encoder, WindowSurface surface) {
+            mEncoder = encoder;
+            mSurface = surface;
         }
     }
 
@@ -124,6 +364,8 @@ public class TextureMovieEncoder implements Runnable {
      * Tells the video recorder to start recording.  (Call from non-encoder thread.)
      * <p>
      * Creates a new thread, which will create an encoder using the provided configuration.
+     * If the encoder was kept warm from the previous recording and the outputs have the
+     * same sizes and bit rates, it's reused, and only the output files change.
      * <p>
      * Returns after the recorder thread has started and is ready to accept Messages.  The
      * encoder may not yet be fully configured.
@@ -131,19 +373,32 @@ public class TextureMovieEncoder implements Runnable {
     public void startRecording(EncoderConfig config) {
         Log.d(TAG, "Encoder: startRecording()");
         synchronized (mReadyFence) {
-            if (mRunning) {
-                Log.w(TAG, "Encoder thread already running");
+            if (mRecording) {
+                Log.w(TAG, "Encoder already recording");
                 return;
             }
-            mRunning = true;
-            new Thread(this, "TextureMovieEncoder").start();
-            while (!mReady) {
+            mRecording = true;
+            mStartRequestNanos = System.nanoTime();
+            mStartTrace.begin();
+            while (mQuitting) {
+                // The last thread is on its way out; let it go before starting another.
                 try {
                     mReadyFence.wait();
                 } catch (InterruptedException ie) {
                     // ignore
                 }
             }
+            if (!mRunning) {
+                mRunning = true;
+                new Thread(this, "TextureMovieEncoder").start();
+                while (!mReady) {
+                    try {
+                        mReadyFence.wait();
+                    } catch (InterruptedException ie) {
+                        // ignore
+                    }
+                }
+            }
         }
 
         mHandler.sendMessage(mHandler.obtainMessage(MSG_START_RECORDING, config));
@@ -159,21 +414,126 @@ public class TextureMovieEncoder implements Runnable {
      * has completed).
      */
     public void stopRecording() {
-        mHandler.sendMessage(mHandler.obtainMessage(MSG_STOP_RECORDING));
-        mHandler.sendMessage(mHandler.obtainMessage(MSG_QUIT));
+        boolean keepWarm = mKeepWarm;
+        synchronized (mReadyFence) {
+            mRecording = false;
+            if (!keepWarm) {
+                mQuitting = true;
+            }
+        }
+        mHandler.sendMessage(mHandler.obtainMessage(MSG_STOP_RECORDING, keepWarm ? 1 : 0, 0));
+        if (!keepWarm) {
+            mHandler.sendMessage(mHandler.obtainMessage(MSG_QUIT));
+        }
         // We don't know when these will actually finish (or even start).  We don't want to
         // delay the UI thread though, so we return immediately.
     }
 
+    /**
+     * Keeps the encoder thread, codecs, and EGL surfaces around after stopRecording(), so
+     * the next recording can start without setting them up again.  Call release() when
+     * they're no longer wanted.
+     */
+    public void setKeepWarm(boolean keepWarm) {
+        mKeepWarm = keepWarm;
+    }
+
+    /**
+     * Shuts down the encoder thread and releases everything, stopping the recording first
+     * if there is one.  (Call from non-encoder thread.)
+     */
+    public void release() {
+        synchronized (mReadyFence) {
+            if (!mRunning || mQuitting) {
+                return;
+            }
+            mRecording = false;
+            mQuitting = true;
+        }
+        mHandler.sendMessage(mHandler.obtainMessage(MSG_STOP_RECORDING, 0, 0));
+        mHandler.sendMessage(mHandler.obtainMessage(MSG_QUIT));
+    }
+
     /**
      * Returns true if recording has been started.
      */
     public boolean isRecording() {
         synchronized (mReadyFence) {
-            return mRunning;
+            return mRecording;
         }
     }
 
+    /**
+     * Returns the time from the most recent startRecording() call to the first frame being
+     * sent to the encoder, or zero if no recording has got that far yet.  May be called on
+     * any thread.
+     */
+    public long getLastStartLatencyNanos() {
+        return mLastStartLatencyNanos;
+    }
+
+    /**
+     * Returns the trace of recording startup stages.  Each recording's breakdown is logged
+     * once the first sync frame has been written; earlier recordings can be looked up
+     * with RecordingStartTrace#getBreakdown().
+     */
+    public RecordingStartTrace getStartTrace() {
+        return mStartTrace;
+    }
+
+    /**
+     * Sets what happens when frames arrive faster than the encoder can handle them.  May be
+     * called at any time.
+     *
+     * @param policy One of the FRAME_POLICY_* constants.  The default is
+     *     FRAME_POLICY_DROP_OLDEST.
+     */
+    public void setFramePolicy(int policy) {
+        if (policy != FRAME_POLICY_DROP_OLDEST && policy != FRAME_POLICY_LATEST_WINS &&
+                policy != FRAME_POLICY_BLOCK) {
+            throw new IllegalArgumentException("Unknown frame policy " + policy);
+        }
+        mFramePolicy = policy;
+    }
+
+    /**
+     * Returns the number of frames thrown away because the encoder fell behind.  May be
+     * called on any thread.
+     */
+    public long getDroppedFrameCount() {
+        return mProducerDroppedFrames + mEncoderDroppedFrames;
+    }
+
+    /**
+     * Returns the number of frames rendered to the encoder.  May be called on any thread.
+     */
+    public long getEncodedFrameCount() {
+        return mEncodedFrames;
+    }
+
+    /**
+     * Returns the number of frames waiting for the encoder thread.  May be called on any
+     * thread.
+     */
+    public int getPendingFrameCount() {
+        return mFrames.size();
+    }
+
+    /**
+     * Returns the time between frameAvailable() and the encoder thread rendering the frame,
+     * for the most recent frame.  May be called on any thread.
+     */
+    public long getLastLagNanos() {
+        return mLastLagNanos;
+    }
+
+    /**
+     * Returns the largest lag seen since recording started.  May be called on any thread.
+     */
+    public long getMaxLagNanos() {
+        return mMaxLagNanos;
+    }
+
     /**
      * Tells the video recorder to refresh its EGL surface.  (Call from non-encoder thread.)
      */
@@ -193,17 +553,97 @@ public class TextureMovieEncoder implements Runnable {
      * or have a separate "block if still busy" method that the caller can execute immediately
      * before it calls updateTexImage().  The latter is preferred because we don't want to
      * stall the caller while this thread does work.
+     * <p>
+     * The frame's transform, timestamp, and texture name go into a small preallocated queue
+     * shared with the encoder thread, so this doesn't allocate.  At most one wake-up Message
+     * is outstanding at a time, so the encoder's Looper doesn't fill up with frame messages
+     * when it falls behind.  What happens when the queue is full depends on the frame policy.
      */
     public void frameAvailable(SurfaceTexture st) {
+        long timestamp = st.getTimestamp();
+        int slot = claimFrameSlot(timestamp);
+        if (slot < 0) {
+            return;
+        }
+        st.getTransformMatrix(mFrames.getTransform(slot));
+        publishFrame(slot, timestamp);
+    }
+
+    /**
+     * Tells the video recorder that the caller has rendered a new frame into "textureId",
+     * on a context shared with the encoder.  Otherwise the same as
+     * frameAvailable(SurfaceTexture).
+     * <p>
+     * The encoder reads the texture from its own context, some time later.  The caller must
+     * not render into the texture again until reclaimTexture() says the encoder is done
+     * with it, so a pool of two or three textures is needed to keep things moving.
+     * <p>
+     * Call with the context that rendered the frame current.  If both the caller's context
+     * and ours are GLES 3, a fence is put in the caller's command stream for the encoder
+     * to wait on; otherwise this calls glFinish().
+     *
+     * @param glVersion GLES version of the caller's context, e.g. from
+     *     EglCore#getGlVersion().
+     * @return The frame's sequence number, for reclaimTexture(), or -1 if the frame was
+     *     dropped and the texture can be reused right away.
+     */
+    public int frameAvailable(int textureId, float[] transform, long timestampNanos,
+            int glVersion) {
+        mTrackReads = true;
+        boolean gles3 = glVersion >= 3;
+        mProducerGles3 = gles3;
+        if (gles3 && mUseFences) {
+            // Publish the fence before the frame, so the encoder finds it.
+            long old = mWriteFence.getAndSet(GlUtil.createFence());
+            if (old != 0) {
+                GlUtil.deleteFence(old);
+            }
+        } else {
+            GLES20.glFinish();
+        }
+        int slot = claimFrameSlot(timestampNanos);
+        if (slot < 0) {
+            return -1;
+        }
+        System.arraycopy(transform, 0, mFrames.getTransform(slot), 0, 16);
+        mFrames.setTimestampNanos(slot, timestampNanos);
+        mFrames.setTextureId(slot, textureId);
+        return publishFrameSlot();
+    }
+
+    /**
+     * Checks whether the encoder is done with the texture of a frame passed to
+     * frameAvailable(int, float[], long, int).  If it is, and both contexts are GLES 3, the
+     * current context is made to wait for the encoder's reads to finish, so the caller can
+     * render into the texture.  The wait happens on the GPU.  Call on the thread and context
+     * that produce frames.
+     *
+     * @param sequence Value returned by frameAvailable().
+     */
+    public boolean reclaimTexture(int sequence) {
+        if (mFramesDone - sequence <= 0) {
+            return false;
+        }
+        long fence = mReadFence.getAndSet(0);
+        if (fence != 0) {
+            GlUtil.waitFence(fence);
+        }
+        return true;
+    }
+
+    /**
+     * Gets a slot in the frame queue for a new frame, applying the frame policy if it's
+     * full.
+     *
+     * @return The slot, or -1 if the frame should be dropped.
+     */
+    private int claimFrameSlot(long timestamp) {
         synchronized (mReadyFence) {
-            if (!mReady) {
-                return;
+            if (!mReady || !mRecording) {
+                return -1;
             }
         }
 
-        float[] transform = new float[16];      // TODO - avoid alloc every frame
-        st.getTransformMatrix(transform);
-        long timestamp = st.getTimestamp();
         if (timestamp == 0) {
             // Seeing this after device is toggled off/on with power button.  The
             // first frame back has a zero timestamp.
@@ -211,26 +651,62 @@ public class TextureMovieEncoder implements Runnable {
             // MPEG4Writer thinks this is cause to abort() in native code, so it's very
             // important that we just ignore the frame.
             Log.w(TAG, "HEY: got SurfaceTexture with timestamp of zero");
-            return;
+            return -1;
         }
 
-        mHandler.sendMessage(mHandler.obtainMessage(MSG_FRAME_AVAILABLE,
-                (int) (timestamp >> 32), (int) timestamp, transform));
+        int slot = mFrames.beginWrite();
+        if (slot < 0) {
+            if (mFramePolicy == FRAME_POLICY_BLOCK) {
+                if (mFrames.awaitSpace(BLOCK_TIMEOUT_MSEC)) {
+                    slot = mFrames.beginWrite();
+                }
+            } else if (mFrames.dropOldest()) {
+                mProducerDroppedFrames++;
+                slot = mFrames.beginWrite();
+            } else {
+                slot = mFrames.beginWrite();    // encoder took one just now
+            }
+            if (slot < 0) {
+                if (VERBOSE) Log.d(TAG, "Encoder is falling behind, dropping frame");
+                mProducerDroppedFrames++;
+                return -1;
+            }
+        }
+        return slot;
+    }
+
+    /**
+     * Finishes filling in the slot, and wakes the encoder thread if needed.
+     */
+    private void publishFrame(int slot, long timestamp) {
+        mFrames.setTimestampNanos(slot, timestamp);
+        mFrames.setTextureId(slot, mProducerTextureId);
+        publishFrameSlot();
+    }
+
+    /**
+     * Publishes the slot filled in by the caller, and wakes the encoder thread if needed.
+     *
+     * @return The frame's sequence number.
+     */
+    private int publishFrameSlot() {
+        int sequence = mFrames.publish();
+        if (mFrameMessagePending.compareAndSet(false, true)) {
+            mHandler.sendMessage(mHandler.obtainMessage(MSG_FRAME_AVAILABLE));
+        }
+        return sequence;
     }
 
     /**
      * Tells the video recorder what texture name to use.  This is the external texture that
-     * we're receiving camera previews in.  (Call from non-encoder thread.)
+     * we're receiving camera previews in, or an ordinary texture if the recording was
+     * started with TEXTURE_2D input.  Call from the thread that calls frameAvailable();
+     * the name is passed along with each frame.
      * <p>
      * TODO: do something less clumsy
      */
     public void setTextureId(int id) {
-        synchronized (mReadyFence) {
-            if (!mReady) {
-                return;
-            }
-        }
-        mHandler.sendMessage(mHandler.obtainMessage(MSG_SET_TEXTURE_ID, id, 0, null));
+        mProducerTextureId = id;
     }
 
     /**
@@ -250,9 +726,11 @@ public class TextureMovieEncoder implements Runnable {
         Looper.loop();
 
         Log.d(TAG, "Encoder thread exiting");
+        mFramesDone = mFrames.clear();      // nobody is going to read them now
         synchronized (mReadyFence) {
-            mReady = mRunning = false;
+            mReady = mRunning = mQuitting = false;
             mHandler = null;
+            mReadyFence.notifyAll();
         }
     }
 
@@ -284,15 +762,10 @@ public class TextureMovieEncoder implements Runnable {
                     encoder.handleStartRecording((EncoderConfig) obj);
                     break;
                 case MSG_STOP_RECORDING:
-                    encoder.handleStopRecording();
+                    encoder.handleStopRecording(inputMessage.arg1 != 0);
                     break;
                 case MSG_FRAME_AVAILABLE:
-                    long timestamp = (((long) inputMessage.arg1) << 32) |
-                            (((long) inputMessage.arg2) & 0xffffffffL);
-                    encoder.handleFrameAvailable((float[]) obj, timestamp);
-                    break;
-                case MSG_SET_TEXTURE_ID:
-                    encoder.handleSetTexture(inputMessage.arg1);
+                    encoder.handleFramesAvailable();
                     break;
                 case MSG_UPDATE_SHARED_CONTEXT:
                     encoder.handleUpdateSharedContext((EGLContext) inputMessage.obj);
@@ -312,49 +785,178 @@ public class TextureMovieEncoder implements Runnable {
     private void handleStartRecording(EncoderConfig config) {
         Log.d(TAG, "handleStartRecording " + config);
         mFrameNum = 0;
-        prepareEncoder(config.mEglContext, config.mWidth, config.mHeight, config.mBitRate,
-                config.mOutputFile);
+        mFramesDone = mFrames.clear();      // anything left over from a previous recording
+        mFrameMessagePending.set(false);
+        mMaxLagNanos = 0;
+        mAwaitingFirstFrame = true;
+        mStartTrace.mark(RecordingStartTrace.STAGE_ENCODER_THREAD_READY);
+        mInputType = config.mInputType;
+
+        if (mOutputs != null && canReuse(config.mOutputs)) {
+            // Warm start: everything's ready, we just need new files.
+            boolean sameContext = config.mEglContext == null ?
+                    mSharedContext == null : config.mEglContext.equals(mSharedContext);
+            if (!sameContext) {
+                // The view we were sharing with has been recreated since.
+                handleUpdateSharedContext(config.mEglContext);
+            } else if (mFullScreen.getProgram().getProgramType() != mInputType) {
+                mFullScreen.changeProgram(new Texture2dProgram(mInputType));
+            }
+            for (int i = 0; i < mOutputs.length; i++) {
+                // startFile() starts counting segments again, so the segment settings have
+                // to be in place first.
+                config.mOutputs[i].configure(mOutputs[i].mEncoder, true);
+                try {
+                    mOutputs[i].mEncoder.startFile(config.mOutputs[i].mOutputFile);
+                } catch (IOException ioe) {
+                    throw new RuntimeException(ioe);
+                }
+            }
+            mStartTrace.mark(RecordingStartTrace.STAGE_EGL_SURFACE_READY);
+            return;
+        }
+        if (mOutputs != null) {
+            Log.d(TAG, "outputs changed, replacing warm encoders");
+            for (Output output : mOutputs) {
+                output.mEncoder.drainEncoder(true);
+            }
+            releaseEncoder();
+        }
+        prepareEncoder(config.mEglContext, config.mOutputs);
+        mStartTrace.mark(RecordingStartTrace.STAGE_EGL_SURFACE_READY);
     }
 
     /**
-     * Handles notification of an available frame.
+     * Returns true if the warm encoders match the requested outputs in everything but the
+     * output files and the settings configure() applies.
+     */
+    private boolean canReuse(OutputConfig[] configs) {
+        if (configs.length != mOutputConfigs.length) {
+            return false;
+        }
+        for (int i = 0; i < configs.length; i++) {
+            if (!configs[i].mProfile.equals(mOutputConfigs[i].mProfile)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Handles notification that frames are available, rendering everything in the queue.
      * <p>
-     * The texture is rendered onto the encoder's input surface, along with a moving
-     * box (just because we can).
+     * With FRAME_POLICY_LATEST_WINS, frames that were superseded before we got to them are
+     * skipped.
+     */
+    private void handleFramesAvailable() {
+        // Clear this first, so a frame published while we're draining posts a new message.
+        mFrameMessagePending.set(false);
+        if (mOutputs == null) {
+            mFramesDone = mFrames.clear();  // stopped while these were in flight
+            return;
+        }
+        while (true) {
+            if (mFramePolicy == FRAME_POLICY_LATEST_WINS) {
+                int skipped = mFrames.skipToNewest();
+                if (skipped != 0) {
+                    mEncoderDroppedFrames += skipped;
+                    if (VERBOSE) Log.d(TAG, "skipped " + skipped + " stale frames");
+                }
+            }
+            if (!mFrames.take(mFrame)) {
+                break;
+            }
+            long lag = System.nanoTime() - mFrame.publishNanos;
+            mLastLagNanos = lag;
+            if (lag > mMaxLagNanos) {
+                mMaxLagNanos = lag;
+            }
+            handleFrameAvailable(mFrame);
+            mEncodedFrames++;
+        }
+    }
+
+    /**
+     * Handles an available frame.
      * <p>
-     * @param transform The texture transform, from SurfaceTexture.
-     * @param timestampNanos The frame's timestamp, from SurfaceTexture.
+     * The texture is rendered onto each encoder's input surface, along with a moving
+     * box (just because we can).
      */
-    private void handleFrameAvailable(float[] transform, long timestampNanos) {
-        if (VERBOSE) Log.d(TAG, "handleFrameAvailable tr=" + transform);
-        mVideoEncoder.drainEncoder(false);
+    private void handleFrameAvailable(FrameDescriptorRing.Frame frame) {
+        if (VERBOSE) Log.d(TAG, "handleFrameAvailable ts=" + frame.timestampNanos);
+        for (Output output : mOutputs) {
+            output.mEncoder.drainEncoder(false);
+        }
+        // Don't read the texture before the producer has finished rendering it.  There's
+        // only a fence if both contexts are GLES 3.  The wait is per context, so it covers
+        // every output.
+        long fence = mWriteFence.getAndSet(0);
+        if (fence != 0) {
+            GlUtil.waitFence(fence);
+        }
+
+        for (Output output : mOutputs) {
+            WindowSurface surface = output.mSurface;
+            if (mOutputs.length > 1) {
+                // Viewport is context state, so it has to follow the surface.
+                surface.makeCurrent();
+                GLES20.glViewport(0, 0, surface.getWidth(), surface.getHeight());
+            }
 
-        // ?
-        mFullScreen.drawFrame(mTextureId, 1, transform);
+            // ?
+            mFullScreen.drawFrame(frame.textureId, frame.transform);
 
-        drawBox(mFrameNum++);
+            drawBox(surface, mFrameNum);
 
-        mInputWindowSurface.setPresentationTime(timestampNanos);
-        mInputWindowSurface.swapBuffers();
+            surface.setPresentationTime(frame.timestampNanos);
+            surface.swapBuffers();
+        }
+        mFrameNum++;
+        mLastFrameNanos = frame.timestampNanos;
+
+        if (mTrackReads) {
+            // Let the producer know when it can render into the texture again.  A fence is
+            // no use to a producer that isn't GLES 3.
+            if (mUseFences && mProducerGles3) {
+                long old = mReadFence.getAndSet(GlUtil.createFence());
+                if (old != 0) {
+                    GlUtil.deleteFence(old);
+                }
+            } else {
+                GLES20.glFinish();
+            }
+        }
+        mFramesDone = frame.sequence + 1;
+
+        if (mAwaitingFirstFrame) {
+            mAwaitingFirstFrame = false;
+            long latency = System.nanoTime() - mStartRequestNanos;
+            mLastStartLatencyNanos = latency;
+            mStartTrace.mark(RecordingStartTrace.STAGE_FIRST_FRAME_DRAWN);
+            Log.d(TAG, "recording start latency " + latency / 1000 + "us");
+        }
     }
 
     /**
      * Handles a request to stop encoding.
      */
-    private void handleStopRecording() {
-        Log.d(TAG, "handleStopRecording");
-        mVideoEncoder.drainEncoder(true);
+    private void handleStopRecording(boolean keepWarm) {
+        Log.d(TAG, "handleStopRecording keepWarm=" + keepWarm);
+        if (mOutputs == null) {
+            return;
+        }
+        if (keepWarm) {
+            for (Output output : mOutputs) {
+                output.mEncoder.finishFile(mLastFrameNanos / 1000);
+            }
+            return;
+        }
+        for (Output output : mOutputs) {
+            output.mEncoder.drainEncoder(true);
+        }
         releaseEncoder();
     }
 
-    /**
-     * Sets the texture name that SurfaceTexture will use when frames are received.
-     */
-    private void handleSetTexture(int id) {
-        //Log.d(TAG, "handleSetTexture " + id);
-        mTextureId = id;
-    }
-
     /**
      * Tears down the EGL surface and context we've been using to feed the MediaCodec input
      * surface, and replaces it with a new one that shares with the new context.
@@ -365,41 +967,66 @@ public class TextureMovieEncoder implements Runnable {
     private void handleUpdateSharedContext(EGLContext newSharedContext) {
         Log.d(TAG, "handleUpdatedSharedContext " + newSharedContext);
 
-        // Release the EGLSurface and EGLContext.
-        mInputWindowSurface.releaseEglSurface();
+        // Release the EGLSurfaces and EGLContext.
+        releaseFences();
+        for (Output output : mOutputs) {
+            output.mSurface.releaseEglSurface();
+        }
         mFullScreen.release(false);
         mEglCore.release();
 
-        // Create a new EGLContext and recreate the window surface.
-        mEglCore = new EglCore(newSharedContext, EglCore.FLAG_RECORDABLE);
-        mInputWindowSurface.recreate(mEglCore);
-        mInputWindowSurface.makeCurrent();
+        // Create a new EGLContext and recreate the window surfaces.
+        mEglCore = new EglCore(newSharedContext,
+                EglCore.FLAG_RECORDABLE | EglCore.FLAG_TRY_GLES3);
+        mUseFences = mEglCore.getGlVersion() >= 3;
+        mSharedContext = newSharedContext;
+        for (Output output : mOutputs) {
+            output.mSurface.recreate(mEglCore);
+        }
+        mOutputs[0].mSurface.makeCurrent();
 
         // Create new programs and such for the new context.
-        mFullScreen = new FullFrameRect(
-                new Texture2dProgram(Texture2dProgram.ProgramType.TEXTURE_EXT));
+        mFullScreen = new FullFrameRect(new Texture2dProgram(mInputType));
     }
 
-    private void prepareEncoder(EGLContext sharedContext, int width, int height, int bitRate,
-            File outputFile) {
-        try {
-            mVideoEncoder = new VideoEncoderCore(width, height, bitRate, outputFile);
-        } catch (IOException ioe) {
-            throw new RuntimeException(ioe);
+    private void prepareEncoder(EGLContext sharedContext, OutputConfig[] configs) {
+        // GLES 3 lets us load cached program binaries instead of compiling.
+        mEglCore = new EglCore(sharedContext, EglCore.FLAG_RECORDABLE | EglCore.FLAG_TRY_GLES3);
+        mUseFences = mEglCore.getGlVersion() >= 3;
+        mSharedContext = sharedContext;
+        mOutputConfigs = configs;
+        mOutputs = new Output[configs.length];
+        for (int i = 0; i < configs.length; i++) {
+            OutputConfig config = configs[i];
+            VideoEncoderCore encoder;
+            try {
+                // Let the encoder push its output to the muxer where the device supports it,
+                // rather than polling for it on every frame.
+                encoder = new VideoEncoderCore(config.mProfile, config.mOutputFile, true);
+                encoder.setStartTrace(mStartTrace);
+                config.configure(encoder, false);
+            } catch (IOException ioe) {
+                throw new RuntimeException(ioe);
+            }
+            mOutputs[i] = new Output(encoder,
+                    new WindowSurface(mEglCore, encoder.getInputSurface(), true));
         }
-        mEglCore = new EglCore(sharedContext, EglCore.FLAG_RECORDABLE);
-        mInputWindowSurface = new WindowSurface(mEglCore, mVideoEncoder.getInputSurface(), true);
-        mInputWindowSurface.makeCurrent();
+        mOutputs[0].mSurface.makeCurrent();
 
-        mFullScreen = new FullFrameRect(
-                new Texture2dProgram(Texture2dProgram.ProgramType.TEXTURE_EXT));
+        mFullScreen = new FullFrameRect(new Texture2dProgram(mInputType));
     }
 
     private void releaseEncoder() {
-        mVideoEncoder.release();
-        if (mInputWindowSurface != null) {
-            mInputWindowSurface.release();
-            mInputWindowSurface = null;
+        if (mEglCore != null) {
+            releaseFences();
+        }
+        if (mOutputs != null) {
+            for (Output output : mOutputs) {
+                output.mEncoder.release();
+                output.mSurface.release();
+            }
+            mOutputs = null;
+            mOutputConfigs = null;
         }
         if (mFullScreen != null) {
             mFullScreen.release(false);
@@ -411,11 +1038,30 @@ public class TextureMovieEncoder implements Runnable {
         }
     }
 
+    /**
+     * Tells the producer to stop making fences, and deletes the ones we're holding, before
+     * our context goes away.  Must be called with the context current.
+     */
+    private void releaseFences() {
+        if (!mUseFences) {
+            return;
+        }
+        mUseFences = false;
+        long fence = mWriteFence.getAndSet(0);
+        if (fence != 0) {
+            GlUtil.deleteFence(fence);
+        }
+        fence = mReadFence.getAndSet(0);
+        if (fence != 0) {
+            GlUtil.deleteFence(fence);
+        }
+    }
+
     /**
      * Draws a box, with position offset.
      */
-    private void drawBox(int posn) {
-        final int width = mInputWindowSurface.getWidth();
+    private void drawBox(WindowSurface surface, int posn) {
+        final int width = surface.getWidth();
         int xpos = (posn * 4) % (width - 50);
         GLES20.glEnable(GLES20.GL_SCISSOR_TEST);
         GLES20.glScissor(xpos, 0, 100, 100);
@@ -17,9 +17,12 @@
 package com.android.grafika;
 
 import android.media.MediaCodec;
-import android.media.MediaCodecInfo;
 import android.media.MediaFormat;
 import android.media.MediaMuxer;
+import android.os.Build;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.HandlerThread;
 import android.util.Log;
 import android.view.Surface;
 
@@ -36,60 +39,258 @@ import java.nio.ByteBuffer;
  * <p>
  * This class is not thread-safe, with one exception: it is valid to use the input surface
  * on one thread, and drain the output on a different thread.
+ * <p>
+ * In asynchronous mode the encoder pushes its output to the muxer from a callback thread
+ * as soon as it's ready, instead of waiting for drainEncoder() to poll for it.
+ * drainEncoder() still needs to be called with endOfStream set at the end, to flush the
+ * encoder; otherwise it does nothing.
+ * <p>
+ * Long recordings can be split into segments with setSegmentation().  When a segment has
+ * reached its limit, we ask the encoder for a sync frame, and when it arrives we close the
+ * current file and start the next one with it.  The encoder keeps running throughout, so
+ * nothing is lost between segments.  The file handling is done by a SegmentWriter.
+ * <p>
+ * The encoder can also be kept running between recordings.  finishFile() closes the
+ * current file without sending end-of-stream, and startFile() opens a new one that starts
+ * at the next sync frame, so the next recording doesn't have to create and configure a
+ * new codec.
  */
 public class VideoEncoderCore {
     private static final String TAG = MainActivity.TAG;
     private static final boolean VERBOSE = false;
 
-    // TODO: these ought to be configurable as well
-    private static final String MIME_TYPE = "video/avc";    // H.264 Advanced Video Coding
-    private static final int FRAME_RATE = 30;               // 30fps
-    private static final int IFRAME_INTERVAL = 5;           // 5 seconds between I-frames
+    // How long finishFile() waits for the last frame to come out of the encoder.
+    private static final long FINISH_TIMEOUT_MSEC = 500;
 
     private Surface mInputSurface;
-    private MediaMuxer mMuxer;
     private MediaCodec mEncoder;
     private MediaCodec.BufferInfo mBufferInfo;
-    private int mTrackIndex;
-    private boolean mMuxerStarted;
 
+    // ----- output file state; accessed by whichever thread writes to the muxer -----
+    // In asynchronous mode these are guarded by mFileLock, since finishFile() and
+    // startFile() are called from a different thread than the one writing.
+    private final Object mFileLock = new Object();
+    private final SegmentWriter<MediaFormat> mWriter;
+    private long mLastWrittenPtsUsec;
+    private volatile BitrateController mBitrateController;
+    private volatile RecordingStartTrace mStartTrace;
+
+    // Asynchronous mode only.
+    private HandlerThread mCallbackThread;
+    private MediaCodecEncoder mAsyncEncoder;
+    private AsyncEncoderEngine<MediaFormat> mEngine;
+
+    /**
+     * Writes to a MediaMuxer with a single video track.
+     */
+    private class FileMuxer implements SegmentWriter.Muxer<MediaFormat> {
+        private final MediaMuxer mMuxer;
+        private final MediaCodec.BufferInfo mInfo = new MediaCodec.BufferInfo();
+        private int mTrackIndex = -1;
+
+        FileMuxer(File file) throws IOException {
+            // We're not actually interested in multiplexing audio.  We just want to convert
+            // the raw H.264 or H.265 elementary stream we get from MediaCodec into a .mp4
+            // file.
+            mMuxer = new MediaMuxer(file.toString(), MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
+        }
+
+        @Override
+        public void start(MediaFormat format) {
+            mTrackIndex = mMuxer.addTrack(format);
+            mMuxer.start();
+
+            RecordingStartTrace trace = mStartTrace;
+            if (trace != null) {
+                trace.mark(RecordingStartTrace.STAGE_MUXER_STARTED);
+            }
+        }
+
+        @Override
+        public void writeSampleData(ByteBuffer data, int flags, long ptsUsec) {
+            mInfo.set(data.position(), data.remaining(), ptsUsec, flags);
+            mMuxer.writeSampleData(mTrackIndex, data, mInfo);
+        }
+
+        @Override
+        public void stop() {
+            mMuxer.stop();
+        }
+
+        @Override
+        public void release() {
+            mMuxer.release();
+        }
+    }
 
     /**
      * Configures encoder and muxer state, and prepares the input Surface.
      */
     public VideoEncoderCore(int width, int height, int bitRate, File outputFile)
             throws IOException {
+        this(width, height, bitRate, outputFile, false);
+    }
+
+    /**
+     * Configures encoder and muxer state, and prepares the input Surface.
+     *
+     * @param async Use the encoder in asynchronous mode.  Requires API 23; ignored on
+     *     older devices.
+     */
+    public VideoEncoderCore(int width, int height, int bitRate, File outputFile,
+            boolean async) throws IOException {
+        this(new EncoderProfile.Builder(width, height, bitRate).build(), outputFile, async);
+    }
+
+    /**
+     * Configures encoder and muxer state from a full encoder profile, and prepares the
+     * input Surface.
+     *
+     * @param async Use the encoder in asynchronous mode.  Requires API 23; ignored on
+     *     older devices.
+     */
+    public VideoEncoderCore(EncoderProfile profile, File outputFile, boolean async)
+            throws IOException {
         mBufferInfo = new MediaCodec.BufferInfo();
+        mWriter = new SegmentWriter<MediaFormat>(new SegmentWriter.Host<MediaFormat>() {
+            @Override
+            public SegmentWriter.Muxer<MediaFormat> createMuxer(File file) throws IOException {
+                return new FileMuxer(file);
+            }
 
-        MediaFormat format = MediaFormat.createVideoFormat(MIME_TYPE, width, height);
+            @Override
+            public void requestSyncFrame() {
+                VideoEncoderCore.this.requestSyncFrame();
+            }
+        });
 
-        // Set some properties.  Failing to specify some of these can cause the MediaCodec
-        // configure() call to throw an unhelpful exception.
-        format.setInteger(MediaFormat.KEY_COLOR_FORMAT,
-                MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface);
-        format.setInteger(MediaFormat.KEY_BIT_RATE, bitRate);
-        format.setInteger(MediaFormat.KEY_FRAME_RATE, FRAME_RATE);
-        format.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, IFRAME_INTERVAL);
+        MediaFormat format = profile.toMediaFormat();
         if (VERBOSE) Log.d(TAG, "format: " + format);
 
-        // Create a MediaCodec encoder, and configure it with our format.  Get a Surface
-        // we can use for input and wrap it with a class that handles the EGL work.
-        mEncoder = MediaCodec.createEncoderByType(MIME_TYPE);
-        mEncoder.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
-        mInputSurface = mEncoder.createInputSurface();
-        mEncoder.start();
+        if (async && Build.VERSION.SDK_INT < Build.VERSION_CODES.M) {
+            Log.w(TAG, "Asynchronous encoding needs API 23, falling back to polling");
+            async = false;
+        }
+        if (!async) {
+            // Create a MediaCodec encoder, and configure it with our format.  Get a Surface
+            // we can use for input and wrap it with a class that handles the EGL work.
+            mEncoder = CodecCapabilityCache.createVideoEncoder(format);
+            mEncoder.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+            mInputSurface = mEncoder.createInputSurface();
+            mEncoder.start();
+        }
 
         // Create a MediaMuxer.  We can't add the video track and start() the muxer here,
         // because our MediaFormat doesn't have the Magic Goodies.  These can only be
-        // obtained from the encoder after it has started processing data.
-        //
-        // We're not actually interested in multiplexing audio.  We just want to convert
-        // the raw H.264 elementary stream we get from MediaCodec into a .mp4 file.
-        mMuxer = new MediaMuxer(outputFile.toString(),
-                MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
+        // obtained from the encoder after it has started processing data.  The first
+        // frame out of a fresh encoder is a sync frame, so there's nothing to wait for.
+        mWriter.startFile(outputFile, false);
+
+        if (async) {
+            startAsync(format);
+        }
+    }
+
+    /**
+     * Creates the encoder in asynchronous mode, with output going straight to the muxer.
+     * The muxer must exist before we get here.
+     */
+    private void startAsync(MediaFormat format) throws IOException {
+        mCallbackThread = new HandlerThread("VideoEncoderCallback");
+        mCallbackThread.start();
+        mAsyncEncoder = new MediaCodecEncoder(format, new Handler(mCallbackThread.getLooper()));
+        mInputSurface = mAsyncEncoder.getInputSurface();
+
+        // Runs on the callback thread, which owns the muxer until we're released.
+        mEngine = new AsyncEncoderEngine<MediaFormat>(mAsyncEncoder,
+                new AsyncEncoderEngine.Sink<MediaFormat>() {
+            @Override
+            public void onFormat(MediaFormat format) {
+                Log.d(TAG, "encoder output format changed: " + format);
+                synchronized (mFileLock) {
+                    mWriter.setFormat(format);
+                }
+            }
 
-        mTrackIndex = -1;
-        mMuxerStarted = false;
+            @Override
+            public void onPacket(ByteBuffer data, int flags, long ptsUsec) {
+                mBufferInfo.set(data.position(), data.remaining(), ptsUsec, flags);
+                synchronized (mFileLock) {
+                    writeSample(data, mBufferInfo);
+                    mFileLock.notifyAll();      // finishFile() may be waiting
+                }
+            }
+
+            @Override
+            public void onEndOfStream() {
+                if (VERBOSE) Log.d(TAG, "end of stream reached");
+            }
+        });
+        mEngine.start();
+    }
+
+    /**
+     * Splits the recording into segments.  Each segment ends at the first sync frame after
+     * it reaches either limit.  The first segment goes to the output file, the rest to
+     * files named after it with "-1", "-2", ... inserted before the extension.
+     * <p>
+     * Call this before feeding any frames to the input surface, or, for a warm encoder,
+     * before startFile().  The settings carry over to later files until changed.
+     *
+     * @param maxDurationUsec Segment length limit, in microseconds, or 0 for no limit.
+     * @param maxBytes Segment size limit, or 0 for no limit.  Segments may overshoot this
+     *     by however much the encoder produces before the sync frame shows up.
+     * @param listener Told about each file as it's finished.  May be null.
+     */
+    public void setSegmentation(long maxDurationUsec, long maxBytes,
+            SegmentWriter.SegmentListener listener) {
+        synchronized (mFileLock) {
+            mWriter.setSegmentation(maxDurationUsec, maxBytes, listener);
+        }
+    }
+
+    /**
+     * Feeds the encoder's output to a controller that adjusts the bit rate as we go.  The
+     * controller should be created with this object's setBitRate() as its encoder.  Pass
+     * null to stop.
+     */
+    public void setBitrateController(BitrateController controller) {
+        mBitrateController = controller;
+    }
+
+    /**
+     * Marks the output-side stages of recording startup (first output buffer, first sync
+     * frame, muxer started) in the trace.  Pass null to stop.
+     */
+    public void setStartTrace(RecordingStartTrace trace) {
+        mStartTrace = trace;
+    }
+
+    /**
+     * Changes the encoder's target bit rate without stopping it.  Needs API 19; ignored on
+     * older devices.  May be called on any thread.
+     */
+    public void setBitRate(int bitRate) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.KITKAT) {
+            return;
+        }
+        if (VERBOSE) Log.d(TAG, "setting bit rate to " + bitRate);
+        if (mAsyncEncoder != null) {
+            mAsyncEncoder.setBitRate(bitRate);
+        } else {
+            Bundle params = new Bundle();
+            params.putInt(MediaCodec.PARAMETER_KEY_VIDEO_BITRATE, bitRate);
+            mEncoder.setParameters(params);
+        }
+    }
+
+    /**
+     * Returns the file that the given segment is written to.
+     */
+    public File getSegmentFile(int index) {
+        synchronized (mFileLock) {
+            return mWriter.getSegmentFile(index);
+        }
     }
 
     /**
@@ -104,17 +305,115 @@ public class VideoEncoderCore {
      */
     public void release() {
         if (VERBOSE) Log.d(TAG, "releasing encoder objects");
+        if (mCallbackThread != null) {
+            // stop() waits for a callback in progress to finish, and no more are delivered
+            // after it, so once the callback thread is gone the muxer is ours again.  The
+            // encoder is left in place: a released one ignores setBitRate() and sync frame
+            // requests.
+            mAsyncEncoder.stop();
+            mAsyncEncoder.release();
+            mCallbackThread.quit();
+            try {
+                mCallbackThread.join();
+            } catch (InterruptedException ie) {
+                Log.w(TAG, "Callback thread join() was interrupted", ie);
+            }
+            mCallbackThread = null;
+        }
         if (mEncoder != null) {
             mEncoder.stop();
             mEncoder.release();
             mEncoder = null;
         }
-        if (mMuxer != null) {
-            // TODO: stop() throws an exception if you haven't fed it any data.  Keep track
-            //       of frames submitted, and don't call stop() if we haven't written anything.
-            mMuxer.stop();
-            mMuxer.release();
-            mMuxer = null;
+        mWriter.finishFile();
+    }
+
+    /**
+     * Finishes the current file, leaving the encoder running for the next one.
+     * <p>
+     * We don't send end-of-stream, since that would finish the encoder too.  Instead we
+     * wait until the last frame submitted has been written, then close the file.  Output
+     * that arrives after that is discarded until startFile() is called.
+     *
+     * @param lastPtsUsec Presentation time of the last frame submitted for this file.
+     */
+    public void finishFile(long lastPtsUsec) {
+        long deadline = System.currentTimeMillis() + FINISH_TIMEOUT_MSEC;
+        if (mEngine == null) {
+            while (mLastWrittenPtsUsec < lastPtsUsec && System.currentTimeMillis() < deadline) {
+                drainEncoder(false);
+            }
+        }
+        synchronized (mFileLock) {
+            while (mEngine != null && mLastWrittenPtsUsec < lastPtsUsec) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    break;
+                }
+                try {
+                    mFileLock.wait(remaining);
+                } catch (InterruptedException ie) {
+                    break;
+                }
+            }
+            if (mLastWrittenPtsUsec < lastPtsUsec) {
+                Log.w(TAG, "timed out waiting for the last frame, closing file anyway");
+            }
+            mWriter.finishFile();
+        }
+    }
+
+    /**
+     * Starts writing to a new file, after finishFile().  We ask the encoder for a sync
+     * frame, and the file starts there; on devices that can't take the request (pre-API 19)
+     * it starts at the next scheduled one.
+     */
+    public void startFile(File outputFile) throws IOException {
+        synchronized (mFileLock) {
+            mWriter.startFile(outputFile, true);
+        }
+    }
+
+    /**
+     * Writes an encoded frame to the current file, if there is one.
+     */
+    private void writeSample(ByteBuffer data, MediaCodec.BufferInfo info) {
+        mLastWrittenPtsUsec = info.presentationTimeUs;
+        RecordingStartTrace trace = mStartTrace;
+        if (trace != null && mWriter.isFileOpen()) {
+            trace.mark(RecordingStartTrace.STAGE_FIRST_OUTPUT_BUFFER);
+        }
+        if (!mWriter.writeSample(data, info.flags, info.presentationTimeUs)) {
+            if (VERBOSE) Log.d(TAG, "no file, or waiting for sync frame to start one");
+            return;
+        }
+        if (trace != null && (info.flags & MediaCodec.BUFFER_FLAG_SYNC_FRAME) != 0) {
+            trace.mark(RecordingStartTrace.STAGE_FIRST_KEYFRAME);
+        }
+
+        BitrateController controller = mBitrateController;
+        if (controller != null) {
+            controller.onPacket(info.size, info.presentationTimeUs);
+        }
+        if (VERBOSE) {
+            Log.d(TAG, "sent " + info.size + " bytes to muxer, ts=" + info.presentationTimeUs);
+        }
+    }
+
+    /**
+     * Asks the encoder to make the next frame a sync frame, so we can cut there instead of
+     * waiting for the next scheduled one.  Needs API 19; on older devices we just wait.
+     */
+    private void requestSyncFrame() {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.KITKAT) {
+            return;
+        }
+        if (mAsyncEncoder != null) {
+            mAsyncEncoder.requestSyncFrame();
+        } else {
+            Bundle params = new Bundle();
+            params.putInt(MediaCodec.PARAMETER_KEY_REQUEST_SYNC_FRAME, 0);
+            mEncoder.setParameters(params);
         }
     }
 
@@ -132,6 +431,18 @@ public class VideoEncoderCore {
         final int TIMEOUT_USEC = 10000;
         if (VERBOSE) Log.d(TAG, "drainEncoder(" + endOfStream + ")");
 
+        if (mEngine != null) {
+            // Output is pushed to the muxer as it arrives.  We just need to flush at the end.
+            if (endOfStream) {
+                if (VERBOSE) Log.d(TAG, "sending EOS to encoder");
+                mEngine.signalEndOfStream();
+                if (!mEngine.awaitEndOfStream(1000)) {
+                    Log.w(TAG, "timed out waiting for end of stream");
+                }
+            }
+            return;
+        }
+
         if (endOfStream) {
             if (VERBOSE) Log.d(TAG, "sending EOS to encoder");
             mEncoder.signalEndOfInputStream();
@@ -151,17 +462,9 @@ public class VideoEncoderCore {
                 // not expected for an encoder
                 encoderOutputBuffers = mEncoder.getOutputBuffers();
             } else if (encoderStatus == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
-                // should happen before receiving buffers, and should only happen once
-                if (mMuxerStarted) {
-                    throw new RuntimeException("format changed twice");
-                }
                 MediaFormat newFormat = mEncoder.getOutputFormat();
                 Log.d(TAG, "encoder output format changed: " + newFormat);
-
-                // now that we have the Magic Goodies, start the muxer
-                mTrackIndex = mMuxer.addTrack(newFormat);
-                mMuxer.start();
-                mMuxerStarted = true;
+                mWriter.setFormat(newFormat);
             } else if (encoderStatus < 0) {
                 Log.w(TAG, "unexpected result from encoder.dequeueOutputBuffer: " +
                         encoderStatus);
@@ -181,19 +484,11 @@ public class VideoEncoderCore {
                 }
 
                 if (mBufferInfo.size != 0) {
-                    if (!mMuxerStarted) {
-                        throw new RuntimeException("muxer hasn't started");
-                    }
-
                     // adjust the ByteBuffer values to match BufferInfo (not needed?)
                     encodedData.position(mBufferInfo.offset);
                     encodedData.limit(mBufferInfo.offset + mBufferInfo.size);
 
-                    mMuxer.writeSampleData(mTrackIndex, encodedData, mBufferInfo);
-                    if (VERBOSE) {
-                        Log.d(TAG, "sent " + mBufferInfo.size + " bytes to muxer, ts=" +
-                                mBufferInfo.presentationTimeUs);
-                    }
+                    writeSample(encodedData, mBufferInfo);
                 }
 
                 mEncoder.releaseOutputBuffer(encoderStatus, false);
@@ -0,0 +1,328 @@
+/*
+ * Copyright 2026 The CombineCameras Authors. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.grafika.gles;
+
+import android.opengl.GLES11Ext;
+import android.opengl.GLES20;
+import android.util.Log;
+
+import java.nio.FloatBuffer;
+
+/**
+ * GL program that composites several external textures (e.g. one per camera) into the
+ * viewport, each in its own rectangle.
+ * <p>
+ * Each tile is a separate quad, and the vertex shader places it using a table of rectangles
+ * held in a uniform.  Fragments are only generated inside the tiles, so pixels outside
+ * them don't fetch anything.  Each tile is its own draw call from a shared vertex buffer,
+ * with its texture bound to the one sampler, so the fragment shader doesn't have to pick
+ * a texture.  Nothing else changes between the calls.  Changing the layout just changes
+ * the table, so it doesn't need a new program.
+ * <p>
+ * Where tiles overlap (PiP), later tiles are drawn on top.
+ */
+public class CompositorProgram {
+    private static final String TAG = GlUtil.TAG;
+
+    /** Most textures we can composite at once. */
+    public static final int MAX_TILES = 4;
+
+    // aCorner is the corner of the quad, (0,0) to (1,1).  aTile selects the entry in the
+    // rectangle and texture matrix tables.  Vertex shaders may index uniform arrays with
+    // any expression, so this is legal in GLES 2.
+    private static final String VERTEX_SHADER =
+            "#define MAX_TILES " + MAX_TILES + "\n" +
+            "uniform vec4 uRect[MAX_TILES];\n" +
+            "uniform mat4 uTexMatrix[MAX_TILES];\n" +
+            "attribute vec2 aCorner;\n" +
+            "attribute float aTile;\n" +
+            "varying vec2 vTextureCoord;\n" +
+            "void main() {\n" +
+            "    int tile = int(aTile);\n" +
+            "    vec4 rect = uRect[tile];\n" +
+            "    vec2 pos = rect.xy + aCorner * rect.zw;\n" +
+            "    gl_Position = vec4(pos * 2.0 - 1.0, 0.0, 1.0);\n" +
+            "    vTextureCoord = (uTexMatrix[tile] * vec4(aCorner, 0.0, 1.0)).xy;\n" +
+            "}\n";
+
+    // Each tile is drawn with its own texture bound, so there's only one sampler.
+    private static final String FRAGMENT_SHADER =
+            "#extension GL_OES_EGL_image_external : require\n" +
+            "precision mediump float;\n" +
+            "varying vec2 vTextureCoord;\n" +
+            "uniform samplerExternalOES sTexture;\n" +
+            "void main() {\n" +
+            "    gl_FragColor = texture2D(sTexture, vTextureCoord);\n" +
+            "}\n";
+
+    private static final int VERTICES_PER_TILE = 6;     // two triangles
+
+    /**
+     * Where each texture goes in the viewport.  Immutable.
+     * <p>
+     * Rectangles are in normalized viewport coordinates: (0,0) is the bottom left, (1,1)
+     * the top right.  Tile i shows texture i.
+     */
+    public static class Layout {
+        private final String mName;
+        private final float[] mRects;       // x, y, width, height per tile
+
+        /**
+         * @param rects Four values (x, y, width, height) per tile, for up to MAX_TILES.
+         */
+        public Layout(String name, float[] rects) {
+            if (rects.length % 4 != 0 || rects.length == 0 || rects.length > 4 * MAX_TILES) {
+                throw new IllegalArgumentException("Bad rectangle table, length " +
+                        rects.length);
+            }
+            mName = name;
+            mRects = rects.clone();
+        }
+
+        public int getTileCount() {
+            return mRects.length / 4;
+        }
+
+        /**
+         * Tiles in a grid, filled row by row from the top left.
+         */
+        public static Layout grid(int count) {
+            checkCount(count);
+            int cols = (int) Math.ceil(Math.sqrt(count));
+            int rows = (count + cols - 1) / cols;
+            float width = 1.0f / cols;
+            float height = 1.0f / rows;
+            float[] rects = new float[count * 4];
+            for (int i = 0; i < count; i++) {
+                setRect(rects, i, (i % cols) * width, 1.0f - (i / cols + 1) * height,
+                        width, height);
+            }
+            return new Layout("grid", rects);
+        }
+
+        /**
+         * Tile 0 fills the viewport, and the others are inset down the left edge from the
+         * top.  With two tiles, the inset takes the top left quarter.
+         */
+        public static Layout pip(int count) {
+            checkCount(count);
+            float size = count == 2 ? 0.5f : 1.0f / 3;
+            float[] rects = new float[count * 4];
+            setRect(rects, 0, 0.0f, 0.0f, 1.0f, 1.0f);
+            for (int i = 1; i < count; i++) {
+                setRect(rects, i, 0.0f, 1.0f - i * size, size, size);
+            }
+            return new Layout("pip", rects);
+        }
+
+        /**
+         * Tiles side by side, as equal-width columns from the left.
+         */
+        public static Layout split(int count) {
+            checkCount(count);
+            float width = 1.0f / count;
+            float[] rects = new float[count * 4];
+            for (int i = 0; i < count; i++) {
+                setRect(rects, i, i * width, 0.0f, width, 1.0f);
+            }
+            return new Layout("split", rects);
+        }
+
+        /**
+         * Tiles stacked as equal-height rows from the top.
+         */
+        public static Layout stack(int count) {
+            checkCount(count);
+            float height = 1.0f / count;
+            float[] rects = new float[count * 4];
+            for (int i = 0; i < count; i++) {
+                setRect(rects, i, 0.0f, 1.0f - (i + 1) * height, 1.0f, height);
+            }
+            return new Layout("stack", rects);
+        }
+
+        private static void checkCount(int count) {
+            if (count <= 0 || count > MAX_TILES) {
+                throw new IllegalArgumentException("Bad tile count " + count);
+            }
+        }
+
+        private static void setRect(float[] rects, int tile, float x, float y, float width,
+                float height) {
+            rects[tile * 4] = x;
+            rects[tile * 4 + 1] = y;
+            rects[tile * 4 + 2] = width;
+            rects[tile * 4 + 3] = height;
+        }
+
+        @Override
+        public String toString() {
+            return mName + "(" + getTileCount() + ")";
+        }
+    }
+
+    // Handles to the GL program and various components of it.
+    private int mProgramHandle;
+    private int muRectLoc;
+    private int muTexMatrixLoc;
+    private int maCornerLoc;
+    private int maTileLoc;
+    private int mAttribMask;
+
+    // Vertex buffer object holding the corners, then the tile numbers.
+    private int mBuffer;
+    private int mTileOffset;            // bytes
+    private final float[] mTexMatrices = new float[16 * MAX_TILES];
+    private Layout mLayout;
+
+
+    /**
+     * Prepares the program in the current EGL context.
+     *
+     * @param layout Initial layout.
+     */
+    public CompositorProgram(Layout layout) {
+        mLayout = layout;
+
+        mProgramHandle = ProgramCache.getInstance().acquire("COMPOSITOR", VERTEX_SHADER,
+                FRAGMENT_SHADER);
+        if (mProgramHandle == 0) {
+            throw new RuntimeException("Unable to create program");
+        }
+        Log.d(TAG, "Using program " + mProgramHandle + " (compositor)");
+
+        // get locations of attributes and uniforms
+
+        maCornerLoc = GLES20.glGetAttribLocation(mProgramHandle, "aCorner");
+        GlUtil.checkLocation(maCornerLoc, "aCorner");
+        maTileLoc = GLES20.glGetAttribLocation(mProgramHandle, "aTile");
+        GlUtil.checkLocation(maTileLoc, "aTile");
+        muRectLoc = GLES20.glGetUniformLocation(mProgramHandle, "uRect");
+        GlUtil.checkLocation(muRectLoc, "uRect");
+        muTexMatrixLoc = GLES20.glGetUniformLocation(mProgramHandle, "uTexMatrix");
+        GlUtil.checkLocation(muTexMatrixLoc, "uTexMatrix");
+        mAttribMask = GlState.attribBit(maCornerLoc) | GlState.attribBit(maTileLoc);
+
+        // The sampler always reads texture unit 0.
+        GlState.get().useProgram(mProgramHandle);
+        int samplerLoc = GLES20.glGetUniformLocation(mProgramHandle, "sTexture");
+        GlUtil.checkLocation(samplerLoc, "sTexture");
+        GLES20.glUniform1i(samplerLoc, 0);
+        GlUtil.checkGlError("glUniform1i");
+
+        // Two triangles per tile, covering (0,0)-(1,1), tagged with the tile number.
+        float[] corners = new float[MAX_TILES * VERTICES_PER_TILE * 2];
+        float[] tiles = new float[MAX_TILES * VERTICES_PER_TILE];
+        float[] quad = {
+                0.0f, 0.0f,   1.0f, 0.0f,   0.0f, 1.0f,
+                0.0f, 1.0f,   1.0f, 0.0f,   1.0f, 1.0f
+        };
+        for (int i = 0; i < MAX_TILES; i++) {
+            System.arraycopy(quad, 0, corners, i * quad.length, quad.length);
+            for (int j = 0; j < VERTICES_PER_TILE; j++) {
+                tiles[i * VERTICES_PER_TILE + j] = i;
+            }
+        }
+        FloatBuffer cornerBuffer = GlUtil.createFloatBuffer(corners);
+        FloatBuffer tileBuffer = GlUtil.createFloatBuffer(tiles);
+
+        // They never change, so they can live in a buffer object.
+        int[] names = new int[1];
+        GLES20.glGenBuffers(1, names, 0);
+        mBuffer = names[0];
+        mTileOffset = corners.length * 4;
+        GlState.get().bindArrayBuffer(mBuffer);
+        GLES20.glBufferData(GLES20.GL_ARRAY_BUFFER, mTileOffset + tiles.length * 4, null,
+                GLES20.GL_STATIC_DRAW);
+        GLES20.glBufferSubData(GLES20.GL_ARRAY_BUFFER, 0, mTileOffset, cornerBuffer);
+        GLES20.glBufferSubData(GLES20.GL_ARRAY_BUFFER, mTileOffset, tiles.length * 4,
+                tileBuffer);
+        GlUtil.checkGlError("create vertex buffer");
+    }
+
+    /**
+     * Releases the program and vertex buffer.  The GL program itself stays in the
+     * ProgramCache until the context is released.
+     * <p>
+     * The appropriate EGL context must be current (i.e. the one that was used to create
+     * the program).
+     */
+    public void release() {
+        Log.d(TAG, "releasing program " + mProgramHandle);
+        GlState.get().forgetBuffers(mBuffer, 0);
+        GLES20.glDeleteBuffers(1, new int[] { mBuffer }, 0);
+        mBuffer = 0;
+        mProgramHandle = -1;
+    }
+
+    /**
+     * Changes the layout.  Takes effect on the next draw().
+     */
+    public void setLayout(Layout layout) {
+        mLayout = layout;
+    }
+
+    public Layout getLayout() {
+        return mLayout;
+    }
+
+    /**
+     * Draws the tiles, filling the viewport according to the layout.  State that's already
+     * set, per GlState, isn't set again.
+     *
+     * @param textureIds External textures, one per tile.  If there are fewer textures than
+     *     tiles, the extra tiles aren't drawn.
+     * @param texMatrices Texture transform for each texture, from SurfaceTexture.
+     */
+    public void draw(int[] textureIds, float[][] texMatrices) {
+        GlState state = GlState.get();
+        GlState.checkGlError("draw start");
+        Layout layout = mLayout;
+        int count = Math.min(layout.getTileCount(), textureIds.length);
+
+        // Select the program.
+        state.useProgram(mProgramHandle);
+        GlState.checkGlError("glUseProgram");
+
+        for (int i = 0; i < count; i++) {
+            System.arraycopy(texMatrices[i], 0, mTexMatrices, i * 16, 16);
+        }
+
+        // Copy the layout and the texture transformation matrices over.
+        state.uniform4fv(muRectLoc, count, layout.mRects);
+        GlState.checkGlError("glUniform4fv");
+        state.uniformMatrix4fv(muTexMatrixLoc, count, mTexMatrices);
+        GlState.checkGlError("glUniformMatrix4fv");
+
+        // Connect the vertex attributes to the buffer.
+        state.bindVertexArray(0);
+        state.bindArrayBuffer(mBuffer);
+        state.setEnabledAttribs(mAttribMask);
+        GLES20.glVertexAttribPointer(maCornerLoc, 2, GLES20.GL_FLOAT, false, 0, 0);
+        GLES20.glVertexAttribPointer(maTileLoc, 1, GLES20.GL_FLOAT, false, 0, mTileOffset);
+        GlState.checkGlError("glVertexAttribPointer");
+
+        // Draw the tiles, each with its own texture.  GlState undoes the bindings at the end
+        // of the frame.
+        for (int i = 0; i < count; i++) {
+            state.bindTexture(0, GLES11Ext.GL_TEXTURE_EXTERNAL_OES, textureIds[i]);
+            GLES20.glDrawArrays(GLES20.GL_TRIANGLES, i * VERTICES_PER_TILE,
+                    VERTICES_PER_TILE);
+        }
+        GlState.checkGlError("glDrawArrays");
+    }
+}
@@ -16,10 +16,21 @@
 
 package com.android.grafika.gles;
 
+import android.opengl.EGL14;
+import android.opengl.EGLContext;
+import android.opengl.GLES20;
+import android.opengl.GLES30;
+
 import java.nio.FloatBuffer;
 
 /**
  * Base class for stuff we like to draw.
+ * <p>
+ * The vertex data lives in Java buffers, and the first time the drawable is drawn in a
+ * context it's copied into a GL buffer object, so draws don't have to send it to the driver
+ * each time.  On GLES 3, a vertex array object holds the attribute setup as well.
+ * Subclasses that change the texture coordinates call texCoordsChanged(), and the new
+ * values are uploaded before the next draw.
  */
 public class Drawable2d {
     private static final int SIZEOF_FLOAT = 4;
@@ -98,6 +109,20 @@ public class Drawable2d {
     private int mTexCoordStride;
     private Prefab mPrefab;
 
+    // GL copy of the vertex data: positions, then texture coordinates.  Belongs to the
+    // context it was made in.  If we're drawn in a different context we make a new one and
+    // leave the old one to its context, so a drawable should stick to one context.
+    private EGLContext mBufferContext;
+    private int mBufferGeneration;
+    private int mBuffer;
+    private int mTexCoordOffset;            // bytes
+    private int mVertexArrayObject;         // GLES 3 only
+    private boolean mUseVertexArray;
+    private int mVertexArrayPositionLoc = -1;
+    private int mVertexArrayTexCoordLoc = -1;
+    private int mTexCoordVersion;           // bumped by texCoordsChanged()
+    private int mUploadedTexCoordVersion;
+
     /**
      * Enum values for constructor.
      */
@@ -186,6 +211,130 @@ public class Drawable2d {
         return mCoordsPerVertex;
     }
 
+    /**
+     * Releases the GL buffers, if they were made in the current context.  Otherwise they go
+     * away with their context.
+     */
+    public void release() {
+        if (mBuffer != 0 && EGL14.eglGetCurrentContext().equals(mBufferContext) &&
+                mBufferGeneration == GlState.get().getGeneration()) {
+            GlState.get().forgetBuffers(mBuffer, mVertexArrayObject);
+            GLES20.glDeleteBuffers(1, new int[] { mBuffer }, 0);
+            if (mVertexArrayObject != 0) {
+                GLES30.glDeleteVertexArrays(1, new int[] { mVertexArrayObject }, 0);
+            }
+        }
+        mBuffer = mVertexArrayObject = 0;
+        mBufferContext = null;
+    }
+
+    /**
+     * Tells us that getTexCoordArray() will return different values from now on.
+     */
+    protected void texCoordsChanged() {
+        mTexCoordVersion++;
+    }
+
+    /**
+     * Sets up the vertex attributes for drawing from our GL buffer, creating or updating it
+     * as needed.  The program must be current.
+     *
+     * @param positionLoc Location of the position attribute.
+     * @param texCoordLoc Location of the texture coordinate attribute, or -1 if the program
+     *     doesn't have one.
+     */
+    void bind(int positionLoc, int texCoordLoc) {
+        GlState state = GlState.get();
+        EGLContext context = EGL14.eglGetCurrentContext();
+        if (mBuffer == 0 || mBufferGeneration != state.getGeneration() ||
+                !context.equals(mBufferContext)) {
+            createBuffer(state, context);
+        }
+        if (mUploadedTexCoordVersion != mTexCoordVersion) {
+            state.bindArrayBuffer(mBuffer);
+            GLES20.glBufferSubData(GLES20.GL_ARRAY_BUFFER, mTexCoordOffset,
+                    mVertexCount * mTexCoordStride, getTexCoordArray());
+            mUploadedTexCoordVersion = mTexCoordVersion;
+        }
+
+        if (mUseVertexArray) {
+            if (positionLoc != mVertexArrayPositionLoc ||
+                    texCoordLoc != mVertexArrayTexCoordLoc) {
+                setUpVertexArray(state, positionLoc, texCoordLoc);
+            }
+            state.bindVertexArray(mVertexArrayObject);
+        } else {
+            state.bindVertexArray(0);
+            state.bindArrayBuffer(mBuffer);
+            int mask = GlState.attribBit(positionLoc);
+            if (texCoordLoc >= 0) {
+                mask |= GlState.attribBit(texCoordLoc);
+            }
+            state.setEnabledAttribs(mask);
+            setPointers(positionLoc, texCoordLoc);
+        }
+    }
+
+    private void createBuffer(GlState state, EGLContext context) {
+        int positionBytes = mVertexCount * mVertexStride;
+        int texCoordBytes = mVertexCount * mTexCoordStride;
+        int[] names = new int[1];
+        GLES20.glGenBuffers(1, names, 0);
+        mBuffer = names[0];
+        state.bindArrayBuffer(mBuffer);
+        GLES20.glBufferData(GLES20.GL_ARRAY_BUFFER, positionBytes + texCoordBytes, null,
+                GLES20.GL_STATIC_DRAW);
+        GLES20.glBufferSubData(GLES20.GL_ARRAY_BUFFER, 0, positionBytes, getVertexArray());
+        GLES20.glBufferSubData(GLES20.GL_ARRAY_BUFFER, positionBytes, texCoordBytes,
+                getTexCoordArray());
+        GlUtil.checkGlError("create vertex buffer");
+        mTexCoordOffset = positionBytes;
+        mUploadedTexCoordVersion = mTexCoordVersion;
+
+        mUseVertexArray = GlUtil.isGles3();
+        if (mUseVertexArray) {
+            GLES30.glGenVertexArrays(1, names, 0);
+            mVertexArrayObject = names[0];
+        } else {
+            mVertexArrayObject = 0;
+        }
+        mVertexArrayPositionLoc = mVertexArrayTexCoordLoc = -1;
+        mBufferContext = context;
+        mBufferGeneration = state.getGeneration();
+    }
+
+    /**
+     * Points the vertex array object at the attribute locations.  A drawable is normally
+     * drawn with one program, so this doesn't happen often.
+     */
+    private void setUpVertexArray(GlState state, int positionLoc, int texCoordLoc) {
+        state.bindVertexArray(mVertexArrayObject);
+        if (mVertexArrayPositionLoc >= 0) {
+            GLES20.glDisableVertexAttribArray(mVertexArrayPositionLoc);
+        }
+        if (mVertexArrayTexCoordLoc >= 0) {
+            GLES20.glDisableVertexAttribArray(mVertexArrayTexCoordLoc);
+        }
+        state.bindArrayBuffer(mBuffer);
+        GLES20.glEnableVertexAttribArray(positionLoc);
+        if (texCoordLoc >= 0) {
+            GLES20.glEnableVertexAttribArray(texCoordLoc);
+        }
+        setPointers(positionLoc, texCoordLoc);
+        GlUtil.checkGlError("set up vertex array");
+        mVertexArrayPositionLoc = positionLoc;
+        mVertexArrayTexCoordLoc = texCoordLoc;
+    }
+
+    private void setPointers(int positionLoc, int texCoordLoc) {
+        GLES20.glVertexAttribPointer(positionLoc, mCoordsPerVertex, GLES20.GL_FLOAT, false,
+                mVertexStride, 0);
+        if (texCoordLoc >= 0) {
+            GLES20.glVertexAttribPointer(texCoordLoc, 2, GLES20.GL_FLOAT, false,
+                    mTexCoordStride, mTexCoordOffset);
+        }
+    }
+
     @Override
     public String toString() {
         if (mPrefab != null) {
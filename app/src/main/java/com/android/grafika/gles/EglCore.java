@@ -183,6 +183,9 @@ public final class EglCore {
      */
     public void release() {
         if (mEGLDisplay != EGL14.EGL_NO_DISPLAY) {
+            // Cached programs go with the context.
+            ProgramCache.getInstance().releaseContext(mEGLContext);
+
             // Android is unusual in that it uses a reference-counted EGLDisplay.  So for
             // every eglInitialize() we need an eglTerminate().
             EGL14.eglMakeCurrent(mEGLDisplay, EGL14.EGL_NO_SURFACE, EGL14.EGL_NO_SURFACE,
@@ -300,10 +303,13 @@ public final class EglCore {
 
     /**
      * Calls eglSwapBuffers.  Use this to "publish" the current frame.
+     * <p>
+     * Ends the frame for GlState first.
      *
      * @return false on failure
      */
     public boolean swapBuffers(EGLSurface eglSurface) {
+        GlState.get().endFrame();
         return EGL14.eglSwapBuffers(mEGLDisplay, eglSurface);
     }
 
@@ -46,6 +46,7 @@ public class FlatShadedProgram {
     private int muColorLoc = -1;
     private int muMVPMatrixLoc = -1;
     private int maPositionLoc = -1;
+    private int mAttribMask;
 
 
     /**
@@ -66,18 +67,20 @@ public class FlatShadedProgram {
         GlUtil.checkLocation(muMVPMatrixLoc, "uMVPMatrix");
         muColorLoc = GLES20.glGetUniformLocation(mProgramHandle, "uColor");
         GlUtil.checkLocation(muColorLoc, "uColor");
+        mAttribMask = GlState.attribBit(maPositionLoc);
     }
 
     /**
      * Releases the program.
      */
     public void release() {
+        GlState.get().forgetProgram(mProgramHandle);
         GLES20.glDeleteProgram(mProgramHandle);
         mProgramHandle = -1;
     }
 
     /**
-     * Issues the draw call.  Does the full setup on every call.
+     * Issues the draw call.  State that's already set, per GlState, isn't set again.
      *
      * @param mvpMatrix The 4x4 projection matrix.
      * @param color A 4-element color vector.
@@ -90,35 +93,61 @@ public class FlatShadedProgram {
      */
     public void draw(float[] mvpMatrix, float[] color, FloatBuffer vertexBuffer,
             int firstVertex, int vertexCount, int coordsPerVertex, int vertexStride) {
-        GlUtil.checkGlError("draw start");
+        GlState state = setUp(mvpMatrix, color);
 
-        // Select the program.
-        GLES20.glUseProgram(mProgramHandle);
-        GlUtil.checkGlError("glUseProgram");
-
-        // Copy the model / view / projection matrix over.
-        GLES20.glUniformMatrix4fv(muMVPMatrixLoc, 1, false, mvpMatrix, 0);
-        GlUtil.checkGlError("glUniformMatrix4fv");
-
-        // Copy the color vector in.
-        GLES20.glUniform4fv(muColorLoc, 1, color, 0);
-        GlUtil.checkGlError("glUniform4fv ");
+        // Client-side arrays only work with no buffer bound.
+        state.bindVertexArray(0);
+        state.bindArrayBuffer(0);
 
         // Enable the "aPosition" vertex attribute.
-        GLES20.glEnableVertexAttribArray(maPositionLoc);
-        GlUtil.checkGlError("glEnableVertexAttribArray");
+        state.setEnabledAttribs(mAttribMask);
+        GlState.checkGlError("glEnableVertexAttribArray");
 
         // Connect vertexBuffer to "aPosition".
         GLES20.glVertexAttribPointer(maPositionLoc, coordsPerVertex,
             GLES20.GL_FLOAT, false, vertexStride, vertexBuffer);
-        GlUtil.checkGlError("glVertexAttribPointer");
+        GlState.checkGlError("glVertexAttribPointer");
 
-        // Draw the rect.
+        // Draw the rect.  GlState undoes the bindings at the end of the frame.
         GLES20.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, firstVertex, vertexCount);
-        GlUtil.checkGlError("glDrawArrays");
+        GlState.checkGlError("glDrawArrays");
+    }
+
+    /**
+     * Issues the draw call for a drawable, using its GL buffer for the vertex data rather
+     * than passing the array in.
+     *
+     * @param mvpMatrix The 4x4 projection matrix.
+     * @param color A 4-element color vector.
+     */
+    public void draw(float[] mvpMatrix, float[] color, Drawable2d drawable) {
+        setUp(mvpMatrix, color);
 
-        // Done -- disable vertex array and program.
-        GLES20.glDisableVertexAttribArray(maPositionLoc);
-        GLES20.glUseProgram(0);
+        drawable.bind(maPositionLoc, -1);
+        GlState.checkGlError("bind vertex data");
+
+        GLES20.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, 0, drawable.getVertexCount());
+        GlState.checkGlError("glDrawArrays");
+    }
+
+    /**
+     * Selects the program and sets the uniforms.
+     */
+    private GlState setUp(float[] mvpMatrix, float[] color) {
+        GlState state = GlState.get();
+        GlState.checkGlError("draw start");
+
+        // Select the program.
+        state.useProgram(mProgramHandle);
+        GlState.checkGlError("glUseProgram");
+
+        // Copy the model / view / projection matrix over.
+        state.uniformMatrix4fv(muMVPMatrixLoc, 1, mvpMatrix);
+        GlState.checkGlError("glUniformMatrix4fv");
+
+        // Copy the color vector in.
+        state.uniform4fv(muColorLoc, 1, color);
+        GlState.checkGlError("glUniform4fv ");
+        return state;
     }
 }
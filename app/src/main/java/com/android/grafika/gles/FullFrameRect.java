@@ -46,6 +46,7 @@ public class FullFrameRect {
         if (mProgram != null) {
             if (doEglCleanup) {
                 mProgram.release();
+                mRectDrawable.release();
             }
             mProgram = null;
         }
@@ -78,24 +79,8 @@ public class FullFrameRect {
     /**
      * Draws a viewport-filling rect, texturing it with the specified texture object.
      */
-//    public void drawFrame(int textureId, float[] texMatrix) {
-//        // Use the identity matrix for MVP so our 2x2 FULL_RECTANGLE covers the viewport.
-//        mProgram.draw(GlUtil.IDENTITY_MATRIX, mRectDrawable.getVertexArray(), 0,
-//                mRectDrawable.getVertexCount(), mRectDrawable.getCoordsPerVertex(),
-//                mRectDrawable.getVertexStride(),
-//                texMatrix, mRectDrawable.getTexCoordArray(), textureId,
-//                mRectDrawable.getTexCoordStride(), textureId2);
-//    }
-
-    /**
-     * Draws a viewport-filling rect, texturing it with the specified texture object.
-     */
-    public void drawFrame(int textureId, int textureId2, float[] texMatrix) {
+    public void drawFrame(int textureId, float[] texMatrix) {
         // Use the identity matrix for MVP so our 2x2 FULL_RECTANGLE covers the viewport.
-        mProgram.draw(GlUtil.IDENTITY_MATRIX, mRectDrawable.getVertexArray(), 0,
-                mRectDrawable.getVertexCount(), mRectDrawable.getCoordsPerVertex(),
-                mRectDrawable.getVertexStride(),
-                texMatrix, mRectDrawable.getTexCoordArray(), textureId,
-                mRectDrawable.getTexCoordStride(), textureId2);
+        mProgram.draw(GlUtil.IDENTITY_MATRIX, mRectDrawable, texMatrix, textureId);
     }
 }
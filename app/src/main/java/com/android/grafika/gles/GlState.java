@@ -0,0 +1,466 @@
+/*
+ * Copyright 2026 The CombineCameras Authors. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.grafika.gles;
+
+import android.opengl.GLES11Ext;
+import android.opengl.GLES20;
+import android.opengl.GLES30;
+import android.util.Log;
+import android.util.SparseArray;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Remembers the GL state our programs set, so a draw call can skip the calls that wouldn't
+ * change anything: binding the program that's already bound, re-binding textures and
+ * buffers, enabling enabled vertex arrays, and uploading uniforms that have the same value
+ * as last time.
+ * <p>
+ * There's one instance per thread, for whatever context is current on it.  Bindings are
+ * only trusted within a frame: endFrame() puts the program, texture and vertex array state
+ * back the way the draw calls used to leave it (nothing bound or enabled), and forgets it,
+ * so GL calls made before the first draw -- SurfaceTexture#updateTexImage(), say -- can't
+ * get us out of step.  Code that changes the program or texture bindings directly after
+ * that must call invalidate().  Uniform values live in the program object, so they're kept
+ * across frames, until the program or context goes away (forgetProgram(), reset()).
+ * <p>
+ * glGetError() makes the driver synchronize, so when STRICT_ERRORS is off the draw paths
+ * skip their per-call checks (see checkGlError()) and endFrame() does a single check for
+ * the whole frame.  Turn it on to find out which call failed.
+ */
+public final class GlState {
+    private static final String TAG = GlUtil.TAG;
+    private static final boolean VERBOSE = false;
+
+    /** Check for GL errors after every call in the draw paths, rather than once a frame. */
+    public static final boolean STRICT_ERRORS = false;
+
+    // Kinds of state, for the counters.
+    public static final int KIND_PROGRAM = 0;
+    public static final int KIND_TEXTURE = 1;
+    public static final int KIND_ATTRIB = 2;
+    public static final int KIND_UNIFORM = 3;
+    public static final int KIND_BUFFER = 4;
+    private static final int KIND_COUNT = 5;
+    private static final String[] KIND_NAMES =
+            { "program", "texture", "attrib", "uniform", "buffer" };
+
+    private static final int MAX_TEXTURE_UNITS = 8;
+    private static final int TARGET_2D = 0;
+    private static final int TARGET_EXTERNAL = 1;
+    private static final int UNKNOWN = -1;
+
+    private static final int STATS_INTERVAL = 300;  // frames between VERBOSE stats logs
+
+    private static final AtomicInteger sGenerations = new AtomicInteger();
+
+    private static final ThreadLocal<GlState> sState = new ThreadLocal<GlState>() {
+        @Override
+        protected GlState initialValue() {
+            return new GlState();
+        }
+    };
+
+    /**
+     * The uniform values we last uploaded to one program.  Programs have a handful of
+     * uniforms, so a linear search is fine.
+     */
+    private static class ProgramUniforms {
+        int[] mLocations = new int[4];
+        float[][] mValues = new float[4][];
+        int mCount;
+    }
+
+    // ----- accessed exclusively by the owning thread -----
+    private int mProgram = UNKNOWN;
+    private int mActiveUnit = UNKNOWN;
+    private final int[][] mTextures = new int[2][MAX_TEXTURE_UNITS];   // [target][unit]
+    private int mEnabledAttribs;        // bit per attribute location, in vertex array 0
+    private int mArrayBuffer;
+    private int mVertexArray;
+    private int mGeneration;
+    private final SparseArray<ProgramUniforms> mUniforms = new SparseArray<ProgramUniforms>();
+    private final float[] mScratch1 = new float[1];
+
+    private final int[] mIssued = new int[KIND_COUNT];
+    private final int[] mSkipped = new int[KIND_COUNT];
+    private int mFrameCount;
+
+    private GlState() {
+        reset();
+    }
+
+    /**
+     * Returns the state tracker for the current thread.
+     */
+    public static GlState get() {
+        return sState.get();
+    }
+
+    /**
+     * Checks for a GL error if STRICT_ERRORS is set.  Use this instead of
+     * GlUtil#checkGlError() in per-frame code; endFrame() will catch anything missed.
+     */
+    public static void checkGlError(String op) {
+        if (STRICT_ERRORS) {
+            GlUtil.checkGlError(op);
+        }
+    }
+
+    /**
+     * Forgets the program and texture bindings, so the next calls are issued
+     * unconditionally.  Call this after changing them without going through here.
+     * <p>
+     * Vertex arrays are only ever enabled, and buffers bound, through here (or by
+     * Drawable2d, for its own vertex array objects), so those are still tracked.
+     */
+    public void invalidate() {
+        mProgram = UNKNOWN;
+        mActiveUnit = UNKNOWN;
+        Arrays.fill(mTextures[TARGET_2D], UNKNOWN);
+        Arrays.fill(mTextures[TARGET_EXTERNAL], UNKNOWN);
+    }
+
+    /**
+     * Forgets everything, including the uniform values.  Call when the context is
+     * destroyed, or replaced by a new one on this thread, since the new one may reuse the
+     * old program handles.
+     */
+    public void reset() {
+        invalidate();
+        mEnabledAttribs = 0;
+        mArrayBuffer = 0;
+        mVertexArray = 0;
+        mUniforms.clear();
+        mGeneration = sGenerations.incrementAndGet();
+    }
+
+    /**
+     * Returns a number that changes whenever reset() is called, on any thread.  GL objects
+     * made while it had a given value can't be used once it changes.
+     */
+    public int getGeneration() {
+        return mGeneration;
+    }
+
+    /**
+     * Forgets the uniform values for a program that's about to be deleted.
+     */
+    public void forgetProgram(int program) {
+        mUniforms.remove(program);
+        if (mProgram == program) {
+            mProgram = UNKNOWN;
+        }
+    }
+
+    /**
+     * Notes that a buffer or vertex array object has been deleted.  GL unbinds deleted
+     * objects, so we do too.
+     */
+    public void forgetBuffers(int buffer, int vertexArray) {
+        if (mArrayBuffer == buffer) {
+            mArrayBuffer = 0;
+        }
+        if (mVertexArray == vertexArray) {
+            mVertexArray = 0;
+        }
+    }
+
+    /**
+     * Finishes the frame.  Unbinds what the draw calls bound, checks for GL errors once
+     * (unless STRICT_ERRORS), and forgets the bindings.
+     * <p>
+     * EglCore#swapBuffers() calls this; GLSurfaceView renderers must call it at the end of
+     * onDrawFrame().
+     */
+    public void endFrame() {
+        for (int unit = MAX_TEXTURE_UNITS - 1; unit >= 0; unit--) {
+            unbindIfBound(unit, TARGET_2D, GLES20.GL_TEXTURE_2D);
+            unbindIfBound(unit, TARGET_EXTERNAL, GLES11Ext.GL_TEXTURE_EXTERNAL_OES);
+        }
+        if (mActiveUnit != 0 && mActiveUnit != UNKNOWN) {
+            GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
+        }
+        bindVertexArray(0);
+        bindArrayBuffer(0);
+        for (int loc = 0; mEnabledAttribs != 0; loc++) {
+            if ((mEnabledAttribs & (1 << loc)) != 0) {
+                GLES20.glDisableVertexAttribArray(loc);
+                mEnabledAttribs &= ~(1 << loc);
+            }
+        }
+        if (mProgram != 0 && mProgram != UNKNOWN) {
+            GLES20.glUseProgram(0);
+        }
+        invalidate();
+
+        if (!STRICT_ERRORS) {
+            GlUtil.checkGlError("frame (set GlState.STRICT_ERRORS to find the call)");
+        }
+
+        mFrameCount++;
+        if (VERBOSE && mFrameCount % STATS_INTERVAL == 0) {
+            Log.d(TAG, "GL state after " + mFrameCount + " frames: " + this);
+        }
+    }
+
+    /**
+     * Makes the program current, if it isn't already.
+     */
+    public void useProgram(int program) {
+        if (mProgram == program) {
+            mSkipped[KIND_PROGRAM]++;
+            return;
+        }
+        GLES20.glUseProgram(program);
+        mProgram = program;
+        mIssued[KIND_PROGRAM]++;
+    }
+
+    /**
+     * Binds a texture to a texture unit, if it isn't already.  May change the active
+     * texture unit.
+     *
+     * @param unit Texture unit number, starting from zero (not GL_TEXTURE0).
+     * @param target GL_TEXTURE_2D or GL_TEXTURE_EXTERNAL_OES.
+     */
+    public void bindTexture(int unit, int target, int texture) {
+        int targetIndex = targetIndex(target);
+        if (mTextures[targetIndex][unit] == texture) {
+            mSkipped[KIND_TEXTURE]++;
+            return;
+        }
+        if (mActiveUnit != unit) {
+            GLES20.glActiveTexture(GLES20.GL_TEXTURE0 + unit);
+            mActiveUnit = unit;
+        }
+        GLES20.glBindTexture(target, texture);
+        mTextures[targetIndex][unit] = texture;
+        mIssued[KIND_TEXTURE]++;
+    }
+
+    /**
+     * Binds a buffer to GL_ARRAY_BUFFER, if it isn't already.  Bind 0 before passing
+     * client-side arrays to glVertexAttribPointer().
+     */
+    public void bindArrayBuffer(int buffer) {
+        if (mArrayBuffer == buffer) {
+            mSkipped[KIND_BUFFER]++;
+            return;
+        }
+        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, buffer);
+        mArrayBuffer = buffer;
+        mIssued[KIND_BUFFER]++;
+    }
+
+    /**
+     * Binds a vertex array object, if it isn't already.  Anything other than 0 requires
+     * GLES 3; binding 0 when 0 is bound makes no GL call, so GLES 2 code can use it freely.
+     */
+    public void bindVertexArray(int vertexArray) {
+        if (mVertexArray == vertexArray) {
+            mSkipped[KIND_BUFFER]++;
+            return;
+        }
+        GLES30.glBindVertexArray(vertexArray);
+        mVertexArray = vertexArray;
+        mIssued[KIND_BUFFER]++;
+    }
+
+    /**
+     * Enables exactly the vertex arrays in the mask, and disables the rest.  This applies
+     * to vertex array object 0, which must be bound.
+     *
+     * @param mask Bit (1 << location) for each attribute the program uses.
+     */
+    public void setEnabledAttribs(int mask) {
+        if (mVertexArray != 0) {
+            throw new IllegalStateException("vertex array object " + mVertexArray + " bound");
+        }
+        int changed = mEnabledAttribs ^ mask;
+        for (int loc = 0; loc < 32; loc++) {
+            int bit = 1 << loc;
+            if ((changed & bit) != 0) {
+                if ((mask & bit) != 0) {
+                    GLES20.glEnableVertexAttribArray(loc);
+                } else {
+                    GLES20.glDisableVertexAttribArray(loc);
+                }
+                mIssued[KIND_ATTRIB]++;
+            } else if ((mask & bit) != 0) {
+                mSkipped[KIND_ATTRIB]++;
+            }
+        }
+        mEnabledAttribs = mask;
+    }
+
+    /**
+     * Returns the setEnabledAttribs() bit for an attribute location.
+     */
+    public static int attribBit(int location) {
+        if (location < 0 || location >= 32) {
+            throw new IllegalArgumentException("can't track attribute location " + location);
+        }
+        return 1 << location;
+    }
+
+    // The uniform calls apply to the program set with useProgram().
+
+    public void uniform1f(int location, float value) {
+        mScratch1[0] = value;
+        if (uniformChanged(location, mScratch1, 1)) {
+            GLES20.glUniform1f(location, value);
+        }
+    }
+
+    public void uniform1fv(int location, int count, float[] values) {
+        if (uniformChanged(location, values, count)) {
+            GLES20.glUniform1fv(location, count, values, 0);
+        }
+    }
+
+    public void uniform2fv(int location, int count, float[] values) {
+        if (uniformChanged(location, values, count * 2)) {
+            GLES20.glUniform2fv(location, count, values, 0);
+        }
+    }
+
+    public void uniform4fv(int location, int count, float[] values) {
+        if (uniformChanged(location, values, count * 4)) {
+            GLES20.glUniform4fv(location, count, values, 0);
+        }
+    }
+
+    public void uniformMatrix4fv(int location, int count, float[] values) {
+        if (uniformChanged(location, values, count * 16)) {
+            GLES20.glUniformMatrix4fv(location, count, false, values, 0);
+        }
+    }
+
+    /**
+     * Returns the number of calls of a kind that were made.
+     *
+     * @param kind One of the KIND_* constants.
+     */
+    public int getIssuedCount(int kind) {
+        return mIssued[kind];
+    }
+
+    /**
+     * Returns the number of calls of a kind that were skipped because they wouldn't have
+     * changed anything.
+     *
+     * @param kind One of the KIND_* constants.
+     */
+    public int getSkippedCount(int kind) {
+        return mSkipped[kind];
+    }
+
+    /**
+     * Zeroes the counters.
+     */
+    public void resetCounters() {
+        Arrays.fill(mIssued, 0);
+        Arrays.fill(mSkipped, 0);
+        mFrameCount = 0;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < KIND_COUNT; i++) {
+            if (i != 0) {
+                sb.append(", ");
+            }
+            sb.append(KIND_NAMES[i]).append(' ').append(mIssued[i]).append(" issued/")
+                    .append(mSkipped[i]).append(" skipped");
+        }
+        return sb.toString();
+    }
+
+    private void unbindIfBound(int unit, int targetIndex, int target) {
+        int texture = mTextures[targetIndex][unit];
+        if (texture != 0 && texture != UNKNOWN) {
+            GLES20.glActiveTexture(GLES20.GL_TEXTURE0 + unit);
+            GLES20.glBindTexture(target, 0);
+            mActiveUnit = unit;
+        }
+    }
+
+    /**
+     * Compares a uniform's new value with the last one uploaded to the current program, and
+     * remembers the new one.
+     *
+     * @return True if it needs to be uploaded.
+     */
+    private boolean uniformChanged(int location, float[] values, int length) {
+        if (mProgram == UNKNOWN) {
+            throw new IllegalStateException("uniform set without useProgram()");
+        }
+        ProgramUniforms uniforms = mUniforms.get(mProgram);
+        if (uniforms == null) {
+            uniforms = new ProgramUniforms();
+            mUniforms.put(mProgram, uniforms);
+        }
+        int index = 0;
+        while (index < uniforms.mCount && uniforms.mLocations[index] != location) {
+            index++;
+        }
+        if (index == uniforms.mCount) {
+            if (index == uniforms.mLocations.length) {
+                uniforms.mLocations = Arrays.copyOf(uniforms.mLocations, index * 2);
+                uniforms.mValues = Arrays.copyOf(uniforms.mValues, index * 2);
+            }
+            uniforms.mLocations[index] = location;
+            uniforms.mCount++;
+        }
+
+        float[] last = uniforms.mValues[index];
+        if (last != null && last.length == length && rangeEquals(last, values, length)) {
+            mSkipped[KIND_UNIFORM]++;
+            return false;
+        }
+        if (last == null || last.length != length) {
+            last = new float[length];
+            uniforms.mValues[index] = last;
+        }
+        System.arraycopy(values, 0, last, 0, length);
+        mIssued[KIND_UNIFORM]++;
+        return true;
+    }
+
+    private static boolean rangeEquals(float[] a, float[] b, int length) {
+        for (int i = 0; i < length; i++) {
+            // Compare bits, so NaN doesn't make us upload every time.
+            if (Float.floatToRawIntBits(a[i]) != Float.floatToRawIntBits(b[i])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int targetIndex(int target) {
+        if (target == GLES20.GL_TEXTURE_2D) {
+            return TARGET_2D;
+        } else if (target == GLES11Ext.GL_TEXTURE_EXTERNAL_OES) {
+            return TARGET_EXTERNAL;
+        }
+        throw new IllegalArgumentException("untracked texture target 0x" +
+                Integer.toHexString(target));
+    }
+}
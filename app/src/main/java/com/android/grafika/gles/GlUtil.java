@@ -49,6 +49,18 @@ public class GlUtil {
      * @return A handle to the program, or 0 on failure.
      */
     public static int createProgram(String vertexSource, String fragmentSource) {
+        return createProgram(vertexSource, fragmentSource, false);
+    }
+
+    /**
+     * Creates a new program from the supplied vertex and fragment shaders.
+     *
+     * @param retrievableBinary Tell the driver we'll want the program binary afterward.
+     *     Requires a GLES 3 context.
+     * @return A handle to the program, or 0 on failure.
+     */
+    public static int createProgram(String vertexSource, String fragmentSource,
+            boolean retrievableBinary) {
         int vertexShader = loadShader(GLES20.GL_VERTEX_SHADER, vertexSource);
         if (vertexShader == 0) {
             return 0;
@@ -67,6 +79,10 @@ public class GlUtil {
         checkGlError("glAttachShader");
         GLES20.glAttachShader(program, pixelShader);
         checkGlError("glAttachShader");
+        if (retrievableBinary) {
+            GLES30.glProgramParameteri(program, GLES30.GL_PROGRAM_BINARY_RETRIEVABLE_HINT,
+                    GLES20.GL_TRUE);
+        }
         GLES20.glLinkProgram(program);
         int[] linkStatus = new int[1];
         GLES20.glGetProgramiv(program, GLES20.GL_LINK_STATUS, linkStatus, 0);
@@ -173,6 +189,53 @@ public class GlUtil {
         return fb;
     }
 
+    /**
+     * Returns true if the current context is GLES 3 or later.
+     */
+    public static boolean isGles3() {
+        String version = GLES20.glGetString(GLES20.GL_VERSION);
+        return version != null && !version.startsWith("OpenGL ES 2");
+    }
+
+    /**
+     * Inserts a fence into the current context's command stream, so that another context in
+     * the same share group can wait for the commands issued so far.  Needs GLES 3.
+     * <p>
+     * The commands are flushed, so a wait on the other context can't block forever.
+     */
+    public static long createFence() {
+        long fence = GLES30.glFenceSync(GLES30.GL_SYNC_GPU_COMMANDS_COMPLETE, 0);
+        checkGlError("glFenceSync");
+        GLES20.glFlush();
+        return fence;
+    }
+
+    /**
+     * Makes the current context wait for a fence from createFence(), then deletes the fence.
+     * The wait happens on the GPU; the calling thread doesn't block.
+     * <p>
+     * A fence from a share group that has since gone away (e.g. the other context was torn
+     * down and recreated) is ignored.
+     */
+    public static void waitFence(long fence) {
+        if (!GLES30.glIsSync(fence)) {
+            Log.w(TAG, "ignoring stale fence");
+            return;
+        }
+        GLES30.glWaitSync(fence, 0, GLES30.GL_TIMEOUT_IGNORED);
+        GLES30.glDeleteSync(fence);
+        checkGlError("glWaitSync");
+    }
+
+    /**
+     * Deletes a fence from createFence() that nobody is going to wait for.
+     */
+    public static void deleteFence(long fence) {
+        if (GLES30.glIsSync(fence)) {
+            GLES30.glDeleteSync(fence);
+        }
+    }
+
     /**
      * Writes GL version info to the log.
      */
@@ -0,0 +1,376 @@
+/*
+ * Copyright 2026 The CombineCameras Authors. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.grafika.gles;
+
+import android.content.Context;
+import android.opengl.EGL14;
+import android.opengl.EGLContext;
+import android.opengl.GLES20;
+import android.opengl.GLES30;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Keeps linked GL programs around, so switching filters or restarting a recording doesn't
+ * recompile shaders.
+ * <p>
+ * Programs are kept per EGL context, keyed by a name (e.g. the program type) and a SHA-256
+ * digest of the shader source.  A program that's released goes back into the cache rather than being deleted;
+ * everything goes when the context does (see releaseContext()).
+ * <p>
+ * Contexts don't use each other's program objects, even when they share, because uniforms
+ * are program state and two threads drawing with one program would trample each other's.
+ * Instead, on GLES 3 we save the program binary after linking, and other contexts load it
+ * with glProgramBinary(), which skips the compiler.  The binaries are also written to the
+ * app's cache directory, tagged with the GL renderer and version, so the next run of the
+ * app skips it too.  The files are written one at a time on a background thread.  If the driver rejects a binary (e.g. after a driver update) we fall
+ * back to compiling.
+ * <p>
+ * Call initialize() early, e.g. from Activity#onCreate(), to enable the files.  May be used
+ * from any thread that has a current EGL context.
+ */
+public class ProgramCache {
+    private static final String TAG = GlUtil.TAG;
+
+    private static final String DIR_NAME = "gl-programs";
+    private static final int MAGIC = 0x47505243;    // "GPRC"
+    private static final int VERSION = 2;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    // Housekeeping.
+    private static final Object sLock = new Object();
+    private static ProgramCache sInstance = null;
+
+    /**
+     * A program binary, as returned by glGetProgramBinary().  Immutable.
+     */
+    private static class Binary {
+        final String mDriver;
+        final int mFormat;
+        final byte[] mData;
+
+        Binary(String driver, int format, byte[] data) {
+            mDriver = driver;
+            mFormat = format;
+            mData = data;
+        }
+    }
+
+    /**
+     * Programs linked in one context.
+     */
+    private static class ContextPrograms {
+        final Map<String, Integer> mPrograms = new HashMap<String, Integer>();
+        final boolean mHasBinaries;     // GLES 3 or later
+        final String mDriver;
+
+        ContextPrograms(boolean hasBinaries, String driver) {
+            mHasBinaries = hasBinaries;
+            mDriver = driver;
+        }
+    }
+
+    // ----- guarded by "this" -----
+    private File mDir;
+    private final Map<EGLContext, ContextPrograms> mContexts =
+            new HashMap<EGLContext, ContextPrograms>();
+    private final Map<String, Binary> mBinaries = new HashMap<String, Binary>();
+    private Handler mWriterHandler;     // created on first write
+
+    private ProgramCache() {}
+
+    /**
+     * Returns the singleton.
+     */
+    public static ProgramCache getInstance() {
+        synchronized (sLock) {
+            if (sInstance == null) {
+                sInstance = new ProgramCache();
+            }
+            return sInstance;
+        }
+    }
+
+    /**
+     * Enables saving program binaries in the app's cache directory.
+     */
+    public static void initialize(Context context) {
+        File dir = new File(context.getCacheDir(), DIR_NAME);
+        ProgramCache cache = getInstance();
+        synchronized (cache) {
+            cache.mDir = dir;
+        }
+    }
+
+    /**
+     * Returns a linked program for the shaders, in the current context.  Don't delete it;
+     * the cache owns it.
+     *
+     * @param name Identifies the program, e.g. its type and variant.  The shader source is
+     *     added to this, so a changed shader won't pick up a stale binary.
+     * @return The program handle, or 0 if it couldn't be built.
+     */
+    public synchronized int acquire(String name, String vertexSource, String fragmentSource) {
+        String key = name + "-" + digest(vertexSource, fragmentSource);
+        ContextPrograms programs = getCurrentContextPrograms();
+        Integer cached = programs.mPrograms.get(key);
+        if (cached != null) {
+            return cached;
+        }
+
+        int program = 0;
+        if (programs.mHasBinaries) {
+            program = loadBinary(key, programs.mDriver);
+        }
+        if (program == 0) {
+            program = GlUtil.createProgram(vertexSource, fragmentSource,
+                    programs.mHasBinaries);
+            if (program == 0) {
+                return 0;
+            }
+            if (programs.mHasBinaries) {
+                saveBinary(key, programs.mDriver, program);
+            }
+        }
+        programs.mPrograms.put(key, program);
+        return program;
+    }
+
+    /**
+     * Forgets the programs made in a context.  If the context is current, they're deleted;
+     * otherwise they go away with the context.  Call before destroying a context.
+     */
+    public synchronized void releaseContext(EGLContext context) {
+        boolean current = context.equals(EGL14.eglGetCurrentContext());
+        if (current) {
+            // A new context on this thread may reuse the program handles.
+            GlState.get().reset();
+        }
+        ContextPrograms programs = mContexts.remove(context);
+        if (programs == null) {
+            return;
+        }
+        if (current) {
+            for (int program : programs.mPrograms.values()) {
+                GLES20.glDeleteProgram(program);
+            }
+        }
+        Log.d(TAG, "released " + programs.mPrograms.size() + " cached programs");
+    }
+
+    /**
+     * Returns the SHA-256 digest of the shader source, in hex.
+     */
+    private static String digest(String vertexSource, String fragmentSource) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException nsae) {
+            throw new RuntimeException(nsae);       // every Android device has SHA-256
+        }
+        digest.update(vertexSource.getBytes(UTF8));
+        digest.update((byte) 0);
+        digest.update(fragmentSource.getBytes(UTF8));
+        StringBuilder sb = new StringBuilder();
+        for (byte b : digest.digest()) {
+            sb.append(Character.forDigit((b >> 4) & 0xf, 16));
+            sb.append(Character.forDigit(b & 0xf, 16));
+        }
+        return sb.toString();
+    }
+
+    private ContextPrograms getCurrentContextPrograms() {
+        EGLContext context = EGL14.eglGetCurrentContext();
+        if (context.equals(EGL14.EGL_NO_CONTEXT)) {
+            throw new RuntimeException("no current EGL context");
+        }
+        ContextPrograms programs = mContexts.get(context);
+        if (programs == null) {
+            programs = new ContextPrograms(GlUtil.isGles3(),
+                    GLES20.glGetString(GLES20.GL_RENDERER) + "/" +
+                    GLES20.glGetString(GLES20.GL_VERSION));
+            mContexts.put(context, programs);
+        }
+        return programs;
+    }
+
+    /**
+     * Creates a program from a saved binary, if we have one the driver accepts.
+     *
+     * @return The program handle, or 0.
+     */
+    private int loadBinary(String key, String driver) {
+        Binary binary = mBinaries.get(key);
+        if (binary == null) {
+            binary = readBinary(key);
+            if (binary == null) {
+                return 0;
+            }
+            mBinaries.put(key, binary);
+        }
+        if (!binary.mDriver.equals(driver)) {
+            return 0;
+        }
+
+        ByteBuffer buf = ByteBuffer.allocateDirect(binary.mData.length)
+                .order(ByteOrder.nativeOrder());
+        buf.put(binary.mData);
+        buf.position(0);
+        int program = GLES20.glCreateProgram();
+        GLES30.glProgramBinary(program, binary.mFormat, buf, binary.mData.length);
+        int[] status = new int[1];
+        GLES20.glGetProgramiv(program, GLES20.GL_LINK_STATUS, status, 0);
+        // Clear any error from a bad binary, so it isn't blamed on the next GL call.
+        GLES20.glGetError();
+        if (status[0] != GLES20.GL_TRUE) {
+            Log.w(TAG, "program binary for " + key + " rejected, recompiling");
+            GLES20.glDeleteProgram(program);
+            mBinaries.remove(key);
+            return 0;
+        }
+        Log.d(TAG, "loaded program " + key + " from binary");
+        return program;
+    }
+
+    /**
+     * Gets the linked program's binary, and writes it out in the background.
+     */
+    private void saveBinary(final String key, String driver, int program) {
+        int[] values = new int[1];
+        GLES20.glGetProgramiv(program, GLES30.GL_PROGRAM_BINARY_LENGTH, values, 0);
+        int length = values[0];
+        if (length <= 0) {
+            GLES20.glGetError();
+            return;
+        }
+        ByteBuffer buf = ByteBuffer.allocateDirect(length).order(ByteOrder.nativeOrder());
+        int[] format = new int[1];
+        GLES30.glGetProgramBinary(program, length, values, 0, format, 0, buf);
+        if (GLES20.glGetError() != GLES20.GL_NO_ERROR) {
+            Log.w(TAG, "unable to get program binary for " + key);
+            return;
+        }
+        byte[] data = new byte[values[0]];
+        buf.get(data);
+        final Binary binary = new Binary(driver, format[0], data);
+        mBinaries.put(key, binary);
+
+        final File dir = mDir;
+        if (dir == null) {
+            return;
+        }
+        if (mWriterHandler == null) {
+            HandlerThread writerThread = new HandlerThread("ProgramCache writer");
+            writerThread.start();
+            mWriterHandler = new Handler(writerThread.getLooper());
+        }
+        mWriterHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                writeBinary(dir, key, binary);
+            }
+        });
+    }
+
+    private Binary readBinary(String key) {
+        if (mDir == null) {
+            return null;
+        }
+        File file = new File(mDir, key + ".bin");
+        if (!file.exists()) {
+            return null;
+        }
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                Log.d(TAG, "ignoring stale program binary " + file);
+                return null;
+            }
+            String driver = in.readUTF();
+            int format = in.readInt();
+            byte[] data = new byte[in.readInt()];
+            in.readFully(data);
+            return new Binary(driver, format, data);
+        } catch (IOException ioe) {
+            Log.w(TAG, "unable to read program binary " + file, ioe);
+            return null;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException ioe) {
+                    // ignore
+                }
+            }
+        }
+    }
+
+    private static void writeBinary(File dir, String key, Binary binary) {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            Log.w(TAG, "unable to create " + dir);
+            return;
+        }
+        // Write to a temporary file and rename, so a reader never sees a partial file.
+        File file = new File(dir, key + ".bin");
+        File tmpFile = new File(dir, key + ".tmp");
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeUTF(binary.mDriver);
+            out.writeInt(binary.mFormat);
+            out.writeInt(binary.mData.length);
+            out.write(binary.mData);
+            out.close();
+            out = null;
+            if (!tmpFile.renameTo(file)) {
+                throw new IOException("rename failed");
+            }
+            Log.d(TAG, "saved program binary " + file + " (" + binary.mData.length + " bytes)");
+        } catch (IOException ioe) {
+            Log.w(TAG, "unable to write program binary " + file, ioe);
+            tmpFile.delete();
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException ioe) {
+                    // ignore
+                }
+            }
+        }
+    }
+}
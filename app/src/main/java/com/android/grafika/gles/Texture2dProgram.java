@@ -32,16 +32,6 @@ public class Texture2dProgram {
         TEXTURE_2D, TEXTURE_EXT, TEXTURE_EXT_BW, TEXTURE_EXT_FILT
     }
 
-//    private static final String VERTEX_SHADER_REPLACE =
-//            "attribute vec4 vPosition;" +
-//            "attribute vec2 inputTextureCoordinate;" +
-//            "varying vec2 textureCoordinate;" +
-//            "void main()" +
-//            "{" +
-//            "gl_Position = vPosition;" +
-//            "textureCoordinate = inputTextureCoordinate;" +
-//            "}";
-
     // Simple vertex shader, used for all programs.
     private static final String VERTEX_SHADER =
             "uniform mat4 uMVPMatrix;\n" +
@@ -54,26 +44,6 @@ public class Texture2dProgram {
             "    vTextureCoord = (uTexMatrix * aTextureCoord).xy;\n" +
             "}\n";
 
-    // sTexture - текстура задней камеры
-    // sTexture2 - текстура передней камеры
-    private static final String FRAGMENT_SHADER_REPLACE =
-            "#extension GL_OES_EGL_image_external : require\n" +
-            "precision mediump float;" +
-            "varying vec2 vTextureCoord;\n" +
-            "uniform samplerExternalOES sTexture;\n" +
-            "uniform samplerExternalOES sTexture2;\n" +
-            "void main()" +
-            "{" +
-            "if (vTextureCoord.x < 0.5 && vTextureCoord.y > 0.5) {" +
-            "gl_FragColor = texture2D(sTexture2, vTextureCoord);" +
-//            "vec4 tc = texture2D(sTexture2, vTextureCoord);\n" +
-//            "float color = tc.r * 0.7 + tc.g * 0.7 + tc.b * 0.11;\n" +
-//            "gl_FragColor = vec4(color, color, color, 1.0);\n" +
-            "} else {" +
-            "gl_FragColor = texture2D(sTexture, vTextureCoord);" +
-            "}" +
-            "}";
-
     // Simple fragment shader for use with "normal" 2D textures.
     private static final String FRAGMENT_SHADER_2D =
             "precision mediump float;\n" +
@@ -154,6 +124,7 @@ public class Texture2dProgram {
     private int muColorAdjustLoc;
     private int maPositionLoc;
     private int maTextureCoordLoc;
+    private int mAttribMask;
 
     private int mTextureTarget;
 
@@ -168,31 +139,35 @@ public class Texture2dProgram {
     public Texture2dProgram(ProgramType programType) {
         mProgramType = programType;
 
+        String fragmentShader;
         switch (programType) {
             case TEXTURE_2D:
                 mTextureTarget = GLES20.GL_TEXTURE_2D;
-                mProgramHandle = GlUtil.createProgram(VERTEX_SHADER, FRAGMENT_SHADER_2D);
+                fragmentShader = FRAGMENT_SHADER_2D;
                 break;
             case TEXTURE_EXT:
                 mTextureTarget = GLES11Ext.GL_TEXTURE_EXTERNAL_OES;
-//                mProgramHandle = GlUtil.createProgram(VERTEX_SHADER, FRAGMENT_SHADER_EXT);
-                mProgramHandle = GlUtil.createProgram(VERTEX_SHADER, FRAGMENT_SHADER_REPLACE);
+                fragmentShader = FRAGMENT_SHADER_EXT;
                 break;
             case TEXTURE_EXT_BW:
                 mTextureTarget = GLES11Ext.GL_TEXTURE_EXTERNAL_OES;
-                mProgramHandle = GlUtil.createProgram(VERTEX_SHADER, FRAGMENT_SHADER_EXT_BW);
+                fragmentShader = FRAGMENT_SHADER_EXT_BW;
                 break;
             case TEXTURE_EXT_FILT:
                 mTextureTarget = GLES11Ext.GL_TEXTURE_EXTERNAL_OES;
-                mProgramHandle = GlUtil.createProgram(VERTEX_SHADER, FRAGMENT_SHADER_EXT_FILT);
+                fragmentShader = FRAGMENT_SHADER_EXT_FILT;
                 break;
             default:
                 throw new RuntimeException("Unhandled type " + programType);
         }
+        // Programs are shared through the cache, so switching back and forth between
+        // filters doesn't recompile anything.
+        mProgramHandle = ProgramCache.getInstance().acquire(programType.name(), VERTEX_SHADER,
+                fragmentShader);
         if (mProgramHandle == 0) {
             throw new RuntimeException("Unable to create program");
         }
-        Log.d(TAG, "Created program " + mProgramHandle + " (" + programType + ")");
+        Log.d(TAG, "Using program " + mProgramHandle + " (" + programType + ")");
 
         // get locations of attributes and uniforms
 
@@ -205,6 +180,7 @@ public class Texture2dProgram {
 
         muTexMatrixLoc = GLES20.glGetUniformLocation(mProgramHandle, "uTexMatrix");
         GlUtil.checkLocation(muTexMatrixLoc, "uTexMatrix");
+        mAttribMask = GlState.attribBit(maPositionLoc) | GlState.attribBit(maTextureCoordLoc);
 
         muKernelLoc = GLES20.glGetUniformLocation(mProgramHandle, "uKernel");
         if (muKernelLoc < 0) {
@@ -226,14 +202,11 @@ public class Texture2dProgram {
     }
 
     /**
-     * Releases the program.
-     * <p>
-     * The appropriate EGL context must be current (i.e. the one that was used to create
-     * the program).
+     * Releases the program.  The GL program itself stays in the ProgramCache until the
+     * context is released, ready for the next Texture2dProgram of the same type.
      */
     public void release() {
-        Log.d(TAG, "deleting program " + mProgramHandle);
-        GLES20.glDeleteProgram(mProgramHandle);
+        Log.d(TAG, "releasing program " + mProgramHandle);
         mProgramHandle = -1;
     }
 
@@ -257,6 +230,7 @@ public class Texture2dProgram {
         int texId = textures[0];
         GLES20.glBindTexture(mTextureTarget, texId);
         GlUtil.checkGlError("glBindTexture " + texId);
+        GlState.get().invalidate();
 
         GLES20.glTexParameterf(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, GLES20.GL_TEXTURE_MIN_FILTER,
                 GLES20.GL_NEAREST);
@@ -303,7 +277,7 @@ public class Texture2dProgram {
     }
 
     /**
-     * Issues the draw call.  Does the full setup on every call.
+     * Issues the draw call.  State that's already set, per GlState, isn't set again.
      *
      * @param mvpMatrix       The 4x4 projection matrix.
      * @param vertexBuffer    Buffer with vertex position data.
@@ -316,68 +290,82 @@ public class Texture2dProgram {
      *                        for use with SurfaceTexture.)
      * @param texBuffer       Buffer with vertex texture data.
      * @param texStride       Width, in bytes, of the texture data for each vertex.
-     * @param textureId2
      */
-
-    // СЮДА ВЕРНУТЬСЯ
     public void draw(float[] mvpMatrix, FloatBuffer vertexBuffer, int firstVertex,
                      int vertexCount, int coordsPerVertex, int vertexStride,
-                     float[] texMatrix, FloatBuffer texBuffer, int textureId, int texStride, int textureId2) {
-        GlUtil.checkGlError("draw start");
-
-        // Select the program.
-        GLES20.glUseProgram(mProgramHandle);
-        GlUtil.checkGlError("glUseProgram");
-
-        // Set the texture.
-        GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
-        GLES20.glBindTexture(mTextureTarget, textureId);
-
-        // ?
-        GLES20.glActiveTexture(GLES20.GL_TEXTURE1);
-        GLES20.glBindTexture(mTextureTarget, textureId2);
+                     float[] texMatrix, FloatBuffer texBuffer, int textureId, int texStride) {
+        GlState state = setUp(mvpMatrix, texMatrix, textureId);
 
-        // Copy the model / view / projection matrix over.
-        GLES20.glUniformMatrix4fv(muMVPMatrixLoc, 1, false, mvpMatrix, 0);
-        GlUtil.checkGlError("glUniformMatrix4fv");
-
-        // Copy the texture transformation matrix over.
-        GLES20.glUniformMatrix4fv(muTexMatrixLoc, 1, false, texMatrix, 0);
-        GlUtil.checkGlError("glUniformMatrix4fv");
+        // Client-side arrays only work with no buffer bound.
+        state.bindVertexArray(0);
+        state.bindArrayBuffer(0);
 
-        // Enable the "aPosition" vertex attribute.
-        GLES20.glEnableVertexAttribArray(maPositionLoc);
-        GlUtil.checkGlError("glEnableVertexAttribArray");
+        // Enable the "aPosition" and "aTextureCoord" vertex attributes.
+        state.setEnabledAttribs(mAttribMask);
+        GlState.checkGlError("glEnableVertexAttribArray");
 
         // Connect vertexBuffer to "aPosition".
         GLES20.glVertexAttribPointer(maPositionLoc, coordsPerVertex,
                 GLES20.GL_FLOAT, false, vertexStride, vertexBuffer);
-        GlUtil.checkGlError("glVertexAttribPointer");
-
-        // Enable the "aTextureCoord" vertex attribute.
-        GLES20.glEnableVertexAttribArray(maTextureCoordLoc);
-        GlUtil.checkGlError("glEnableVertexAttribArray");
+        GlState.checkGlError("glVertexAttribPointer");
 
         // Connect texBuffer to "aTextureCoord".
         GLES20.glVertexAttribPointer(maTextureCoordLoc, 2,
                 GLES20.GL_FLOAT, false, texStride, texBuffer);
-        GlUtil.checkGlError("glVertexAttribPointer");
+        GlState.checkGlError("glVertexAttribPointer");
+
+        // Draw the rect.  The bindings are left in place for the next draw; GlState
+        // undoes them at the end of the frame.
+        GLES20.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, firstVertex, vertexCount);
+        GlState.checkGlError("glDrawArrays");
+    }
+
+    /**
+     * Issues the draw call for a drawable, using its GL buffer for the vertex data rather
+     * than passing the arrays in.
+     *
+     * @param mvpMatrix The 4x4 projection matrix.
+     * @param texMatrix A 4x4 transformation matrix for texture coords.
+     */
+    public void draw(float[] mvpMatrix, Drawable2d drawable, float[] texMatrix,
+            int textureId) {
+        setUp(mvpMatrix, texMatrix, textureId);
+
+        drawable.bind(maPositionLoc, maTextureCoordLoc);
+        GlState.checkGlError("bind vertex data");
+
+        GLES20.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, 0, drawable.getVertexCount());
+        GlState.checkGlError("glDrawArrays");
+    }
+
+    /**
+     * Selects the program, and sets the texture and uniforms.
+     */
+    private GlState setUp(float[] mvpMatrix, float[] texMatrix, int textureId) {
+        GlState state = GlState.get();
+        GlState.checkGlError("draw start");
+
+        // Select the program.
+        state.useProgram(mProgramHandle);
+        GlState.checkGlError("glUseProgram");
+
+        // Set the texture.
+        state.bindTexture(0, mTextureTarget, textureId);
+
+        // Copy the model / view / projection matrix over.
+        state.uniformMatrix4fv(muMVPMatrixLoc, 1, mvpMatrix);
+        GlState.checkGlError("glUniformMatrix4fv");
+
+        // Copy the texture transformation matrix over.
+        state.uniformMatrix4fv(muTexMatrixLoc, 1, texMatrix);
+        GlState.checkGlError("glUniformMatrix4fv");
 
         // Populate the convolution kernel, if present.
         if (muKernelLoc >= 0) {
-            GLES20.glUniform1fv(muKernelLoc, KERNEL_SIZE, mKernel, 0);
-            GLES20.glUniform2fv(muTexOffsetLoc, KERNEL_SIZE, mTexOffset, 0);
-            GLES20.glUniform1f(muColorAdjustLoc, mColorAdjust);
+            state.uniform1fv(muKernelLoc, KERNEL_SIZE, mKernel);
+            state.uniform2fv(muTexOffsetLoc, KERNEL_SIZE, mTexOffset);
+            state.uniform1f(muColorAdjustLoc, mColorAdjust);
         }
-
-        // Draw the rect.
-        GLES20.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, firstVertex, vertexCount);
-        GlUtil.checkGlError("glDrawArrays");
-
-        // Done -- disable vertex array, texture, and program.
-        GLES20.glDisableVertexAttribArray(maPositionLoc);
-        GLES20.glDisableVertexAttribArray(maTextureCoordLoc);
-        GLES20.glBindTexture(mTextureTarget, 0);
-        GLES20.glUseProgram(0);
+        return state;
     }
 }
@@ -0,0 +1,234 @@
+/*
+ * Copyright 2026 The CombineCameras Authors. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.grafika;
+
+import android.media.MediaCodec;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Drives AsyncEncoderEngine with a fake codec, the way MediaCodec's callbacks would.
+ */
+public class AsyncEncoderEngineTest {
+    private static final String FORMAT = "video/avc 64x64";
+
+    /**
+     * Stands in for a MediaCodec.  Tests push output through the listener directly, or from
+     * a separate thread once end of input is signaled.
+     */
+    private static class FakeCodec implements EncoderCodec<String> {
+        EncoderCodec.Listener<String> listener;
+        boolean started;
+        final List<Integer> released = new ArrayList<Integer>();
+        volatile boolean endOfInput;
+        Thread outputThread;
+
+        @Override
+        public void setListener(EncoderCodec.Listener<String> listener) {
+            this.listener = listener;
+        }
+
+        @Override
+        public void start() {
+            if (listener == null) {
+                throw new IllegalStateException("no listener");
+            }
+            started = true;
+        }
+
+        @Override
+        public synchronized void releaseOutputBuffer(int index) {
+            released.add(index);
+        }
+
+        @Override
+        public void signalEndOfInputStream() {
+            endOfInput = true;
+            // Like the real thing, the final buffer arrives on the codec's own thread.
+            outputThread = new Thread("fake codec output") {
+                @Override
+                public void run() {
+                    deliver(99, new byte[0], MediaCodec.BUFFER_FLAG_END_OF_STREAM, 0);
+                }
+            };
+            outputThread.start();
+        }
+
+        @Override
+        public void stop() {
+        }
+
+        @Override
+        public void release() {
+        }
+
+        void deliver(int index, byte[] data, int flags, long ptsUsec) {
+            listener.onOutputBufferAvailable(index, ByteBuffer.wrap(data), flags, ptsUsec);
+        }
+
+        synchronized List<Integer> getReleased() {
+            return new ArrayList<Integer>(released);
+        }
+    }
+
+    /**
+     * Records everything the engine hands on.
+     */
+    private static class RecordingSink implements AsyncEncoderEngine.Sink<String> {
+        final List<String> events = new ArrayList<String>();
+
+        @Override
+        public synchronized void onFormat(String format) {
+            events.add("format " + format);
+        }
+
+        @Override
+        public synchronized void onPacket(ByteBuffer data, int flags, long ptsUsec) {
+            events.add("packet " + data.remaining() + " " + flags + " " + ptsUsec);
+        }
+
+        @Override
+        public synchronized void onEndOfStream() {
+            events.add("eos");
+        }
+
+        synchronized List<String> getEvents() {
+            return new ArrayList<String>(events);
+        }
+    }
+
+    @Test
+    public void startInstallsListenerAndStartsCodec() {
+        FakeCodec codec = new FakeCodec();
+        AsyncEncoderEngine<String> engine =
+                new AsyncEncoderEngine<String>(codec, new RecordingSink());
+        engine.start();
+        assertTrue(codec.started);
+        assertSame(engine, codec.listener);
+    }
+
+    @Test
+    public void forwardsFormatAndPacketsInOrder() {
+        FakeCodec codec = new FakeCodec();
+        RecordingSink sink = new RecordingSink();
+        new AsyncEncoderEngine<String>(codec, sink).start();
+
+        codec.listener.onOutputFormatChanged(FORMAT);
+        codec.deliver(0, new byte[100], MediaCodec.BUFFER_FLAG_SYNC_FRAME, 1000);
+        codec.deliver(1, new byte[40], 0, 2000);
+
+        List<String> events = sink.getEvents();
+        assertEquals(3, events.size());
+        assertEquals("format " + FORMAT, events.get(0));
+        assertEquals("packet 100 " + MediaCodec.BUFFER_FLAG_SYNC_FRAME + " 1000", events.get(1));
+        assertEquals("packet 40 0 2000", events.get(2));
+        assertEquals(2, codec.getReleased().size());
+    }
+
+    @Test
+    public void dropsConfigAndEmptyBuffersButReleasesThem() {
+        FakeCodec codec = new FakeCodec();
+        RecordingSink sink = new RecordingSink();
+        new AsyncEncoderEngine<String>(codec, sink).start();
+
+        codec.deliver(5, new byte[20], MediaCodec.BUFFER_FLAG_CODEC_CONFIG, 0);
+        codec.deliver(6, new byte[0], 0, 1000);
+        codec.deliver(7, new byte[30], 0, 2000);
+
+        assertEquals(1, sink.getEvents().size());
+        assertEquals("packet 30 0 2000", sink.getEvents().get(0));
+        List<Integer> released = codec.getReleased();
+        assertEquals(3, released.size());
+        assertEquals(Integer.valueOf(5), released.get(0));
+        assertEquals(Integer.valueOf(6), released.get(1));
+        assertEquals(Integer.valueOf(7), released.get(2));
+    }
+
+    @Test
+    public void releasesBufferWhenSinkThrows() {
+        FakeCodec codec = new FakeCodec();
+        AsyncEncoderEngine.Sink<String> sink = new RecordingSink() {
+            @Override
+            public void onPacket(ByteBuffer data, int flags, long ptsUsec) {
+                throw new RuntimeException("disk full");
+            }
+        };
+        new AsyncEncoderEngine<String>(codec, sink).start();
+
+        try {
+            codec.deliver(3, new byte[10], 0, 0);
+            fail("sink exception was swallowed");
+        } catch (RuntimeException expected) {
+        }
+        assertEquals(1, codec.getReleased().size());
+        assertEquals(Integer.valueOf(3), codec.getReleased().get(0));
+    }
+
+    @Test
+    public void awaitEndOfStreamReturnsOnceCodecDrains() throws InterruptedException {
+        FakeCodec codec = new FakeCodec();
+        RecordingSink sink = new RecordingSink();
+        AsyncEncoderEngine<String> engine = new AsyncEncoderEngine<String>(codec, sink);
+        engine.start();
+        codec.deliver(0, new byte[10], MediaCodec.BUFFER_FLAG_SYNC_FRAME, 0);
+
+        engine.signalEndOfStream();
+        assertTrue(codec.endOfInput);
+        assertTrue("timed out waiting for end of stream", engine.awaitEndOfStream(5000));
+        codec.outputThread.join();
+
+        List<String> events = sink.getEvents();
+        assertEquals("eos", events.get(events.size() - 1));
+        assertTrue(codec.getReleased().contains(99));
+    }
+
+    @Test
+    public void awaitEndOfStreamTimesOut() {
+        FakeCodec codec = new FakeCodec();
+        AsyncEncoderEngine<String> engine =
+                new AsyncEncoderEngine<String>(codec, new RecordingSink());
+        engine.start();
+        codec.deliver(0, new byte[10], MediaCodec.BUFFER_FLAG_SYNC_FRAME, 0);
+
+        long start = System.currentTimeMillis();
+        assertFalse(engine.awaitEndOfStream(50));
+        assertTrue(System.currentTimeMillis() - start >= 50);
+    }
+
+    @Test
+    public void codecErrorIsFatal() {
+        FakeCodec codec = new FakeCodec();
+        new AsyncEncoderEngine<String>(codec, new RecordingSink()).start();
+        IllegalStateException cause = new IllegalStateException("codec died");
+        try {
+            codec.listener.onError(cause);
+            fail("error was swallowed");
+        } catch (RuntimeException re) {
+            assertSame(cause, re.getCause());
+        }
+    }
+}
@@ -0,0 +1,289 @@
+/*
+ * Copyright 2026 The CombineCameras Authors. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.grafika;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs BitrateController against a simulated encoder.
+ */
+public class BitrateControllerTest {
+    private static final int TARGET = 1000000;
+    private static final int MIN = 250000;
+    private static final int MAX = 4000000;
+    private static final int FRAME_RATE = 30;
+    private static final long FRAME_USEC = 1000000 / FRAME_RATE;
+
+    /**
+     * An encoder whose output is off from its setting by a fixed factor, the way a real one
+     * over- or undershoots depending on the scene.
+     */
+    private static class SimulatedEncoder implements BitrateController.Encoder {
+        final List<Integer> settings = new ArrayList<Integer>();
+        int bitRate = TARGET;
+        float gain = 1.0f;
+        long ptsUsec;
+
+        @Override
+        public void setBitRate(int bitRate) {
+            settings.add(bitRate);
+            this.bitRate = bitRate;
+        }
+
+        /**
+         * Produces the given number of seconds of output, feeding each packet to the
+         * controller.
+         */
+        void run(BitrateController controller, int seconds) {
+            for (int i = 0; i < seconds * FRAME_RATE; i++) {
+                int size = (int) (bitRate * gain / 8 / FRAME_RATE);
+                controller.onPacket(size, ptsUsec);
+                ptsUsec += FRAME_USEC;
+            }
+        }
+    }
+
+    /**
+     * A control law that always asks for a fixed multiple of the current setting.
+     */
+    private static class ScaleLaw implements BitrateController.ControlLaw {
+        private final float mScale;
+
+        ScaleLaw(float scale) {
+            mScale = scale;
+        }
+
+        @Override
+        public int nextBitRate(int current, int target, int measured) {
+            return (int) (current * mScale);
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsTargetBelowMinimum() {
+        new BitrateController(100000, MIN, MAX, new SimulatedEncoder());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsTargetAboveMaximum() {
+        new BitrateController(5000000, MIN, MAX, new SimulatedEncoder());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsZeroMinimum() {
+        new BitrateController(TARGET, 0, MAX, new SimulatedEncoder());
+    }
+
+    @Test
+    public void measuresOutputRate() {
+        SimulatedEncoder encoder = new SimulatedEncoder();
+        BitrateController controller = new BitrateController(TARGET, MIN, MAX, encoder);
+        assertEquals(0, controller.getMeasuredBitRate());
+
+        encoder.run(controller, 2);
+        int measured = controller.getMeasuredBitRate();
+        assertTrue("measured " + measured, Math.abs(measured - TARGET) < TARGET / 100);
+
+        // Output on target, so nothing to change.
+        assertEquals(0, encoder.settings.size());
+        assertEquals(TARGET, controller.getBitRate());
+    }
+
+    @Test
+    public void convergesWhenEncoderOvershoots() {
+        SimulatedEncoder encoder = new SimulatedEncoder();
+        encoder.gain = 1.4f;
+        BitrateController controller = new BitrateController(TARGET, MIN, MAX, encoder);
+
+        encoder.run(controller, 60);
+
+        int measured = controller.getMeasuredBitRate();
+        assertTrue("measured " + measured, Math.abs(measured - TARGET) < TARGET / 10);
+        assertTrue("setting " + encoder.bitRate, encoder.bitRate < TARGET);
+        checkSteps(encoder.settings, TARGET, 0.25f);
+    }
+
+    @Test
+    public void convergesWhenEncoderUndershoots() {
+        SimulatedEncoder encoder = new SimulatedEncoder();
+        encoder.gain = 0.6f;
+        BitrateController controller = new BitrateController(TARGET, MIN, MAX, encoder);
+
+        encoder.run(controller, 60);
+
+        int measured = controller.getMeasuredBitRate();
+        assertTrue("measured " + measured, Math.abs(measured - TARGET) < TARGET / 10);
+        assertTrue("setting " + encoder.bitRate, encoder.bitRate > TARGET);
+        checkSteps(encoder.settings, TARGET, 0.25f);
+    }
+
+    @Test
+    public void clampsEachStep() {
+        SimulatedEncoder encoder = new SimulatedEncoder();
+        BitrateController controller = new BitrateController(TARGET, MIN, MAX, encoder);
+        controller.setControlLaw(new ScaleLaw(10.0f));
+        controller.setStepLimits(0.1f, 0.01f);
+
+        encoder.run(controller, 3);
+
+        assertTrue(encoder.settings.size() >= 2);
+        assertEquals(1100000, (int) encoder.settings.get(0));
+        checkSteps(encoder.settings, TARGET, 0.1f);
+    }
+
+    @Test
+    public void skipsChangesInsideDeadband() {
+        SimulatedEncoder encoder = new SimulatedEncoder();
+        BitrateController controller = new BitrateController(TARGET, MIN, MAX, encoder);
+        controller.setControlLaw(new ScaleLaw(1.04f));
+
+        encoder.run(controller, 10);
+        assertEquals(0, encoder.settings.size());
+
+        controller.setControlLaw(new ScaleLaw(1.06f));
+        encoder.run(controller, 2);
+        assertTrue(encoder.settings.size() > 0);
+    }
+
+    @Test
+    public void staysWithinBounds() {
+        SimulatedEncoder encoder = new SimulatedEncoder();
+        BitrateController controller = new BitrateController(TARGET, MIN, MAX, encoder);
+        controller.setControlLaw(new ScaleLaw(0.0f));
+
+        // Steps down by at most 25% at a time, and lands exactly on the minimum even when
+        // the last step is smaller than the deadband.
+        encoder.run(controller, 20);
+        assertEquals(MIN, controller.getBitRate());
+        assertEquals(MIN, (int) encoder.settings.get(encoder.settings.size() - 1));
+        for (int setting : encoder.settings) {
+            assertTrue("below minimum: " + setting, setting >= MIN);
+        }
+
+        encoder.settings.clear();
+        controller.setControlLaw(new ScaleLaw(100.0f));
+        encoder.run(controller, 20);
+        assertEquals(MAX, controller.getBitRate());
+        for (int setting : encoder.settings) {
+            assertTrue("above maximum: " + setting, setting <= MAX);
+        }
+    }
+
+    @Test
+    public void shortSpanLowersTarget() {
+        BitrateController controller =
+                new BitrateController(TARGET, MIN, MAX, new SimulatedEncoder());
+        assertEquals(TARGET, controller.computeEffectiveTarget());
+
+        controller.setSpanRatio(0.5f);
+        assertEquals(TARGET / 2, controller.computeEffectiveTarget());
+
+        // A span ratio above one never raises the target.
+        controller.setSpanRatio(1.5f);
+        assertEquals(TARGET, controller.computeEffectiveTarget());
+
+        controller.setSpanRatio(0.1f);
+        assertEquals(MIN, controller.computeEffectiveTarget());
+    }
+
+    @Test
+    public void slowStorageLowersTarget() {
+        BitrateController controller =
+                new BitrateController(TARGET, MIN, MAX, new SimulatedEncoder());
+
+        controller.setWriteShare(0.5f);
+
+        // 100 KB/s, of which we may use half, is 400 kbps.
+        controller.onWriteThroughput(100000);
+        assertEquals(400000, controller.computeEffectiveTarget());
+
+        // Fast storage leaves the target alone.
+        controller.onWriteThroughput(10000000);
+        assertEquals(TARGET, controller.computeEffectiveTarget());
+    }
+
+    @Test
+    public void smoothsWriteThroughput() {
+        BitrateController controller =
+                new BitrateController(TARGET, MIN, MAX, new SimulatedEncoder());
+        controller.setWriteThroughputFilter(0.25f, 60000000);
+
+        // 100 KB/s is 800 kbps.  One report of half that only moves it a quarter of the way.
+        controller.onWriteThroughput(100000);
+        assertEquals(800000, controller.computeEffectiveTarget());
+        controller.onWriteThroughput(50000);
+        assertEquals(700000, controller.computeEffectiveTarget());
+
+        // Zero means nothing was measured, and is ignored.
+        controller.onWriteThroughput(0);
+        assertEquals(700000, controller.computeEffectiveTarget());
+    }
+
+    @Test
+    public void writeThroughputExpires() {
+        SimulatedEncoder encoder = new SimulatedEncoder();
+        BitrateController controller = new BitrateController(TARGET, MIN, MAX, encoder);
+        controller.setWriteThroughputFilter(0.25f, 10000000);
+
+        controller.onWriteThroughput(50000);
+        assertEquals(400000, controller.computeEffectiveTarget());
+        encoder.run(controller, 5);
+        assertEquals(400000, controller.computeEffectiveTarget());
+
+        // A new report restarts the clock.
+        controller.onWriteThroughput(50000);
+        encoder.run(controller, 8);
+        assertEquals(400000, controller.computeEffectiveTarget());
+
+        // Then with no more reports it's forgotten, and the rate recovers.
+        encoder.run(controller, 4);
+        assertEquals(TARGET, controller.computeEffectiveTarget());
+        encoder.run(controller, 30);
+        int measured = controller.getMeasuredBitRate();
+        assertTrue("measured " + measured, Math.abs(measured - TARGET) < TARGET / 10);
+    }
+
+    @Test
+    public void tracksLoweredTarget() {
+        SimulatedEncoder encoder = new SimulatedEncoder();
+        BitrateController controller = new BitrateController(TARGET, MIN, MAX, encoder);
+        controller.setSpanRatio(0.5f);
+
+        encoder.run(controller, 60);
+
+        int measured = controller.getMeasuredBitRate();
+        assertTrue("measured " + measured, Math.abs(measured - TARGET / 2) < TARGET / 20);
+    }
+
+    /**
+     * Checks that no setting differs from the one before it by more than maxStep.
+     */
+    private static void checkSteps(List<Integer> settings, int initial, float maxStep) {
+        int prev = initial;
+        for (int setting : settings) {
+            assertTrue("step " + prev + " -> " + setting,
+                    Math.abs(setting - prev) <= prev * maxStep + 1);
+            prev = setting;
+        }
+    }
+}
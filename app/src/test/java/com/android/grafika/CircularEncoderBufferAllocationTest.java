@@ -0,0 +1,139 @@
+/*
+ * Copyright 2026 The CombineCameras Authors. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.grafika;
+
+import android.media.MediaCodec;
+
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Runs the save path of CircularEncoderBuffer on the JVM, and checks that once it has
+ * warmed up it doesn't allocate, even when packets wrap around the end of the buffer.
+ * <p>
+ * Allocation is measured with the HotSpot per-thread allocation counter, so the test is
+ * skipped on VMs that don't provide one.
+ */
+public class CircularEncoderBufferAllocationTest {
+    private static final int BIT_RATE = 80000;      // 10000 bytes/sec
+    private static final int FRAME_RATE = 10;
+    private static final int SPAN_SEC = 2;
+    private static final int GOP_LEN = 10;
+    private static final int MAX_PACKET = 1300;
+
+    private static final int WARMUP_ROUNDS = 2000;
+    private static final int MEASURED_ROUNDS = 2000;
+    private static final int MEASURED_PASSES = 5;
+
+    // Reused across rounds, so the test harness itself doesn't allocate.
+    private final ByteBuffer mPacket = ByteBuffer.allocateDirect(MAX_PACKET);
+    private final MediaCodec.BufferInfo mInfo = new MediaCodec.BufferInfo();
+    private long mPtsUsec;
+    private int mFrameNum;
+    private long mChecksum;         // reads the data, so the reads can't be optimized out
+    private int mWrapped;
+
+    @Test
+    public void saveLoopDoesNotAllocate() {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean allocBean = (com.sun.management.ThreadMXBean) bean;
+        assumeTrue(allocBean.isThreadAllocatedMemorySupported());
+        allocBean.setThreadAllocatedMemoryEnabled(true);
+        long tid = Thread.currentThread().getId();
+
+        CircularEncoderBuffer buf = new CircularEncoderBuffer(BIT_RATE, FRAME_RATE, SPAN_SEC);
+        CircularEncoderStats stats = new CircularEncoderStats();
+
+        // Warm up through the same code path we measure, so that class loading, the JIT,
+        // and the first use of the allocation counter are all out of the way.
+        measureRounds(allocBean, tid, buf, WARMUP_ROUNDS);
+        buf.getStats(stats);
+        assertTrue("no packets wrapped during warmup", stats.wrappedPackets > 0);
+
+        // The JIT may recompile the loop partway through a pass, and the VM can allocate a
+        // little while it does, so we keep the best of a few passes.
+        long bestAllocated = Long.MAX_VALUE;
+        for (int pass = 0; pass < MEASURED_PASSES; pass++) {
+            mWrapped = 0;
+            long allocated = measureRounds(allocBean, tid, buf, MEASURED_ROUNDS);
+            bestAllocated = Math.min(bestAllocated, allocated);
+        }
+
+        assertTrue("no wrapped reads were measured", mWrapped > 0);
+        assertEquals("bytes allocated at steady state", 0, bestAllocated);
+    }
+
+    /**
+     * Runs the specified number of rounds, and returns the number of bytes this thread
+     * allocated while doing so.
+     */
+    private long measureRounds(com.sun.management.ThreadMXBean allocBean, long tid,
+            CircularEncoderBuffer buf, int rounds) {
+        long before = allocBean.getThreadAllocatedBytes(tid);
+        for (int i = 0; i < rounds; i++) {
+            runRound(buf);
+        }
+        return allocBean.getThreadAllocatedBytes(tid) - before;
+    }
+
+    /**
+     * Adds a second of video, then saves everything in the buffer the way
+     * CircularEncoder does: pin, walk the pinned range, release, unpin.
+     */
+    private void runRound(CircularEncoderBuffer buf) {
+        for (int i = 0; i < FRAME_RATE; i++) {
+            addPacket(buf);
+        }
+
+        int index = buf.pin();
+        while (index >= 0) {
+            ByteBuffer chunk = buf.getChunk(index, mInfo);
+            if (chunk.isDirect()) {
+                // The data buffer is on the heap, so this is the scratch buffer.
+                mWrapped++;
+            }
+            mChecksum += chunk.get(mInfo.offset) + chunk.get(mInfo.offset + mInfo.size - 1);
+            buf.releasePinned(index);
+            index = buf.getNextPinnedIndex(index);
+        }
+        buf.unpin();
+    }
+
+    /**
+     * Adds a packet whose size varies from frame to frame, so the packet boundaries move
+     * around the buffer and regularly straddle the end.
+     */
+    private void addPacket(CircularEncoderBuffer buf) {
+        int size = 700 + (mFrameNum * 337) % (MAX_PACKET - 700);
+        int flags = (mFrameNum % GOP_LEN == 0) ? MediaCodec.BUFFER_FLAG_SYNC_FRAME : 0;
+        mPacket.clear();
+        mPacket.put(0, (byte) mFrameNum);
+        mPacket.put(size - 1, (byte) ~mFrameNum);
+        mPacket.limit(size);
+        buf.add(mPacket, flags, mPtsUsec);
+        mPtsUsec += 1000000 / FRAME_RATE;
+        mFrameNum++;
+    }
+}
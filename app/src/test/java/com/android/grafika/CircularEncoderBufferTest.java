@@ -0,0 +1,220 @@
+/*
+ * Copyright 2026 The CombineCameras Authors. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.grafika;
+
+import android.media.MediaCodec;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Exercises CircularEncoderBuffer on the JVM, backed by the heap and by a temp file.
+ * <p>
+ * Every packet is filled with a pattern derived from its frame number, and the frame
+ * number is recoverable from the presentation time, so we can check what comes back out
+ * without keeping a copy of what went in.
+ */
+public class CircularEncoderBufferTest {
+    private static final int BIT_RATE = 80000;      // 10000 bytes/sec
+    private static final int FRAME_RATE = 10;
+    private static final int SPAN_SEC = 2;
+    private static final int GOP_LEN = 10;
+    private static final long FRAME_USEC = 1000000 / FRAME_RATE;
+    private static final int MAX_PACKET = 1300;
+
+    private File mFile;
+    private final MediaCodec.BufferInfo mInfo = new MediaCodec.BufferInfo();
+
+    @Before
+    public void setUp() throws IOException {
+        mFile = File.createTempFile("cebtest", ".journal");
+    }
+
+    @After
+    public void tearDown() {
+        mFile.delete();
+    }
+
+    @Test
+    public void fileBackedSizesMatchHeap() throws IOException {
+        CircularEncoderBuffer heap = new CircularEncoderBuffer(BIT_RATE, FRAME_RATE, SPAN_SEC);
+        CircularEncoderBuffer mapped = new CircularEncoderBuffer(BIT_RATE, FRAME_RATE, SPAN_SEC,
+                mFile);
+        assertEquals(heap.getDataBufferSize(), mapped.getDataBufferSize());
+        assertEquals(heap.getMetaBufferCount(), mapped.getMetaBufferCount());
+        assertTrue("file too small", mFile.length() > mapped.getDataBufferSize());
+    }
+
+    @Test
+    public void wrappedPacketsReadBackIntact() throws IOException {
+        CircularEncoderBuffer buf = new CircularEncoderBuffer(BIT_RATE, FRAME_RATE, SPAN_SEC,
+                mFile);
+        ByteBuffer packet = ByteBuffer.allocate(MAX_PACKET);
+
+        // Run several times around the buffer, checking everything it holds as we go.
+        for (int frame = 0; frame < 300; frame++) {
+            addFrame(buf, packet, frame);
+            checkContents(buf, frame);
+        }
+
+        CircularEncoderStats stats = new CircularEncoderStats();
+        buf.getStats(stats);
+        assertTrue("nothing wrapped", stats.wrappedPackets > 0);
+        assertTrue("nothing evicted", stats.dataEvictions + stats.metaEvictions > 0);
+        assertEquals(0, stats.droppedPackets);
+    }
+
+    @Test
+    public void fileBackedMatchesHeap() throws IOException {
+        CircularEncoderBuffer heap = new CircularEncoderBuffer(BIT_RATE, FRAME_RATE, SPAN_SEC);
+        CircularEncoderBuffer mapped = new CircularEncoderBuffer(BIT_RATE, FRAME_RATE, SPAN_SEC,
+                mFile);
+        ByteBuffer packet = ByteBuffer.allocate(MAX_PACKET);
+        MediaCodec.BufferInfo heapInfo = new MediaCodec.BufferInfo();
+
+        for (int frame = 0; frame < 200; frame++) {
+            addFrame(heap, packet, frame);
+            addFrame(mapped, packet, frame);
+
+            // Same eviction decisions, so the same packets at the same indices.
+            int index = heap.getFirstIndex();
+            assertEquals(index, mapped.getFirstIndex());
+            while (index >= 0) {
+                ByteBuffer heapChunk = heap.getChunk(index, heapInfo);
+                ByteBuffer mappedChunk = mapped.getChunk(index, mInfo);
+                assertEquals(heapInfo.size, mInfo.size);
+                assertEquals(heapInfo.flags, mInfo.flags);
+                assertEquals(heapInfo.presentationTimeUs, mInfo.presentationTimeUs);
+                for (int i = 0; i < mInfo.size; i++) {
+                    assertEquals(heapChunk.get(heapInfo.offset + i),
+                            mappedChunk.get(mInfo.offset + i));
+                }
+                int next = heap.getNextIndex(index);
+                assertEquals(next, mapped.getNextIndex(index));
+                index = next;
+            }
+        }
+    }
+
+    @Test
+    public void evictionKeepsSyncFrameAtTail() {
+        CircularEncoderBuffer buf = new CircularEncoderBuffer(BIT_RATE, FRAME_RATE, SPAN_SEC);
+        ByteBuffer packet = ByteBuffer.allocate(MAX_PACKET);
+
+        for (int frame = 0; frame < 300; frame++) {
+            addFrame(buf, packet, frame);
+
+            int first = buf.getFirstIndex();
+            buf.getChunk(first, mInfo);
+            assertTrue("tail isn't a sync frame at frame " + frame,
+                    (mInfo.flags & MediaCodec.BUFFER_FLAG_SYNC_FRAME) != 0);
+            assertEquals(0, frameOf(mInfo.presentationTimeUs) % GOP_LEN);
+        }
+
+        // The buffer has room for a couple of GOPs, so evicting the oldest one always
+        // leaves at least a full GOP behind.
+        long span = buf.computeTimeSpanUsec();
+        assertTrue("span too short: " + span, span >= (GOP_LEN - 1) * FRAME_USEC);
+        assertTrue("span too long: " + span, span <= SPAN_SEC * 1000000L);
+    }
+
+    @Test
+    public void nonSyncPacketsDroppedUntilFirstSyncFrame() {
+        CircularEncoderBuffer buf = new CircularEncoderBuffer(BIT_RATE, FRAME_RATE, SPAN_SEC);
+        ByteBuffer packet = ByteBuffer.allocate(MAX_PACKET);
+
+        // Start partway through a GOP.
+        for (int frame = 5; frame < GOP_LEN; frame++) {
+            addFrame(buf, packet, frame);
+        }
+        assertEquals(-1, buf.getFirstIndex());
+        assertEquals(0, buf.computeTimeSpanUsec());
+
+        addFrame(buf, packet, GOP_LEN);
+        int first = buf.getFirstIndex();
+        assertTrue(first >= 0);
+        assertEquals(GOP_LEN * FRAME_USEC, buf.getPtsUsec(first));
+        assertEquals(-1, buf.getNextIndex(first));
+    }
+
+    /**
+     * Returns the packet size used for the specified frame.  Sync frames are larger, and
+     * the rest vary, so packet boundaries land all over the buffer.
+     */
+    private static int sizeOf(int frame) {
+        if (frame % GOP_LEN == 0) {
+            return MAX_PACKET;
+        }
+        return 300 + (frame * 337) % 700;
+    }
+
+    private static int frameOf(long ptsUsec) {
+        return (int) (ptsUsec / FRAME_USEC);
+    }
+
+    private static byte patternByte(int frame, int offset) {
+        return (byte) (frame * 31 + offset);
+    }
+
+    private static void addFrame(CircularEncoderBuffer buf, ByteBuffer packet, int frame) {
+        int size = sizeOf(frame);
+        packet.clear();
+        for (int i = 0; i < size; i++) {
+            packet.put(patternByte(frame, i));
+        }
+        packet.flip();
+        int flags = (frame % GOP_LEN == 0) ? MediaCodec.BUFFER_FLAG_SYNC_FRAME : 0;
+        buf.add(packet, flags, frame * FRAME_USEC);
+    }
+
+    /**
+     * Checks that the buffer holds consecutive frames ending with "lastFrame", starting at a
+     * sync frame, and that every one of them reads back with the right contents.
+     */
+    private void checkContents(CircularEncoderBuffer buf, int lastFrame) {
+        int index = buf.getFirstIndex();
+        assertTrue(index >= 0);
+        int expectFrame = -1;
+        int frame = -1;
+        while (index >= 0) {
+            ByteBuffer chunk = buf.getChunk(index, mInfo);
+            frame = frameOf(mInfo.presentationTimeUs);
+            if (expectFrame < 0) {
+                assertEquals("first packet isn't a sync frame", 0, frame % GOP_LEN);
+            } else {
+                assertEquals("frames out of sequence", expectFrame, frame);
+            }
+            assertEquals(sizeOf(frame), mInfo.size);
+            for (int i = 0; i < mInfo.size; i++) {
+                if (chunk.get(mInfo.offset + i) != patternByte(frame, i)) {
+                    throw new AssertionError("frame " + frame + " corrupt at byte " + i);
+                }
+            }
+            expectFrame = frame + 1;
+            index = buf.getNextIndex(index);
+        }
+        assertEquals(lastFrame, frame);
+    }
+}
@@ -0,0 +1,200 @@
+/*
+ * Copyright 2026 The CombineCameras Authors. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.grafika;
+
+import android.media.MediaCodec;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks that CircularEncoderJournal recovers what the buffer held when the process died,
+ * and nothing it had already given up.
+ */
+public class CircularEncoderJournalTest {
+    private static final int FLAG_SYNC = MediaCodec.BUFFER_FLAG_SYNC_FRAME;
+
+    private File mFile;
+
+    @Before
+    public void setUp() throws IOException {
+        mFile = File.createTempFile("cejtest", ".journal");
+    }
+
+    @After
+    public void tearDown() {
+        mFile.delete();
+    }
+
+    @Test
+    public void recoversBufferedWindowAfterWrap() throws IOException {
+        final int frameRate = 10;
+        final int gopLen = 10;
+        final long frameUsec = 1000000 / frameRate;
+        CircularEncoderBuffer buf = new CircularEncoderBuffer(80000, frameRate, 2, mFile);
+        byte[] format = new byte[] { 1, 2, 3, 4, 5 };
+        buf.setJournalFormat(format);
+
+        ByteBuffer packet = ByteBuffer.allocate(1300);
+        int lastFrame = 237;
+        for (int frame = 0; frame <= lastFrame; frame++) {
+            int size = (frame % gopLen == 0) ? 1300 : 300 + (frame * 337) % 700;
+            fill(packet, frame, size);
+            buf.add(packet, (frame % gopLen == 0) ? FLAG_SYNC : 0, frame * frameUsec);
+        }
+        CircularEncoderStats stats = new CircularEncoderStats();
+        buf.getStats(stats);
+        assertTrue("nothing wrapped", stats.wrappedPackets > 0);
+
+        // Abandon the buffer without any kind of shutdown, as if the process had died.
+        CircularEncoderJournal.Recovery rec = CircularEncoderJournal.recover(mFile);
+        assertArrayEquals(format, rec.getFormat());
+        assertEquals(stats.packetsHeld, rec.getPacketCount());
+
+        int firstFrame = (int) (buf.getPtsUsec(buf.getFirstIndex()) / frameUsec);
+        assertEquals(lastFrame - firstFrame + 1, rec.getPacketCount());
+        assertTrue((rec.getFlags(0) & FLAG_SYNC) != 0);
+        ByteBuffer dst = ByteBuffer.allocate(1300);
+        for (int i = 0; i < rec.getPacketCount(); i++) {
+            int frame = firstFrame + i;
+            assertEquals(frame * frameUsec, rec.getPtsUsec(i));
+            checkPacket(rec, i, dst, frame);
+        }
+    }
+
+    @Test
+    public void recoveryStopsAtEvictedPackets() throws IOException {
+        // Room for ten 99-byte packets, since each is followed by a spare byte.
+        CircularEncoderJournal journal = new CircularEncoderJournal(mFile, 1000, 20);
+        ByteBuffer data = journal.getDataBuffer();
+
+        // Three GOPs of three packets, then one more packet that just fits.
+        for (int seq = 0; seq < 10; seq++) {
+            write(journal, data, seq, seq * 100, (seq % 3 == 0) ? FLAG_SYNC : 0);
+        }
+
+        // The next sync frame needs the space held by the oldest GOP.  The buffer evicts
+        // it, and the packet's data goes in, but we die before its record is written.
+        journal.evict(3);
+        for (int i = 0; i < 99; i++) {
+            data.put(i, (byte) 0xee);
+        }
+
+        CircularEncoderJournal.Recovery rec = CircularEncoderJournal.recover(mFile);
+        assertEquals(7, rec.getPacketCount());
+        ByteBuffer dst = ByteBuffer.allocate(99);
+        for (int i = 0; i < rec.getPacketCount(); i++) {
+            assertEquals((3 + i) * 1000L, rec.getPtsUsec(i));
+            checkPacket(rec, i, dst, 3 + i);
+        }
+        assertTrue((rec.getFlags(0) & FLAG_SYNC) != 0);
+    }
+
+    @Test
+    public void recoveryStartsAtSyncFrame() throws IOException {
+        CircularEncoderJournal journal = new CircularEncoderJournal(mFile, 1000, 20);
+        ByteBuffer data = journal.getDataBuffer();
+
+        // The first GOP runs past the end of the data ring, so its head has been reused
+        // by the time the last packets go in.  Recovery has to skip to the next GOP.
+        for (int seq = 0; seq < 12; seq++) {
+            write(journal, data, seq, (seq * 100) % 1000, (seq == 0 || seq == 8) ? FLAG_SYNC : 0);
+        }
+
+        CircularEncoderJournal.Recovery rec = CircularEncoderJournal.recover(mFile);
+        assertEquals(4, rec.getPacketCount());
+        assertEquals(8000L, rec.getPtsUsec(0));
+        assertTrue((rec.getFlags(0) & FLAG_SYNC) != 0);
+    }
+
+    @Test
+    public void recordsFromEarlierSessionAreIgnored() throws IOException {
+        CircularEncoderJournal journal = new CircularEncoderJournal(mFile, 1000, 20);
+        ByteBuffer data = journal.getDataBuffer();
+        for (int seq = 0; seq < 5; seq++) {
+            write(journal, data, seq, seq * 100, (seq == 0) ? FLAG_SYNC : 0);
+        }
+        assertEquals(5, CircularEncoderJournal.recover(mFile).getPacketCount());
+
+        // Re-initializing the file starts a new session, without clearing the old records.
+        new CircularEncoderJournal(mFile, 1000, 20);
+        assertEquals(0, CircularEncoderJournal.recover(mFile).getPacketCount());
+    }
+
+    @Test
+    public void rejectsFileThatIsNotAJournal() throws IOException {
+        FileOutputStream out = new FileOutputStream(mFile);
+        try {
+            out.write(new byte[16384]);
+        } finally {
+            out.close();
+        }
+        try {
+            CircularEncoderJournal.recover(mFile);
+            fail("recovered from a file of zeroes");
+        } catch (IOException expected) {
+        }
+    }
+
+    private static byte patternByte(int frame, int offset) {
+        return (byte) (frame * 31 + offset);
+    }
+
+    private static void fill(ByteBuffer packet, int frame, int size) {
+        packet.clear();
+        for (int i = 0; i < size; i++) {
+            packet.put(patternByte(frame, i));
+        }
+        packet.flip();
+    }
+
+    /**
+     * Copies a 99-byte packet into the data ring and journals it, the way
+     * CircularEncoderBuffer does.
+     */
+    private static void write(CircularEncoderJournal journal, ByteBuffer data, int seq,
+            int start, int flags) {
+        for (int i = 0; i < 99; i++) {
+            data.put((start + i) % data.capacity(), patternByte(seq, i));
+        }
+        journal.append(flags, seq * 1000L, start, 99);
+    }
+
+    private static void checkPacket(CircularEncoderJournal.Recovery rec, int index,
+            ByteBuffer dst, int frame) {
+        int length = rec.getLength(index);
+        dst.clear();
+        rec.getPacket(index, dst);
+        assertEquals(length, dst.position());
+        for (int i = 0; i < length; i++) {
+            if (dst.get(i) != patternByte(frame, i)) {
+                throw new AssertionError("packet " + index + " corrupt at byte " + i);
+            }
+        }
+    }
+}
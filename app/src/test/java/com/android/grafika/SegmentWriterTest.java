@@ -0,0 +1,310 @@
+/*
+ * Copyright 2026 The CombineCameras Authors. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.grafika;
+
+import android.media.MediaCodec;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Drives SegmentWriter with fake muxers, the way VideoEncoderCore feeds it encoder output.
+ */
+public class SegmentWriterTest {
+    private static final String FORMAT = "video/avc 64x64";
+    private static final int SYNC = MediaCodec.BUFFER_FLAG_SYNC_FRAME;
+    private static final File OUTPUT = new File("/sdcard/movie.mp4");
+
+    /**
+     * Records what happens to one file.
+     */
+    private static class FakeMuxer implements SegmentWriter.Muxer<String> {
+        final File file;
+        final List<Long> samples = new ArrayList<Long>();
+        String format;
+        boolean stopped;
+        boolean released;
+
+        FakeMuxer(File file) {
+            this.file = file;
+        }
+
+        @Override
+        public void start(String format) {
+            if (this.format != null) {
+                fail("started twice");
+            }
+            this.format = format;
+        }
+
+        @Override
+        public void writeSampleData(ByteBuffer data, int flags, long ptsUsec) {
+            if (format == null || released) {
+                fail("write to muxer that isn't running");
+            }
+            samples.add(ptsUsec);
+        }
+
+        @Override
+        public void stop() {
+            // Like MediaMuxer, which throws if it has no samples.
+            if (format == null || samples.isEmpty()) {
+                fail("stop on muxer with nothing written");
+            }
+            stopped = true;
+        }
+
+        @Override
+        public void release() {
+            released = true;
+        }
+    }
+
+    private static class FakeHost implements SegmentWriter.Host<String>,
+            SegmentWriter.SegmentListener {
+        final List<FakeMuxer> muxers = new ArrayList<FakeMuxer>();
+        final List<String> completed = new ArrayList<String>();
+        int syncRequests;
+
+        @Override
+        public SegmentWriter.Muxer<String> createMuxer(File file) throws IOException {
+            FakeMuxer muxer = new FakeMuxer(file);
+            muxers.add(muxer);
+            return muxer;
+        }
+
+        @Override
+        public void requestSyncFrame() {
+            syncRequests++;
+        }
+
+        @Override
+        public void onSegmentComplete(File file, int index) {
+            completed.add(index + " " + file.getName());
+        }
+    }
+
+    private static boolean write(SegmentWriter<String> writer, int size, int flags,
+            long ptsUsec) {
+        return writer.writeSample(ByteBuffer.allocate(size), flags, ptsUsec);
+    }
+
+    private static SegmentWriter<String> newWriter(FakeHost host) {
+        SegmentWriter<String> writer = new SegmentWriter<String>(host);
+        writer.setFormat(FORMAT);
+        return writer;
+    }
+
+    @Test
+    public void singleFileWithoutLimits() throws IOException {
+        FakeHost host = new FakeHost();
+        SegmentWriter<String> writer = newWriter(host);
+        writer.setSegmentation(0, 0, host);
+        writer.startFile(OUTPUT, false);
+        for (int i = 0; i < 100; i++) {
+            assertTrue(write(writer, 1000, i % 30 == 0 ? SYNC : 0, i * 33333L));
+        }
+        writer.finishFile();
+
+        assertEquals(1, host.muxers.size());
+        FakeMuxer muxer = host.muxers.get(0);
+        assertEquals(FORMAT, muxer.format);
+        assertEquals(100, muxer.samples.size());
+        assertTrue(muxer.stopped);
+        assertTrue(muxer.released);
+        assertEquals(0, host.syncRequests);
+        assertEquals(1, host.completed.size());
+        assertEquals("0 movie.mp4", host.completed.get(0));
+    }
+
+    @Test
+    public void durationLimitCutsAtSyncFrame() throws IOException {
+        FakeHost host = new FakeHost();
+        SegmentWriter<String> writer = newWriter(host);
+        writer.setSegmentation(1000000, 0, host);
+        writer.startFile(OUTPUT, false);
+
+        // Sync frames every 1.5 seconds, frames every 100ms.
+        for (int i = 0; i < 40; i++) {
+            write(writer, 100, i % 15 == 0 ? SYNC : 0, i * 100000L);
+        }
+        writer.finishFile();
+
+        // The limit is reached at 1.0s, but the cut waits for the sync frame at 1.5s.
+        assertEquals(3, host.muxers.size());
+        assertEquals(15, host.muxers.get(0).samples.size());
+        assertEquals(Long.valueOf(1500000), host.muxers.get(1).samples.get(0));
+        assertEquals(15, host.muxers.get(1).samples.size());
+        assertEquals(Long.valueOf(3000000), host.muxers.get(2).samples.get(0));
+        assertEquals(10, host.muxers.get(2).samples.size());
+
+        // One request per segment that ran over, not one per frame.
+        assertEquals(2, host.syncRequests);
+        assertEquals(3, host.completed.size());
+        assertEquals("0 movie.mp4", host.completed.get(0));
+        assertEquals("1 movie-1.mp4", host.completed.get(1));
+        assertEquals("2 movie-2.mp4", host.completed.get(2));
+        for (FakeMuxer muxer : host.muxers) {
+            assertTrue(muxer.stopped);
+            assertTrue(muxer.released);
+        }
+    }
+
+    @Test
+    public void byteLimitCountsTheNextSample() throws IOException {
+        FakeHost host = new FakeHost();
+        SegmentWriter<String> writer = newWriter(host);
+        writer.setSegmentation(0, 1000, host);
+        writer.startFile(OUTPUT, false);
+
+        // Every frame is a sync frame, so each cut happens as soon as a limit is reached.
+        for (int i = 0; i < 10; i++) {
+            write(writer, 300, SYNC, i * 1000L);
+        }
+        writer.finishFile();
+
+        // 3 * 300 fits in 1000, a fourth wouldn't.
+        assertEquals(4, host.muxers.size());
+        assertEquals(3, host.muxers.get(0).samples.size());
+        assertEquals(3, host.muxers.get(1).samples.size());
+        assertEquals(3, host.muxers.get(2).samples.size());
+        assertEquals(1, host.muxers.get(3).samples.size());
+        assertEquals(0, host.syncRequests);
+    }
+
+    @Test
+    public void oversizedFirstSampleStillGoesInSegment() throws IOException {
+        FakeHost host = new FakeHost();
+        SegmentWriter<String> writer = newWriter(host);
+        writer.setSegmentation(0, 100, host);
+        writer.startFile(OUTPUT, false);
+
+        write(writer, 500, SYNC, 0);
+        write(writer, 500, SYNC, 1000);
+        writer.finishFile();
+
+        // An empty segment would be unplayable, so the limit only applies once there's data.
+        assertEquals(2, host.muxers.size());
+        assertEquals(1, host.muxers.get(0).samples.size());
+        assertEquals(1, host.muxers.get(1).samples.size());
+    }
+
+    @Test
+    public void restartedFileWaitsForSyncFrame() throws IOException {
+        FakeHost host = new FakeHost();
+        SegmentWriter<String> writer = newWriter(host);
+        writer.startFile(OUTPUT, false);
+        write(writer, 100, SYNC, 0);
+        writer.finishFile();
+
+        // Between files, output is dropped.
+        assertFalse(writer.isFileOpen());
+        assertFalse(write(writer, 100, 0, 1000));
+
+        writer.startFile(new File("/sdcard/second.mp4"), true);
+        assertEquals(1, host.syncRequests);
+        assertFalse(write(writer, 100, 0, 2000));
+        assertTrue(write(writer, 100, SYNC, 3000));
+        assertTrue(write(writer, 100, 0, 4000));
+        writer.finishFile();
+
+        assertEquals(2, host.muxers.size());
+        FakeMuxer second = host.muxers.get(1);
+        assertEquals(2, second.samples.size());
+        assertEquals(Long.valueOf(3000), second.samples.get(0));
+    }
+
+    @Test
+    public void restartResetsSegmentNumbering() throws IOException {
+        FakeHost host = new FakeHost();
+        SegmentWriter<String> writer = newWriter(host);
+        writer.setSegmentation(0, 100, host);
+        writer.startFile(OUTPUT, false);
+        write(writer, 100, SYNC, 0);
+        write(writer, 100, SYNC, 1000);
+        writer.finishFile();
+
+        writer.startFile(new File("/sdcard/take2.mp4"), true);
+        write(writer, 100, SYNC, 2000);
+        write(writer, 100, SYNC, 3000);
+        writer.finishFile();
+
+        assertEquals(4, host.completed.size());
+        assertEquals("1 movie-1.mp4", host.completed.get(1));
+        assertEquals("0 take2.mp4", host.completed.get(2));
+        assertEquals("1 take2-1.mp4", host.completed.get(3));
+    }
+
+    @Test
+    public void fileWithNothingWrittenIsReleasedWithoutStopping() throws IOException {
+        FakeHost host = new FakeHost();
+        SegmentWriter<String> writer = newWriter(host);
+        writer.setSegmentation(0, 0, host);
+        writer.startFile(OUTPUT, true);
+        write(writer, 100, 0, 0);           // not a sync frame, so dropped
+        writer.finishFile();
+
+        FakeMuxer muxer = host.muxers.get(0);
+        assertNull(muxer.format);
+        assertFalse(muxer.stopped);
+        assertTrue(muxer.released);
+        assertTrue(host.completed.isEmpty());
+    }
+
+    @Test
+    public void segmentNamesWithoutExtension() throws IOException {
+        FakeHost host = new FakeHost();
+        SegmentWriter<String> writer = newWriter(host);
+        writer.startFile(new File("/sdcard/raw"), false);
+        assertEquals("raw", writer.getSegmentFile(0).getName());
+        assertEquals("raw-3", writer.getSegmentFile(3).getName());
+    }
+
+    @Test
+    public void startingTwiceIsAnError() throws IOException {
+        FakeHost host = new FakeHost();
+        SegmentWriter<String> writer = newWriter(host);
+        writer.startFile(OUTPUT, false);
+        try {
+            writer.startFile(OUTPUT, false);
+            fail("second file started over the first");
+        } catch (RuntimeException expected) {
+        }
+    }
+
+    @Test
+    public void sampleBeforeFormatIsAnError() throws IOException {
+        SegmentWriter<String> writer = new SegmentWriter<String>(new FakeHost());
+        writer.startFile(OUTPUT, false);
+        try {
+            write(writer, 100, SYNC, 0);
+            fail("wrote a sample without a format");
+        } catch (RuntimeException expected) {
+        }
+    }
+}